@@ -0,0 +1,60 @@
+package org.cobbzilla.s3s3util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors a bucket into an empty one, against S3 that answers at once: measures what the KeyMaster, the executor
+ * and the jobs themselves cost per key, including admission (backpressure) and, with shards, the ShardScheduler.
+ * One op is one key copied.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DispatchBenchmark {
+
+    public static final int KEYS = 50000;
+
+    @Param({"8", "64"})
+    public int threads;
+
+    /** 0 dispatches in listing order, otherwise through a ShardScheduler with prefixes this long */
+    @Param({"0", "3"})
+    public int shardPrefixLength;
+
+    private S3Emulator s3;
+    private S3ToS3Options options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        S3Emulator.quiet();
+        s3 = new S3Emulator();
+        s3.generate("source", KEYS, 1000);
+        options = new S3ToS3Options();
+        options.setSource("source");
+        options.setDestination("destination");
+        options.setMaxThreads(threads);
+        options.setShardPrefixLength(shardPrefixLength);
+        options.setSkipAcls(true);
+        options.initDerivedFields();
+    }
+
+    @Setup(Level.Invocation)
+    public void emptyDestination() {
+        s3.clear("destination");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public long mirror() {
+        final S3ToS3Context context = new S3ToS3Context(options);
+        new S3ToS3Master(s3, context).mirror();
+        final long copied = context.getStats().objectsCopied.get();
+        if (copied != KEYS) throw new IllegalStateException("copied " + copied + " keys, expected " + KEYS);
+        return copied;
+    }
+}
@@ -0,0 +1,58 @@
+package org.cobbzilla.s3s3util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists a bucket with a KeyLister and takes every page with getNextBatch, as a KeyMaster does: measures listing,
+ * packing keys into pages and handing the pages from the listing threads to the consumer. One op is one key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ListerBenchmark {
+
+    public static final int KEYS = 200000;
+
+    @Param({"1", "4"})
+    public int listThreads;
+
+    private S3Emulator s3;
+    private S3ToS3Options options;
+
+    @Setup
+    public void setUp() throws Exception {
+        S3Emulator.quiet();
+        s3 = new S3Emulator();
+        s3.generate("source", KEYS, 1000);
+        options = new S3ToS3Options();
+        options.setSource("source");
+        options.setDestination("destination");
+        options.setListThreads(listThreads);
+        options.initDerivedFields();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public void listAll(Blackhole blackhole) throws Exception {
+        final KeyLister lister = new KeyLister(s3, new S3ToS3Context(options), "source", "");
+        final Thread thread = new Thread(lister, "lister");
+        thread.start();
+        long keys = 0;
+        while (true) {
+            final PackedKeyPage page = lister.getNextBatch();
+            if (page.isEmpty()) break;
+            for (ListedKey key : page) {
+                blackhole.consume(key);
+                keys++;
+            }
+        }
+        thread.join();
+        if (keys != KEYS) throw new IllegalStateException("listed " + keys + " keys, expected " + KEYS);
+    }
+}
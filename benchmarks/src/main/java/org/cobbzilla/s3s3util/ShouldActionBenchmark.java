@@ -0,0 +1,63 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether keys need copying, as BaseKeyJob does for every listed key, without any request to S3: from a
+ * merged listing (shouldAction) and from size and ETag alone (objectChanged).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShouldActionBenchmark {
+
+    /** a single-part ETag, or a multipart one */
+    @Param({"0cc175b9c0f1b6a831c399e269772661", "0cc175b9c0f1b6a831c399e269772661-12"})
+    public String etag;
+
+    @Param({"false", "true"})
+    public boolean sizeOnly;
+
+    private KeyCopyJob unchanged;
+    private KeyCopyJob changed;
+
+    @Setup
+    public void setUp() throws Exception {
+        S3Emulator.quiet();
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setSource("source");
+        options.setDestination("destination");
+        options.setSizeOnly(sizeOnly);
+        options.initDerivedFields();
+        final S3ToS3Context context = new S3ToS3Context(options);
+        final S3Emulator s3 = new S3Emulator();
+
+        unchanged = new KeyCopyJob(s3, context, summary("logs/2024/01/01/app.log", 4096, etag));
+        unchanged.setComparedDestination(summary("logs/2024/01/01/app.log", 4096, etag));
+        changed = new KeyCopyJob(s3, context, summary("logs/2024/01/01/app.log", 4096, etag));
+        changed.setComparedDestination(summary("logs/2024/01/01/app.log", 4097, "900150983cd24fb0d6963f7d28e17f72"));
+    }
+
+    private static S3ObjectSummary summary(String key, long size, String etag) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(etag);
+        return summary;
+    }
+
+    @Benchmark
+    public boolean shouldActionUnchanged() { return unchanged.shouldAction(); }
+
+    @Benchmark
+    public boolean shouldActionChanged() { return changed.shouldAction(); }
+
+    @Benchmark
+    public boolean objectChanged() { return unchanged.objectChanged(4096, etag); }
+}
@@ -0,0 +1,64 @@
+package org.cobbzilla.s3s3util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates the run's shared statistics from many threads at once, as every job does for every request: the
+ * S3ToS3Stats counters, the PrefixStats of each object copied, and the bookkeeping RetryPolicy does for each request
+ * that succeeds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class StatsBenchmark {
+
+    private static final int PREFIXES = 1000;
+
+    private S3ToS3Stats stats;
+    private RetryPolicy retryPolicy;
+    private PrefixStats prefixStats;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        stats = new S3ToS3Stats();
+        retryPolicy = new RetryPolicy(stats);
+        prefixStats = new S3ToS3Context(new S3ToS3Options()).getPrefixStats();
+        // a few busy prefixes and many quiet ones, more than PrefixStats counts at a time
+        keys = new String[PREFIXES * 4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "prefix-" + (i % 2 == 0 ? i % 8 : i % PREFIXES) + "/key-" + i;
+        }
+    }
+
+    /** what a copy job adds to the stats for one key */
+    @Benchmark
+    public void copyCounters() {
+        stats.s3getCount.increment();
+        stats.s3copyCount.increment();
+        stats.bytesCopied.add(4096);
+        stats.objectsCopied.increment();
+    }
+
+    /** what a copy job adds to the PrefixStats for one key */
+    @Benchmark
+    public void prefixCounters() {
+        prefixStats.copied(keys[ThreadLocalRandom.current().nextInt(keys.length)], 4096);
+    }
+
+    /** one request, through RetryPolicy, that succeeds the first time */
+    @Benchmark
+    public boolean requestSucceeded() {
+        final RetryPolicy.Attempts attempts = retryPolicy.attempts(5);
+        final boolean sent = attempts.next();
+        attempts.succeeded();
+        return sent;
+    }
+}
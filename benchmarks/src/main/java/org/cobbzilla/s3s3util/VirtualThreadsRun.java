@@ -0,0 +1,93 @@
+package org.cobbzilla.s3s3util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors a bucket into an empty one, against S3 that takes 50ms for each HEAD and each COPY request, and prints one
+ * row of the "Virtual threads" table in the README: objects per second, peak resident memory and peak OS threads.
+ * Not a JMH benchmark: each row must run in a JVM of its own, so that one run's threads and heap don't show up in the
+ * next, and the latency, not the JIT, dominates. Usage: VirtualThreadsRun threads platform|virtual [keys]
+ */
+public class VirtualThreadsRun {
+
+    public static final int KEYS = 50000;
+    public static final double LATENCY_MILLIS = 50;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = Integer.parseInt(args[0]);
+        final boolean virtual = args[1].equals("virtual");
+        final int keys = args.length > 2 ? Integer.parseInt(args[2]) : KEYS;
+
+        S3Emulator.quiet();
+        final S3Emulator s3 = new S3Emulator();
+        s3.generate("source", keys, 1000);
+        s3.latency(RateLimits.Operation.HEAD, S3Emulator.Latency.fixed(LATENCY_MILLIS));
+        s3.latency(RateLimits.Operation.COPY, S3Emulator.Latency.fixed(LATENCY_MILLIS));
+
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setSource("source");
+        options.setDestination("destination");
+        options.setMaxThreads(threads);
+        options.setVirtualThreads(virtual);
+        options.setSkipAcls(true);
+        options.initDerivedFields();
+        final S3ToS3Context context = new S3ToS3Context(options);
+
+        final AtomicLong peakThreads = new AtomicLong();
+        final Thread sampler = new Thread(new Runnable() {
+            @Override public void run() {
+                while (true) {
+                    final long now = osThreads();
+                    if (now > peakThreads.get()) peakThreads.set(now);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final long start = System.nanoTime();
+        new S3ToS3Master(s3, context).mirror();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        sampler.join();
+
+        final long copied = context.getStats().objectsCopied.get();
+        if (copied != keys) throw new IllegalStateException("copied " + copied + " keys, expected " + keys);
+
+        System.out.println(String.format("| %,7d | %-8s | %,11d | %,5d MB | %,10d |",
+                threads, virtual ? "virtual" : "platform", Math.round(keys / seconds),
+                status("VmHWM") / 1024, peakThreads.get()));
+    }
+
+    /** @return the threads this process runs, as the OS sees them (JVM threads, GC and JIT included) */
+    private static long osThreads() {
+        final long threads = status("Threads");
+        return threads >= 0 ? threads : ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /** @return a number from /proc/self/status (kB for memory), or -1 where there is none, as off Linux */
+    private static long status(String field) {
+        final File file = new File("/proc/self/status");
+        if (!file.exists()) return -1;
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
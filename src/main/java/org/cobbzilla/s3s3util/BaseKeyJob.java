@@ -1,6 +1,5 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AccessControlList;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ObjectMetadata;
@@ -14,8 +13,16 @@ import java.util.Date;
 abstract public class BaseKeyJob extends KeyJob {
     protected String keydest;
 
-    public BaseKeyJob(AmazonS3Client client, S3ToS3Context context, S3ObjectSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    // set when the lister has already compared this key against a listing of the destination
+    private boolean compared = false;
+    private S3ObjectSummary comparedDestination;
+
+    // the ETag and Last-Modified time S3 reported for the new object, set by execute
+    protected String copiedEtag;
+    protected Date copiedLastModified;
+
+    public BaseKeyJob(S3Operations client, S3ToS3Context context, S3ObjectSummary summary) {
+        super(client, context, summary);
         keydest = summary.getKey();
         final S3ToS3Options options = context.getOptions();
         if (options.hasDestPrefix()) {
@@ -26,33 +33,55 @@ abstract public class BaseKeyJob extends KeyJob {
     }
     @Override public Logger getLog() { return log; }
 
+    /**
+     * Record the destination object found by a merged listing, so shouldAction need not look it up again.
+     * @param destination the destination object, or null if the key is not in the destination bucket
+     */
+    public void setComparedDestination(S3ObjectSummary destination) {
+        this.compared = true;
+        this.comparedDestination = destination;
+    }
+
+    /**
+     * @param sourceMetadata the metadata of the source object, or null if needsSourceMetadata is false
+     * @param objectAcl the ACL of the source object, or null if ACLs are not being copied
+     */
     abstract boolean execute(ObjectMetadata sourceMetadata, AccessControlList objectAcl);
 
+    /**
+     * @return true if execute needs the source object's metadata. Single-request copies don't: S3 copies the
+     * metadata itself (the COPY metadata directive), which saves a HEAD request per object.
+     */
+    protected boolean needsSourceMetadata() { return true; }
+
     @Override
     public void run() {
         final S3ToS3Options options = context.getOptions();
         final String key = summary.getKey();
         try {
             if (!shouldAction()) return;
-            final ObjectMetadata sourceMetadata = getObjectMetadata(options.getSourceBucket(), key, options);
-            final AccessControlList objectAcl = getAccessControlList(options, key);
+            final ObjectMetadata sourceMetadata = needsSourceMetadata() ? getObjectMetadata(options.getSourceBucket(), key, options) : null;
+            final AccessControlList objectAcl = options.isCopyAcls() ? getAccessControlList(options, key) : null;
 
             if (options.isDryRun()) {
                 log.info("Would have copied " + key + " to destination: " + keydest);
             } else {
                 if (execute(sourceMetadata, objectAcl)) {
-                    context.getStats().objectsCopied.incrementAndGet();
+                    context.getStats().objectsCopied.increment();
+                    context.getPrefixStats().copied(key, summary.getSize());
+                    final DestinationIndex index = context.getDestinationIndex();
+                    if (index != null) index.put(keydest, summary.getSize(), copiedEtag, copiedLastModified);
                 } else {
-                    context.getStats().copyErrors.incrementAndGet();
+                    failed = true;
+                    context.getStats().copyErrors.increment();
+                    context.getPrefixStats().failed(key);
                 }
             }
         } catch (Exception e) {
+            failed = true;
             log.error("error copying key: " + key + ": " + e);
 
         } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
-            }
             if (options.isVerbose()) log.info("done with " + key);
         }
     }
@@ -78,6 +107,27 @@ abstract public class BaseKeyJob extends KeyJob {
                 }
             }
         }
+        if (compared) {
+            if (comparedDestination == null) {
+                if (verbose) log.info("Key not found in destination listing (will copy): "+ keydest);
+                return true;
+            }
+            return objectChanged(comparedDestination.getSize(), comparedDestination.getETag());
+        }
+
+        final DestinationIndex index = context.getDestinationIndex();
+        if (index != null) {
+            final DestinationIndex.Entry entry = index.get(keydest);
+            if (entry == null) {
+                if (verbose) log.info("Key not found in destination index (will copy): "+ keydest);
+                return true;
+            }
+            if (options.isMultipart(summary.getSize())) return entry.getSize() != summary.getSize();
+            final boolean objectChanged = objectChanged(entry.getSize(), entry.getEtag());
+            if (verbose && !objectChanged) log.info("Destination index has the same object as source, not copying: "+ key);
+            return objectChanged;
+        }
+
         final ObjectMetadata metadata;
         try {
             metadata = getObjectMetadata(options.getDestinationBucket(), keydest, options);
@@ -94,7 +144,7 @@ abstract public class BaseKeyJob extends KeyJob {
             return false;
         }
 
-        if (summary.getSize() > S3ToS3Options.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+        if (options.isMultipart(summary.getSize())) {
             return metadata.getContentLength() != summary.getSize();
         }
         final boolean objectChanged = objectChanged(metadata);
@@ -104,18 +154,13 @@ abstract public class BaseKeyJob extends KeyJob {
     }
 
     boolean objectChanged(ObjectMetadata metadata) {
-        final S3ToS3Options options = context.getOptions();
-        final KeyFingerprint sourceFingerprint;
-        final KeyFingerprint destFingerprint;
-
-        if (options.isSizeOnly()) {
-            sourceFingerprint = new KeyFingerprint(summary.getSize());
-            destFingerprint = new KeyFingerprint(metadata.getContentLength());
-        } else {
-            sourceFingerprint = new KeyFingerprint(summary.getSize(), summary.getETag());
-            destFingerprint = new KeyFingerprint(metadata.getContentLength(), metadata.getETag());
-        }
+        return objectChanged(metadata.getContentLength(), metadata.getETag());
+    }
 
+    boolean objectChanged(long destSize, String destEtag) {
+        final S3ToS3Options options = context.getOptions();
+        final KeyFingerprint sourceFingerprint = KeyFingerprint.forComparison(options, summary.getSize(), summary.getSize(), summary.getETag());
+        final KeyFingerprint destFingerprint = KeyFingerprint.forComparison(options, summary.getSize(), destSize, destEtag);
         return !sourceFingerprint.equals(destFingerprint);
     }
 }
@@ -0,0 +1,39 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+
+/**
+ * Sends each request with an AmazonS3 client (SDK v1), on the calling thread, which waits for the response.
+ */
+public class BlockingS3Operations implements S3Operations {
+
+    @Getter private final AmazonS3 client;
+
+    public BlockingS3Operations(AmazonS3 client) { this.client = client; }
+
+    @Override public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) { return client.listObjectsV2(request); }
+
+    @Override public ObjectMetadata getObjectMetadata(String bucket, String key) { return client.getObjectMetadata(bucket, key); }
+
+    @Override public AccessControlList getObjectAcl(String bucket, String key) { return client.getObjectAcl(bucket, key); }
+
+    @Override public CopyObjectResult copyObject(CopyObjectRequest request) { return client.copyObject(request); }
+
+    @Override public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        return client.initiateMultipartUpload(request);
+    }
+
+    @Override public CopyPartResult copyPart(CopyPartRequest request) { return client.copyPart(request); }
+
+    @Override public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        return client.completeMultipartUpload(request);
+    }
+
+    @Override public void abortMultipartUpload(AbortMultipartUploadRequest request) { client.abortMultipartUpload(request); }
+
+    @Override public void deleteObject(DeleteObjectRequest request) { client.deleteObject(request); }
+
+    @Override public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) { return client.deleteObjects(request); }
+}
@@ -0,0 +1,154 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Sizes the executor that runs KeyJobs while a run is going (--adaptive-threads), between MIN_THREADS and
+ * --max-threads, instead of always running --max-threads of them.
+ *
+ * Every SAMPLE_MILLIS it looks at the S3 requests made since the last sample (see RetryPolicy): how many succeeded,
+ * their mean latency, and how many were throttled. The size then changes AIMD-style:
+ *  - when more than THROTTLE_TOLERANCE of requests were throttled, or the circuit breaker is open, it is cut to
+ *    DECREASE_FACTOR of itself;
+ *  - when latency has grown past LATENCY_TOLERANCE times the lowest latency seen (requests are queueing somewhere,
+ *    not getting done faster), or the last increase cost more than THROUGHPUT_TOLERANCE of throughput, it shrinks
+ *    by the square root of itself;
+ *  - otherwise, if jobs are waiting for a thread, it grows by the square root of itself.
+ * The lowest latency drifts up slowly, so that a change in object sizes does not pin it to an old value.
+ *
+ * Each thread makes one request at a time, so the size is also the number of connections the jobs use.
+ */
+@Slf4j
+public class ConcurrencyController implements Runnable {
+
+    public static final long SAMPLE_MILLIS = 2000;
+    public static final int MIN_THREADS = 4;
+    public static final double DECREASE_FACTOR = 0.7;
+    public static final double THROTTLE_TOLERANCE = 0.01;
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final double THROUGHPUT_TOLERANCE = 0.1;
+    public static final double BASELINE_DRIFT = 0.05;
+
+    private final S3ToS3Context context;
+    private final ThreadPoolExecutor executor;
+    @Getter private final int minThreads;
+    @Getter private final int maxThreads;
+
+    @Getter private volatile int limit;
+
+    private double baselineNanos = 0;
+    private double lastRate = 0;
+    private boolean lastIncreased = false;
+
+    private Thread thread;
+
+    public ConcurrencyController(S3ToS3Context context, ThreadPoolExecutor executor) {
+        this.context = context;
+        this.executor = executor;
+        this.maxThreads = context.getOptions().getMaxThreads();
+        this.minThreads = Math.min(MIN_THREADS, maxThreads);
+        // start low and grow: growing is cheap, being throttled is not
+        this.limit = Math.max(minThreads, maxThreads / 4);
+    }
+
+    /** @return how many threads the executor should start with */
+    public int getInitialThreads() { return limit; }
+
+    public void start() {
+        resize(executor, limit);
+        thread = new Thread(this, "concurrency-controller");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null) thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        final S3ToS3Stats stats = context.getStats();
+        long lastRequests = stats.requestsSucceeded.get();
+        long lastNanos = stats.requestNanos.get();
+        long lastThrottled = stats.throttled.get();
+        long lastTime = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            if (Sleep.sleep((int) SAMPLE_MILLIS)) return;
+
+            final long requests = stats.requestsSucceeded.get();
+            final long nanos = stats.requestNanos.get();
+            final long throttled = stats.throttled.get();
+            final long now = System.nanoTime();
+
+            final int previous = limit;
+            final int next = update(requests - lastRequests, nanos - lastNanos, throttled - lastThrottled,
+                                    now - lastTime, context.getRetryPolicy().isBreakerOpen(), !executor.getQueue().isEmpty());
+            if (next != previous) {
+                resize(executor, next);
+                if (context.getOptions().isVerbose()) log.info("concurrency: "+previous+" -> "+next+" threads");
+            }
+            lastRequests = requests;
+            lastNanos = nanos;
+            lastThrottled = throttled;
+            lastTime = now;
+        }
+    }
+
+    /**
+     * Work out the new size from one sample.
+     * @param requests requests that succeeded during the sample
+     * @param latencyNanos their total latency
+     * @param throttled requests that were throttled during the sample
+     * @param elapsedNanos how long the sample was
+     * @param breakerOpen true if the circuit breaker is open
+     * @param busy true if jobs are waiting for a thread
+     * @return the new size
+     */
+    synchronized int update(long requests, long latencyNanos, long throttled, long elapsedNanos, boolean breakerOpen, boolean busy) {
+        if (requests == 0 && throttled == 0 && !breakerOpen) return limit; // idle: nothing to learn from
+
+        final int step = Math.max(1, (int) Math.sqrt(limit));
+        final double rate = elapsedNanos <= 0 ? 0 : requests * 1e9 / elapsedNanos;
+        int next = limit;
+
+        if (breakerOpen || throttled > THROTTLE_TOLERANCE * (requests + throttled)) {
+            next = (int) (limit * DECREASE_FACTOR);
+
+        } else if (requests > 0) {
+            final double latency = (double) latencyNanos / requests;
+            if (baselineNanos == 0 || latency < baselineNanos) {
+                baselineNanos = latency;
+            } else {
+                baselineNanos += (latency - baselineNanos) * BASELINE_DRIFT;
+            }
+
+            if (latency > LATENCY_TOLERANCE * baselineNanos) {
+                next = limit - step;
+            } else if (lastIncreased && rate < lastRate * (1 - THROUGHPUT_TOLERANCE)) {
+                next = limit - step;
+            } else if (busy) {
+                next = limit + step;
+            }
+        }
+
+        next = Math.max(minThreads, Math.min(maxThreads, next));
+        lastIncreased = next > limit;
+        lastRate = rate;
+        limit = next;
+        return next;
+    }
+
+    /** set both the core and the maximum size, in the order the executor accepts */
+    static void resize(ThreadPoolExecutor executor, int threads) {
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+}
@@ -1,26 +1,43 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 public class CopyMaster extends KeyMaster {
 
-    public CopyMaster(AmazonS3Client client, S3ToS3Context context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
+    public CopyMaster(S3Operations client, S3ToS3Context context, ThreadPoolExecutor executorService) {
+        super(client, context, executorService);
     }
 
     protected String getPrefix(S3ToS3Options options) { return options.getPrefix(); }
     protected String getBucket(S3ToS3Options options) { return options.getSourceBucket(); }
 
-    protected BaseKeyJob getTask(S3ObjectSummary summary) {
+    @Override protected String getCompareBucket(S3ToS3Options options) {
+        return options.isMergeListings() && !options.isDelete() ? options.getDestinationBucket() : null;
+    }
+    @Override protected String getComparePrefix(S3ToS3Options options) { return options.getDestListingPrefix(); }
+
+    /** when merging listings, the delete-removed pass rides along with the copy pass instead of running a DeleteMaster */
+    @Override protected boolean isReportRemoved(S3ToS3Options options) { return options.isDeleteRemoved(); }
+
+    protected BaseKeyJob getTask(ListedKey key) {
+        if (key.isRemoved()) {
+            final KeyDeleteJob job = new KeyDeleteJob(client, context, key.getDestination());
+            job.setRemovedFromSource(true);
+            return job;
+        }
+        final BaseKeyJob job = getTask(key.getSummary());
+        if (key.isCompared()) job.setComparedDestination(key.getDestination());
+        return job;
+    }
+
+    private BaseKeyJob getTask(S3ObjectSummary summary) {
         if (context.getOptions().isDelete())
-            return new KeyDeleteJob(client, context, summary, notifyLock);
-        if (summary.getSize() > S3ToS3Options.MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
-            return ((context.getOptions().isMove()))? new MultipartKeyMoveJob(client, context, summary, notifyLock):new MultipartKeyCopyJob(client, context, summary, notifyLock);
+            return new KeyDeleteJob(client, context, summary);
+        if (context.getOptions().isMultipart(summary.getSize())) {
+            return ((context.getOptions().isMove()))? new MultipartKeyMoveJob(client, context, summary):new MultipartKeyCopyJob(client, context, summary);
          }
-        return ((context.getOptions().isMove()))? new KeyMoveJob(client, context, summary, notifyLock):new KeyCopyJob(client, context, summary, notifyLock);
+        return ((context.getOptions().isMove()))? new KeyMoveJob(client, context, summary):new KeyCopyJob(client, context, summary);
     }
 }
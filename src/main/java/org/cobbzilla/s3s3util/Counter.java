@@ -0,0 +1,15 @@
+package org.cobbzilla.s3s3util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A statistics counter that any number of threads can add to without contending for one cache line: a LongAdder,
+ * which gives threads that find it busy a cell of their own and sums the cells when read, with the get() of the
+ * AtomicLong it replaces. A read taken while adds are going on may miss some of them, which is fine for statistics.
+ */
+public class Counter extends LongAdder {
+
+    /** @return the sum of everything added so far */
+    public long get() { return sum(); }
+
+}
@@ -0,0 +1,202 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects keys to be deleted from the delete action, the source side of a move, and delete-removed, and
+ * deletes them with multi-object DeleteObjects requests instead of one DeleteObject request per key.
+ * A batch is sent by the thread that fills it, by a background thread once its oldest key has waited
+ * FLUSH_INTERVAL, or by close(). The outcome for each key is reported to the Listener it was added with.
+ */
+@Slf4j
+public class DeleteBatcher implements Runnable {
+
+    /** the most keys S3 accepts in a single DeleteObjects request */
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    public static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(2);
+
+    public interface Listener {
+        void deleted(String bucket, String key);
+        void deleteFailed(String bucket, String key, String reason);
+    }
+
+    @AllArgsConstructor
+    private static class PendingDelete {
+        private final String key;
+        private final Listener listener;
+    }
+
+    private static class Batch {
+        private final String bucket;
+        private final long created = System.currentTimeMillis();
+        private final List<PendingDelete> deletes = new ArrayList<PendingDelete>();
+        Batch(String bucket) { this.bucket = bucket; }
+    }
+
+    private final S3Operations client;
+    private final S3ToS3Context context;
+    private final int batchSize;
+
+    private final Map<String, Batch> batches = new HashMap<String, Batch>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private Thread thread;
+
+    public DeleteBatcher(S3Operations client, S3ToS3Context context) {
+        this(client, context, MAX_BATCH_SIZE);
+    }
+
+    public DeleteBatcher(S3Operations client, S3ToS3Context context, int batchSize) {
+        this.client = client;
+        this.context = context;
+        this.batchSize = Math.min(batchSize, MAX_BATCH_SIZE);
+    }
+
+    public void start () {
+        this.thread = new Thread(this, getClass().getSimpleName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a key for deletion. If this fills the bucket's batch, the batch is sent on the calling thread.
+     * @param bucket the bucket to delete from
+     * @param key the key to delete
+     * @param listener notified once the key has been deleted, or has failed to delete after all retries
+     */
+    public void delete (String bucket, String key, Listener listener) {
+        Batch full = null;
+        synchronized (batches) {
+            if (closed.get()) throw new IllegalStateException("delete: batcher is closed, cannot delete "+bucket+"/"+key);
+            Batch batch = batches.get(bucket);
+            if (batch == null) {
+                batch = new Batch(bucket);
+                batches.put(bucket, batch);
+            }
+            batch.deletes.add(new PendingDelete(key, listener));
+            if (batch.deletes.size() >= batchSize) {
+                batches.remove(bucket);
+                full = batch;
+            }
+        }
+        if (full != null) send(full);
+    }
+
+    @Override
+    public void run() {
+        while (!closed.get()) {
+            try {
+                synchronized (batches) {
+                    if (!closed.get()) batches.wait(FLUSH_INTERVAL / 4);
+                }
+            } catch (InterruptedException e) {
+                log.error("interrupted!");
+                return;
+            }
+            for (Batch batch : takeBatches(FLUSH_INTERVAL)) send(batch);
+        }
+    }
+
+    /** send everything still pending and stop accepting new keys */
+    public void close () {
+        synchronized (batches) {
+            closed.set(true);
+            batches.notifyAll();
+        }
+        if (thread != null) {
+            // let the flush thread finish any batch it is sending, so every listener has been called when we return
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for "+thread.getName()+" to finish");
+            }
+        }
+        for (Batch batch : takeBatches(0)) send(batch);
+    }
+
+    private List<Batch> takeBatches (long minAge) {
+        final List<Batch> taken = new ArrayList<Batch>();
+        final long now = System.currentTimeMillis();
+        synchronized (batches) {
+            for (Batch batch : new ArrayList<Batch>(batches.values())) {
+                if (now - batch.created >= minAge) {
+                    batches.remove(batch.bucket);
+                    taken.add(batch);
+                }
+            }
+        }
+        return taken;
+    }
+
+    private void send (Batch batch) {
+        final S3ToS3Options options = context.getOptions();
+        final boolean verbose = options.isVerbose();
+
+        // key -> pending delete, for the keys that have not been deleted yet
+        final Map<String, PendingDelete> remaining = new LinkedHashMap<String, PendingDelete>();
+        final Map<String, String> lastError = new HashMap<String, String>();
+        for (PendingDelete pending : batch.deletes) remaining.put(pending.key, pending);
+
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.DELETE);
+        while (!remaining.isEmpty() && attempts.next()) {
+            final int tries = attempts.getTries() - 1;
+            final List<KeyVersion> keys = new ArrayList<KeyVersion>(remaining.size());
+            for (String key : remaining.keySet()) keys.add(new KeyVersion(key));
+            final DeleteObjectsRequest request = new DeleteObjectsRequest(batch.bucket).withKeys(keys).withQuiet(true);
+
+            if (verbose) log.info("deleting "+keys.size()+" keys from "+batch.bucket+" (try #"+tries+")");
+            try {
+                context.getStats().s3deleteCount.increment();
+                client.deleteObjects(request);
+                attempts.succeeded();
+                for (PendingDelete pending : remaining.values()) pending.listener.deleted(batch.bucket, pending.key);
+                remaining.clear();
+                break;
+
+            } catch (MultiObjectDeleteException e) {
+                attempts.failed(e);
+                // some keys were deleted, some were not: keep only the failed keys for the next try,
+                // except those whose errors will not go away by trying again (such as AccessDenied)
+                final Map<String, PendingDelete> failed = new LinkedHashMap<String, PendingDelete>();
+                for (DeleteError error : e.getErrors()) {
+                    final PendingDelete pending = remaining.remove(error.getKey());
+                    if (pending == null) continue;
+                    final String reason = error.getCode()+": "+error.getMessage();
+                    if (RetryPolicy.classifyCode(error.getCode()).isRetryable()) {
+                        failed.put(error.getKey(), pending);
+                        lastError.put(error.getKey(), reason);
+                    } else {
+                        pending.listener.deleteFailed(batch.bucket, pending.key, reason);
+                    }
+                }
+                for (PendingDelete pending : remaining.values()) pending.listener.deleted(batch.bucket, pending.key);
+                remaining.clear();
+                remaining.putAll(failed);
+                log.warn("s3 exception deleting batch from "+batch.bucket+" (try #"+tries+"): "+failed.size()+" of "+keys.size()+" keys failed");
+
+            } catch (Exception e) {
+                attempts.failed(e);
+                log.error("unexpected exception deleting batch of "+keys.size()+" keys from "+batch.bucket+" (try #"+tries+"): "+e);
+                for (String key : remaining.keySet()) lastError.put(key, e.toString());
+            }
+        }
+
+        for (PendingDelete pending : remaining.values()) {
+            final String reason = lastError.containsKey(pending.key) ? lastError.get(pending.key) : "not attempted";
+            pending.listener.deleteFailed(batch.bucket, pending.key, reason);
+        }
+    }
+}
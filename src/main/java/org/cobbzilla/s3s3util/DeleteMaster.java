@@ -1,25 +1,20 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 public class DeleteMaster extends KeyMaster {
 
-    public DeleteMaster(AmazonS3Client client, S3ToS3Context context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(client, context, workQueue, executorService);
+    public DeleteMaster(S3Operations client, S3ToS3Context context, ThreadPoolExecutor executorService) {
+        super(client, context, executorService);
     }
 
-    protected String getPrefix(S3ToS3Options options) {
-        return options.hasDestPrefix() ? options.getDestPrefix() : options.getPrefix();
-    }
+    protected String getPrefix(S3ToS3Options options) { return options.getDestListingPrefix(); }
 
     protected String getBucket(S3ToS3Options options) { return options.getDestinationBucket(); }
 
     @Override
-    protected KeyJob getTask(S3ObjectSummary summary) {
-        return new KeyDeleteJob(client, context, summary, notifyLock);
+    protected KeyJob getTask(ListedKey key) {
+        return new KeyDeleteJob(client, context, key.getSummary());
     }
 }
@@ -0,0 +1,831 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A local copy of what the destination bucket holds (--dest-index): the size, ETag and Last-Modified time of every
+ * destination key under the destination prefix, so that jobs can decide whether a key needs copying without a HEAD
+ * request to the destination.
+ *
+ * The index is built from a full listing of the destination (a reconcile) when it does not exist yet, was built for
+ * another destination, or is older than --dest-index-max-age; from then on it is kept up to date by the copies and
+ * deletes this tool makes. Changes made to the destination by anything else are only picked up by the next reconcile.
+ *
+ * On disk, keys are sorted by their UTF-8 bytes (the order S3 lists them in) and stored in blocks of BLOCK_ENTRIES
+ * keys, each prefix-compressed against the key before it and then deflated. A directory of the first key of every
+ * block follows the blocks, so a lookup is a binary search of the directory and then of one block, all read through
+ * a memory-mapped view of the file. Each thread keeps the last block it decoded of each file, since keys are looked
+ * up in listing order.
+ *
+ * Files are never modified in place. Changes are kept in memory until there are FLUSH_ENTRIES of them; then a
+ * background thread writes them to a delta: a smaller file of the same format next to the index, which also records
+ * removed keys. Lookups try the deltas, newest first, before the main file. Once the deltas hold a MERGE_RATIO-th as
+ * many keys as the main file, they are merged into a new main file, so the cost of rewriting it is spread over a
+ * number of updates that grows with it; past MAX_DELTAS, they are merged into each other. Closing the index merges
+ * everything into the main file; deltas left by a run that did not close it are picked up by the next one.
+ */
+@Slf4j
+public class DestinationIndex {
+
+    public static final int BLOCK_ENTRIES = 512;
+    public static final int FLUSH_ENTRIES = 250000;
+    public static final int MERGE_RATIO = 4;
+    public static final int MAX_DELTAS = 4;
+    // decoded blocks kept per segment, shared by every thread, so that lookups of neighbouring keys decode each once
+    public static final int CACHED_BLOCKS = 8;
+
+    // records never straddle a mapping, so each one can be read from a single buffer
+    static final long CHUNK_BYTES = 1L << 30;
+
+    private static final long MAGIC = 0x5333533349445831L; // "S3S3IDX1"
+    private static final int VERSION = 1;
+    private static final int FOOTER_BYTES = 8 + 4 + 8 + 8;
+    private static final String DELTA_SUFFIX = ".delta";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** What the index holds for one destination key */
+    @AllArgsConstructor
+    public static class Entry {
+        @Getter private final long size;
+        @Getter private final String etag;
+        /** milliseconds since the epoch, or 0 if unknown */
+        @Getter private final long lastModified;
+
+        /** a key removed from the destination, as recorded in memory and in deltas */
+        boolean isRemoved() { return size < 0; }
+    }
+
+    private static final Entry REMOVED = new Entry(-1, null, 0);
+
+    private final File file;
+    private final String bucket;
+    private final String prefix;
+
+    private volatile Segment segment;
+    // newest first; segment is always written before deltas, and lookups read deltas first
+    private volatile List<Segment> deltas;
+    private int nextDelta;
+    private volatile Map<String, Entry> updates = new ConcurrentHashMap<String, Entry>();
+    // updates being written to a delta, still visible to lookups until the delta is in deltas
+    private volatile Map<String, Entry> flushing = Collections.emptyMap();
+    // put and remove hold the read lock, so that no update is made to a map after it has been handed to a flush
+    private final ReadWriteLock updateLock = new ReentrantReadWriteLock();
+    // once a flush has failed, updates are kept in memory until the index is closed
+    private volatile boolean flushFailed = false;
+    private volatile int flushEntries = FLUSH_ENTRIES;
+
+    // one daemon thread: a worker that fills the updates only hands them over
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "s3s3mirror-dest-index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+
+    private DestinationIndex(File file, String bucket, String prefix, Segment segment, List<Segment> deltas, int nextDelta) {
+        this.file = file;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.segment = segment;
+        this.deltas = deltas;
+        this.nextDelta = nextDelta;
+    }
+
+    /**
+     * Open the index, reconciling it with a listing of the destination first if it is missing, unreadable, built for
+     * another destination, or older than --dest-index-max-age.
+     */
+    public static DestinationIndex open(S3Operations client, S3ToS3Context context, File file) throws IOException {
+        final S3ToS3Options options = context.getOptions();
+        final String bucket = options.getDestinationBucket();
+        final String prefix = options.getDestListingPrefix() == null ? "" : options.getDestListingPrefix();
+
+        Segment segment = null;
+        if (file.exists()) {
+            try {
+                segment = Segment.open(file);
+            } catch (Exception e) {
+                log.warn("Destination index "+file+" could not be read, rebuilding it: "+e);
+            }
+        }
+        if (segment != null && (!segment.bucket.equals(bucket) || !segment.prefix.equals(prefix))) {
+            log.info("Destination index "+file+" was built for "+segment.bucket+"/"+segment.prefix+", rebuilding it for "+bucket+"/"+prefix);
+            segment = null;
+        }
+        if (segment != null && options.getDestIndexMaxAge() > 0) {
+            final long ageDays = TimeUnit.MILLISECONDS.toDays(System.currentTimeMillis() - segment.reconciled);
+            if (ageDays >= options.getDestIndexMaxAge()) {
+                log.info("Destination index "+file+" was last reconciled "+ageDays+" days ago, reconciling it");
+                segment = null;
+            }
+        }
+
+        final TreeMap<Integer, File> deltaFiles = deltaFiles(file);
+        final List<Segment> deltas = new ArrayList<Segment>();
+        if (segment != null) {
+            try {
+                for (File deltaFile : deltaFiles.descendingMap().values()) {
+                    final Segment delta = Segment.open(deltaFile);
+                    if (!delta.bucket.equals(bucket) || !delta.prefix.equals(prefix)) throw new IOException("built for "+delta.bucket+"/"+delta.prefix);
+                    deltas.add(delta);
+                }
+            } catch (Exception e) {
+                log.warn("Updates to destination index "+file+" could not be read, rebuilding it: "+e);
+                segment = null;
+            }
+        }
+        if (segment == null) {
+            deltas.clear();
+            delete(deltaFiles.values());
+            deltaFiles.clear();
+            segment = reconcile(client, context, file, bucket, prefix);
+        }
+
+        log.info("Destination index "+file+" has "+segment.entries+" keys"+(deltas.isEmpty() ? "" : " and "+deltas.size()+" deltas"));
+        return new DestinationIndex(file, bucket, prefix, segment, Collections.unmodifiableList(deltas),
+                                    deltaFiles.isEmpty() ? 0 : deltaFiles.lastKey() + 1);
+    }
+
+    // lists the whole destination prefix into a new file; S3 lists keys in the order the file needs
+    private static Segment reconcile(S3Operations client, S3ToS3Context context, File file, String bucket, String prefix) throws IOException {
+        log.info("Building destination index "+file+" from a listing of "+bucket+"/"+prefix);
+        final File temp = tempFile(file);
+        final Writer writer = new Writer(temp, bucket, prefix, System.currentTimeMillis());
+        try {
+            final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+            while (true) {
+                final ListObjectsV2Result page = list(client, context, request);
+                for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                    final Date lastModified = summary.getLastModified();
+                    writer.add(summary.getKey().getBytes(UTF8),
+                               new Entry(summary.getSize(), summary.getETag(), lastModified == null ? 0 : lastModified.getTime()));
+                }
+                if (!page.isTruncated()) break;
+                request.setContinuationToken(page.getNextContinuationToken());
+            }
+            writer.close();
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Segment.open(file);
+    }
+
+    private static ListObjectsV2Result list(S3Operations client, S3ToS3Context context, ListObjectsV2Request request) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(context.getOptions().getMaxRetries(), RateLimits.Operation.LIST);
+
+        Exception lastException = null;
+        while (attempts.next()) {
+            final int tries = attempts.getTries() - 1;
+            try {
+                context.getStats().s3getCount.increment();
+                final ListObjectsV2Result result = client.listObjectsV2(request);
+                attempts.succeeded();
+                return result;
+
+            } catch (AmazonS3Exception s3e) {
+                lastException = s3e;
+                attempts.failed(s3e);
+                log.error("s3 exception listing destination for index (try #"+tries+"): "+s3e);
+
+            } catch (Exception e) {
+                lastException = e;
+                attempts.failed(e);
+                log.error("unexpected exception listing destination for index (try #"+tries+"): "+e);
+            }
+        }
+        throw new IllegalStateException("Too many errors trying to list destination for index (tries="+attempts.getTries()+"): "+lastException, lastException);
+    }
+
+    /** @return what the destination holds for key, or null if it does not hold key */
+    public Entry get(String key) {
+        Entry entry = updates.get(key);
+        if (entry == null) entry = flushing.get(key);
+        if (entry == null) {
+            final byte[] bytes = key.getBytes(UTF8);
+            for (Segment delta : deltas) {
+                entry = delta.get(bytes);
+                if (entry != null) break;
+            }
+            if (entry == null) return segment.get(bytes);
+        }
+        return entry.isRemoved() ? null : entry;
+    }
+
+    /** record that key has been written to the destination */
+    public void put(String key, long size, String etag, Date lastModified) {
+        update(key, new Entry(size, etag, lastModified == null ? 0 : lastModified.getTime()));
+    }
+
+    /** record that key has been deleted from the destination */
+    public void remove(String key) { update(key, REMOVED); }
+
+    private void update(String key, Entry entry) {
+        updateLock.readLock().lock();
+        try {
+            updates.put(key, entry);
+        } finally {
+            updateLock.readLock().unlock();
+        }
+        if (updates.size() >= flushEntries && !flushFailed && flushQueued.compareAndSet(false, true)) {
+            flusher.submit(new Runnable() {
+                @Override public void run() { backgroundFlush(); }
+            });
+        }
+    }
+
+    private void backgroundFlush() {
+        // the updates made while a flush ran may be enough for the next one
+        do {
+            try {
+                flushUpdates();
+            } catch (Exception e) {
+                flushFailed = true;
+                log.error("Error writing updates to destination index "+file+", keeping them in memory until it is closed: "+e, e);
+            } finally {
+                flushQueued.set(false);
+            }
+        } while (updates.size() >= flushEntries && !flushFailed && flushQueued.compareAndSet(false, true));
+    }
+
+    /** write the updates so far to a new delta, then merge the files if the deltas have grown too big or too many */
+    synchronized void flushUpdates() throws IOException {
+        if (updates.isEmpty()) return;
+
+        updateLock.writeLock().lock();
+        try {
+            flushing = updates;
+            updates = new ConcurrentHashMap<String, Entry>();
+        } finally {
+            updateLock.writeLock().unlock();
+        }
+
+        try {
+            final List<byte[]> keys = new ArrayList<byte[]>(flushing.size());
+            for (String key : flushing.keySet()) keys.add(key.getBytes(UTF8));
+            Collections.sort(keys, KEY_ORDER);
+
+            final File deltaFile = deltaFile(file, nextDelta);
+            write(deltaFile, Collections.<Cursor>singletonList(new UpdateCursor(keys, flushing)), false);
+            final List<Segment> newDeltas = new ArrayList<Segment>(deltas.size() + 1);
+            newDeltas.add(Segment.open(deltaFile));
+            newDeltas.addAll(deltas);
+            nextDelta++;
+            deltas = Collections.unmodifiableList(newDeltas);
+            flushing = Collections.emptyMap();
+
+        } finally {
+            if (!flushing.isEmpty()) {
+                // the write failed: keep the updates for the next try, unless they have been superseded since
+                updateLock.writeLock().lock();
+                try {
+                    for (Map.Entry<String, Entry> update : flushing.entrySet()) {
+                        if (!updates.containsKey(update.getKey())) updates.put(update.getKey(), update.getValue());
+                    }
+                    flushing = Collections.emptyMap();
+                } finally {
+                    updateLock.writeLock().unlock();
+                }
+            }
+        }
+
+        long deltaEntries = 0;
+        for (Segment delta : deltas) deltaEntries += delta.entries;
+        if (deltaEntries >= Math.max(flushEntries, segment.entries / MERGE_RATIO)) {
+            mergeDeltas(true);
+        } else if (deltas.size() > MAX_DELTAS) {
+            mergeDeltas(false);
+        }
+    }
+
+    /** merge every delta into one new file: the main file if intoMain, otherwise a new delta */
+    private void mergeDeltas(boolean intoMain) throws IOException {
+        final List<Segment> merged = deltas;
+        if (merged.isEmpty()) return;
+        final List<Cursor> cursors = new ArrayList<Cursor>(merged.size() + 1);
+        for (Segment delta : merged) cursors.add(new SegmentCursor(delta));
+
+        if (intoMain) {
+            cursors.add(new SegmentCursor(segment));
+            final File temp = tempFile(file);
+            write(temp, cursors, true);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            segment = Segment.open(file);
+            deltas = Collections.emptyList();
+        } else {
+            final File deltaFile = deltaFile(file, nextDelta);
+            write(deltaFile, cursors, false);
+            nextDelta++;
+            deltas = Collections.singletonList(Segment.open(deltaFile));
+        }
+        // lookups still reading the old files keep their mappings
+        final List<File> mergedFiles = new ArrayList<File>(merged.size());
+        for (Segment delta : merged) mergedFiles.add(delta.file);
+        delete(mergedFiles);
+    }
+
+    /**
+     * Write the keys of cursors, which are ordered newest first, to a new file; a key in more than one takes its
+     * entry from the newest. If dropRemoved, removed keys are left out, otherwise they are written as such.
+     */
+    private void write(File target, List<Cursor> cursors, boolean dropRemoved) throws IOException {
+        final Writer writer = new Writer(target, bucket, prefix, segment.reconciled);
+        try {
+            for (Cursor cursor : cursors) cursor.next();
+            while (true) {
+                byte[] key = null;
+                for (Cursor cursor : cursors) {
+                    if (cursor.key != null && (key == null || KEY_ORDER.compare(cursor.key, key) < 0)) key = cursor.key;
+                }
+                if (key == null) break;
+                Entry entry = null;
+                for (Cursor cursor : cursors) {
+                    if (cursor.key != null && KEY_ORDER.compare(cursor.key, key) == 0) {
+                        if (entry == null) entry = cursor.entry;
+                        cursor.next();
+                    }
+                }
+                if (!dropRemoved || !entry.isRemoved()) writer.add(key, entry);
+            }
+            writer.close();
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /** merge every update so far into a new main file */
+    public synchronized void flush() throws IOException {
+        flushUpdates();
+        mergeDeltas(true);
+    }
+
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /** @return the number of keys in the main file, which updates only change once they are merged into it */
+    public long size() { return segment.entries; }
+
+    /** @return the number of deltas lookups go through before the main file */
+    int getDeltaCount() { return deltas.size(); }
+
+    void setFlushEntries(int flushEntries) { this.flushEntries = flushEntries; }
+
+    private static File tempFile(File file) { return new File(file.getPath()+".tmp"); }
+
+    private static File deltaFile(File file, int number) { return new File(file.getPath()+DELTA_SUFFIX+number); }
+
+    /** @return the deltas of the index file, by number: the higher the number, the newer the delta */
+    private static TreeMap<Integer, File> deltaFiles(File file) {
+        final TreeMap<Integer, File> deltaFiles = new TreeMap<Integer, File>();
+        final File[] siblings = file.getAbsoluteFile().getParentFile().listFiles();
+        if (siblings == null) return deltaFiles;
+        final String start = file.getName() + DELTA_SUFFIX;
+        for (File sibling : siblings) {
+            final String name = sibling.getName();
+            if (name.startsWith(start) && name.length() > start.length() && name.substring(start.length()).matches("[0-9]+")) {
+                deltaFiles.put(Integer.parseInt(name.substring(start.length())), sibling);
+            }
+        }
+        return deltaFiles;
+    }
+
+    private static void delete(Collection<File> files) {
+        for (File f : files) {
+            if (!f.delete()) log.warn("Could not delete "+f);
+        }
+    }
+
+    /** Steps through the keys of a file or of a map of updates, in KEY_ORDER; key is null once there are no more */
+    private static abstract class Cursor {
+        byte[] key;
+        Entry entry;
+        abstract void next();
+    }
+
+    private static class UpdateCursor extends Cursor {
+        private final Iterator<byte[]> keys;
+        private final Map<String, Entry> updates;
+
+        UpdateCursor(List<byte[]> sortedKeys, Map<String, Entry> updates) {
+            this.keys = sortedKeys.iterator();
+            this.updates = updates;
+        }
+
+        @Override void next() {
+            key = keys.hasNext() ? keys.next() : null;
+            entry = key == null ? null : updates.get(new String(key, UTF8));
+        }
+    }
+
+    private static class SegmentCursor extends Cursor {
+        private final Segment segment;
+        private Block block;
+        private int number = -1;
+        private int index = 0;
+
+        SegmentCursor(Segment segment) { this.segment = segment; }
+
+        @Override void next() {
+            while (block == null || index >= block.keys.length) {
+                if (++number >= segment.blocks) {
+                    key = null;
+                    entry = null;
+                    return;
+                }
+                block = segment.decode(number);
+                index = 0;
+            }
+            key = block.keys[index];
+            entry = block.entries[index];
+            index++;
+        }
+    }
+
+    /** orders keys by their UTF-8 bytes, as S3 does */
+    static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override public int compare(byte[] a, byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+                if (cmp != 0) return cmp;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /**
+     * Writes an index file: a header, the blocks, the directory (one record per block: its first key, offset and
+     * lengths), the offsets of the directory records, and a footer locating them.
+     */
+    private static class Writer {
+        private final File file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private long position = 0;
+
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private byte[] firstKey;
+        private byte[] lastKey;
+        private int blockEntries = 0;
+        private long entries = 0;
+
+        private final List<byte[]> directoryKeys = new ArrayList<byte[]>();
+        private final List<long[]> directory = new ArrayList<long[]>(); // offset, compressed length, raw length
+        private final Deflater deflater = new Deflater();
+
+        Writer(File file, String bucket, String prefix, long reconciled) throws IOException {
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 256 * 1024));
+            final ByteArrayOutputStream header = new ByteArrayOutputStream();
+            final DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeLong(MAGIC);
+            headerOut.writeInt(VERSION);
+            headerOut.writeLong(reconciled);
+            headerOut.writeUTF(bucket);
+            headerOut.writeUTF(prefix);
+            write(header.toByteArray());
+        }
+
+        void add(byte[] key, Entry entry) throws IOException {
+            if (lastKey != null && KEY_ORDER.compare(lastKey, key) >= 0) {
+                throw new IllegalStateException("keys out of order: "+new String(key, UTF8)+" after "+new String(lastKey, UTF8));
+            }
+            if (blockEntries == BLOCK_ENTRIES) finishBlock();
+            if (blockEntries == 0) {
+                firstKey = key;
+                lastKey = null;
+            }
+            final int shared = lastKey == null ? 0 : sharedPrefix(lastKey, key);
+            writeVarint(blockOut, shared);
+            writeVarint(blockOut, key.length - shared);
+            blockOut.write(key, shared, key.length - shared);
+            writeVarint(blockOut, entry.getSize());
+            writeVarint(blockOut, entry.getLastModified());
+            if (entry.getEtag() == null) {
+                writeVarint(blockOut, 0);
+            } else {
+                final byte[] etag = entry.getEtag().getBytes(UTF8);
+                writeVarint(blockOut, etag.length + 1);
+                blockOut.write(etag);
+            }
+            lastKey = key;
+            blockEntries++;
+            entries++;
+        }
+
+        private void finishBlock() throws IOException {
+            if (blockEntries == 0) return;
+            final byte[] raw = block.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2);
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            align(compressed.size());
+            directoryKeys.add(firstKey);
+            directory.add(new long[] {position, compressed.size(), raw.length});
+            write(compressed.toByteArray());
+            block.reset();
+            blockEntries = 0;
+        }
+
+        void close() throws IOException {
+            try {
+                finishBlock();
+                final long[] recordOffsets = new long[directory.size()];
+                for (int i = 0; i < directory.size(); i++) {
+                    final byte[] key = directoryKeys.get(i);
+                    final ByteArrayOutputStream record = new ByteArrayOutputStream(key.length + 20);
+                    final DataOutputStream recordOut = new DataOutputStream(record);
+                    recordOut.writeInt(key.length);
+                    recordOut.write(key);
+                    recordOut.writeLong(directory.get(i)[0]);
+                    recordOut.writeInt((int) directory.get(i)[1]);
+                    recordOut.writeInt((int) directory.get(i)[2]);
+                    align(record.size());
+                    recordOffsets[i] = position;
+                    write(record.toByteArray());
+                }
+                // longs never straddle a mapping once they start on a multiple of 8
+                pad((8 - position % 8) % 8);
+                final long offsetsStart = position;
+                for (long offset : recordOffsets) {
+                    out.writeLong(offset);
+                    position += 8;
+                }
+                align(FOOTER_BYTES);
+                out.writeLong(offsetsStart);
+                out.writeInt(recordOffsets.length);
+                out.writeLong(entries);
+                out.writeLong(MAGIC);
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        void abort() {
+            try { out.close(); } catch (Exception ignored) {}
+            deflater.end();
+            if (!file.delete()) log.warn("Could not delete "+file);
+        }
+
+        // start the next record of this length in a new mapping if it would not fit in the current one
+        private void align(int length) throws IOException {
+            final long left = CHUNK_BYTES - position % CHUNK_BYTES;
+            if (length > left) pad(left);
+        }
+
+        private void pad(long bytes) throws IOException {
+            for (long i = 0; i < bytes; i++) out.write(0);
+            position += bytes;
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        private static int sharedPrefix(byte[] a, byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            int shared = 0;
+            while (shared < length && a[shared] == b[shared]) shared++;
+            return shared;
+        }
+
+        private static void writeVarint(DataOutputStream out, long value) throws IOException {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    /** A decoded block */
+    private static class Block {
+        final int number;
+        final byte[][] keys;
+        final Entry[] entries;
+        final byte[] nextFirstKey; // null for the last block
+
+        Block(int number, byte[][] keys, Entry[] entries, byte[] nextFirstKey) {
+            this.number = number;
+            this.keys = keys;
+            this.entries = entries;
+            this.nextFirstKey = nextFirstKey;
+        }
+    }
+
+    /** A read-only, memory-mapped index file */
+    private static class Segment {
+        final File file;
+        private final MappedByteBuffer[] chunks;
+        // block n is kept in slot n % CACHED_BLOCKS; blocks are immutable, so they are shared without locking
+        private final AtomicReferenceArray<Block> cachedBlocks = new AtomicReferenceArray<Block>(CACHED_BLOCKS);
+        final long reconciled;
+        final String bucket;
+        final String prefix;
+        final long entries;
+        private final long offsetsStart;
+        private final int blocks;
+
+        private Segment(File file, MappedByteBuffer[] chunks, long length) throws IOException {
+            this.file = file;
+            this.chunks = chunks;
+            final ByteBuffer footer = at(length - FOOTER_BYTES);
+            offsetsStart = footer.getLong();
+            blocks = footer.getInt();
+            entries = footer.getLong();
+            if (footer.getLong() != MAGIC) throw new IOException("not a destination index");
+
+            final DataInputStream header = new DataInputStream(new ByteBufferInputStream(at(0)));
+            if (header.readLong() != MAGIC) throw new IOException("not a destination index");
+            if (header.readInt() != VERSION) throw new IOException("unsupported destination index version");
+            reconciled = header.readLong();
+            bucket = header.readUTF();
+            prefix = header.readUTF();
+        }
+
+        static Segment open(File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel channel = raf.getChannel();
+                final long length = channel.size();
+                if (length < FOOTER_BYTES) throw new IOException("not a destination index");
+                final MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length + CHUNK_BYTES - 1) / CHUNK_BYTES)];
+                for (int i = 0; i < chunks.length; i++) {
+                    final long start = i * CHUNK_BYTES;
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_BYTES, length - start));
+                }
+                return new Segment(file, chunks, length);
+            } finally {
+                raf.close(); // the mappings stay valid
+            }
+        }
+
+        private ByteBuffer at(long offset) {
+            final ByteBuffer buffer = chunks[(int) (offset / CHUNK_BYTES)].duplicate();
+            buffer.position((int) (offset % CHUNK_BYTES));
+            return buffer;
+        }
+
+        private ByteBuffer directoryRecord(int block) {
+            return at(at(offsetsStart + 8L * block).getLong());
+        }
+
+        private byte[] firstKey(int block) {
+            final ByteBuffer record = directoryRecord(block);
+            final byte[] key = new byte[record.getInt()];
+            record.get(key);
+            return key;
+        }
+
+        Entry get(byte[] key) {
+            if (blocks == 0) return null;
+            Block block = cachedBlock(key);
+            if (block == null) {
+                // the last block whose first key is not after key
+                int low = 0;
+                int high = blocks - 1;
+                while (low < high) {
+                    final int mid = (low + high + 1) >>> 1;
+                    if (KEY_ORDER.compare(firstKey(mid), key) <= 0) low = mid; else high = mid - 1;
+                }
+                final int slot = low % CACHED_BLOCKS;
+                block = cachedBlocks.get(slot);
+                if (block == null || block.number != low) {
+                    block = decode(low);
+                    cachedBlocks.set(slot, block);
+                }
+            }
+            final int found = Arrays.binarySearch(block.keys, key, KEY_ORDER);
+            return found < 0 ? null : block.entries[found];
+        }
+
+        /** @return the cached block that key belongs in, or null if it is not cached */
+        private Block cachedBlock(byte[] key) {
+            for (int i = 0; i < CACHED_BLOCKS; i++) {
+                final Block block = cachedBlocks.get(i);
+                if (block != null && (block.number == 0 || KEY_ORDER.compare(key, block.keys[0]) >= 0)
+                        && (block.nextFirstKey == null || KEY_ORDER.compare(key, block.nextFirstKey) < 0)) {
+                    return block;
+                }
+            }
+            return null;
+        }
+
+        private Block decode(int number) {
+            final ByteBuffer record = directoryRecord(number);
+            record.position(record.position() + 4 + record.getInt());
+            final ByteBuffer compressed = at(record.getLong());
+            final byte[] input = new byte[record.getInt()];
+            final byte[] raw = new byte[record.getInt()];
+            compressed.get(input);
+
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input);
+                if (inflater.inflate(raw) != raw.length) throw new IllegalStateException("truncated block "+number+" in destination index");
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("corrupt block "+number+" in destination index: "+e, e);
+            } finally {
+                inflater.end();
+            }
+
+            final ByteBuffer in = ByteBuffer.wrap(raw);
+            final List<byte[]> keys = new ArrayList<byte[]>(BLOCK_ENTRIES);
+            final List<Entry> entries = new ArrayList<Entry>(BLOCK_ENTRIES);
+            byte[] previous = null;
+            while (in.hasRemaining()) {
+                final int shared = (int) readVarint(in);
+                final byte[] key = new byte[shared + (int) readVarint(in)];
+                if (shared > 0) System.arraycopy(previous, 0, key, 0, shared);
+                in.get(key, shared, key.length - shared);
+                final long size = readVarint(in);
+                final long lastModified = readVarint(in);
+                final int etagLength = (int) readVarint(in);
+                String etag = null;
+                if (etagLength > 0) {
+                    final byte[] etagBytes = new byte[etagLength - 1];
+                    in.get(etagBytes);
+                    etag = new String(etagBytes, UTF8);
+                }
+                keys.add(key);
+                entries.add(new Entry(size, etag, lastModified));
+                previous = key;
+            }
+            return new Block(number, keys.toArray(new byte[keys.size()][]), entries.toArray(new Entry[entries.size()]),
+                             number + 1 < blocks ? firstKey(number + 1) : null);
+        }
+
+        private static long readVarint(ByteBuffer in) {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                final byte b = in.get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+                shift += 7;
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        ByteBufferInputStream(ByteBuffer buffer) { this.buffer = buffer; }
+        @Override public int read() { return buffer.hasRemaining() ? buffer.get() & 0xff : -1; }
+    }
+}
@@ -0,0 +1,116 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The items with the largest totals in a stream of weighted items, in bounded memory, by the Space-Saving algorithm
+ * (Metwally, Agrawal and El Abbadi): at most capacity items are counted at a time, and an item that comes along once
+ * they all are takes the place of the one with the smallest count, starting from that count, which is then as much
+ * as its own count may be over the truth. Counts are never under the truth, and any item whose total is more than
+ * 1/capacity of the total of all items is sure to be counted.
+ *
+ * Items are spread by hash over STRIPES sketches, each with its own lock and capacity, so that threads adding
+ * different items seldom wait for each other. An item always goes to the same stripe, so the guarantees above hold
+ * for each stripe, and so for the whole.
+ */
+public class HeavyHitters {
+
+    public static final int STRIPES = 8;
+
+    /** an item and its count, as of getTop */
+    public static class Entry {
+        @Getter private final String item;
+        @Getter private final long count;
+        /** how much count may be over the truth */
+        @Getter private final long error;
+
+        Entry(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        @Override public String toString() { return item + "=" + count + (error == 0 ? "" : "(+" + error + ")"); }
+    }
+
+    private static class Counted {
+        long count;
+        long error;
+    }
+
+    private static class Stripe {
+        final Map<String, Counted> counted = new HashMap<String, Counted>();
+        long total;
+    }
+
+    private final int capacity;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** @param capacity the most items counted at a time by each stripe */
+    public HeavyHitters(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+    }
+
+    public void add(String item, long weight) {
+        if (weight <= 0) return;
+        final Stripe stripe = stripes[(item.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        synchronized (stripe) {
+            stripe.total += weight;
+            Counted counted = stripe.counted.get(item);
+            if (counted == null) {
+                if (stripe.counted.size() < capacity) {
+                    counted = new Counted();
+                } else {
+                    // the smallest count gives way: a scan, but only of capacity entries, and only for new items
+                    String smallest = null;
+                    for (Map.Entry<String, Counted> e : stripe.counted.entrySet()) {
+                        if (smallest == null || e.getValue().count < counted.count) {
+                            smallest = e.getKey();
+                            counted = e.getValue();
+                        }
+                    }
+                    stripe.counted.remove(smallest);
+                    counted.error = counted.count;
+                }
+                stripe.counted.put(item, counted);
+            }
+            counted.count += weight;
+        }
+    }
+
+    /** @return the total weight of every item added */
+    public long getTotal() {
+        long total = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) { total += stripe.total; }
+        }
+        return total;
+    }
+
+    /** @return the n items with the largest counts, largest first */
+    public List<Entry> getTop(int n) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, Counted> e : stripe.counted.entrySet()) {
+                    entries.add(new Entry(e.getKey(), e.getValue().count, e.getValue().error));
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) {
+                if (a.count != b.count) return a.count > b.count ? -1 : 1;
+                return a.item.compareTo(b.item);
+            }
+        });
+        return new ArrayList<Entry>(entries.subList(0, Math.min(n, entries.size())));
+    }
+}
@@ -0,0 +1,434 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static org.cobbzilla.s3s3util.S3ToS3Constants.MB;
+
+/**
+ * Records the progress of a mirror run (--journal) so that a later run can pick up where it stopped (--resume).
+ *
+ * The journal is an append-only file of checksummed records, written through a memory-mapped buffer, so a record
+ * survives the process dying as soon as it has been written; the buffer is also forced to disk every
+ * FORCE_INTERVAL_MILLIS. It records every listing partition (see KeyListingPartition), and every key whose job has
+ * finished, by its position in its partition's listing. From those, each partition has a watermark: the last key
+ * before which every listed key has finished. A resumed run lists each unfinished partition from its watermark, and
+ * skips the few keys after the watermark that had already finished. Keys whose jobs failed are retried, including keys
+ * found only in the destination (see ListedKey.isRemoved), which are marked as such.
+ *
+ * Once the file has grown by COMPACT_BYTES, it is rewritten with only the current state of each partition.
+ */
+@Slf4j
+public class Journal {
+
+    public static final int INITIAL_CAPACITY = (int) (16 * MB);
+    public static final long COMPACT_BYTES = 64 * MB;
+    public static final long FORCE_INTERVAL_MILLIS = 1000;
+
+    private static final byte HEADER = 'H';          // description of the run
+    private static final byte LISTER = 'B';          // lister name: a lister has begun (written when compacting)
+    private static final byte PARTITION = 'P';       // lister, id, startAfter, endAt, contiguous: a partition, or its new end
+    private static final byte KEY_DONE = 'K';        // id, seq, key: a listed key has finished
+    private static final byte SKIP = 'S';            // id, key: a key that finished in an earlier run
+    private static final byte LISTED = 'L';          // id, count: a partition has been listed, and had this many keys
+    private static final byte FAILED = 'F';          // lister, key: a key's job failed
+    private static final byte FAILED_REMOVED = 'R';  // lister, key: the job of a key found only in the destination failed
+    private static final byte CLEARED = 'C';         // lister, key: a failed key has since succeeded
+
+    /** What is known about one listing partition */
+    private static class PartitionProgress {
+        final String lister;
+        final int id;
+        final String startAfter;
+        String endAt;
+        String watermark;
+        long contiguous;
+        long listed = -1;
+        final TreeMap<Long, String> ahead = new TreeMap<Long, String>();
+        final Set<String> skip = new HashSet<String>();
+
+        PartitionProgress(String lister, int id, String startAfter, String endAt, long contiguous) {
+            this.lister = lister;
+            this.id = id;
+            this.startAfter = startAfter;
+            this.endAt = endAt;
+            this.watermark = startAfter;
+            this.contiguous = contiguous;
+        }
+
+        void done(long seq, String key) {
+            skip.remove(key);
+            if (seq < contiguous) return;
+            ahead.put(seq, key);
+            while (!ahead.isEmpty() && ahead.firstKey() == contiguous) {
+                watermark = ahead.remove(contiguous);
+                contiguous++;
+            }
+        }
+
+        boolean isFinished() { return listed >= 0 && contiguous >= listed; }
+    }
+
+    private final File file;
+    private final String description;
+
+    private String header;
+    private final Set<String> listers = new LinkedHashSet<String>();
+    private final Map<Integer, PartitionProgress> partitions = new TreeMap<Integer, PartitionProgress>();
+    private final Map<String, Set<String>> failed = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> failedRemoved = new HashMap<String, Set<String>>();
+    private int nextPartitionId = 0;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long compactedSize;
+    private long lastForce = System.currentTimeMillis();
+    private final CRC32 crc = new CRC32();
+
+    private Journal(File file, String description) {
+        this.file = file;
+        this.description = description;
+    }
+
+    /** @return what is being mirrored, so a journal is not resumed with different options */
+    public static String describe(S3ToS3Options options) {
+        return options.getAction().trim().toLowerCase()+" "+options.getSourceBucket()+"/"+(options.hasPrefix() ? options.getPrefix() : "")
+                +" to "+options.getDestinationBucket()+"/"+(options.hasDestPrefix() ? options.getDestPrefix() : "")
+                +(options.isDeleteRemoved() ? " deleting removed" : "")+(options.isMergeListings() ? " merged" : "");
+    }
+
+    /**
+     * @param file the journal file
+     * @param options the options of this run
+     * @param resume if true, the state recorded in the file is loaded; otherwise any existing file is replaced
+     */
+    public static Journal open(File file, S3ToS3Options options, boolean resume) throws IOException {
+        final Journal journal = new Journal(file, describe(options));
+        if (resume) {
+            if (!file.exists()) throw new FileNotFoundException("journal not found: "+file.getAbsolutePath());
+            journal.replay();
+            if (!journal.description.equals(journal.header)) {
+                throw new IllegalArgumentException("journal "+file+" is for a different run ("+journal.header+"), not "+journal.description);
+            }
+            journal.restart();
+            log.info("resuming from journal "+file+": "+journal.partitions.size()+" partitions left, "
+                    +journal.countFailed()+" failed keys to retry");
+        }
+        journal.header = journal.description;
+        journal.compact();
+        return journal;
+    }
+
+    /**
+     * Called when a KeyLister starts.
+     * @return null if the lister has not started any partitions before (so it should list everything), otherwise
+     * the partitions it has left to list, by id, each starting from its watermark
+     */
+    public synchronized Map<Integer, KeyListingPartition> begin(String lister) {
+        if (!listers.contains(lister)) return null;
+        final Map<Integer, KeyListingPartition> remaining = new LinkedHashMap<Integer, KeyListingPartition>();
+        for (PartitionProgress p : partitions.values()) {
+            if (p.lister.equals(lister)) remaining.put(p.id, new KeyListingPartition(p.watermark, p.endAt, true));
+        }
+        return remaining;
+    }
+
+    /** @return the id of a new partition */
+    public synchronized int partitionStarted(String lister, KeyListingPartition partition) throws IOException {
+        final int id = nextPartitionId;
+        write(partitionRecord(lister, id, partition.getStartAfter(), partition.getEndAt(), 0));
+        return id;
+    }
+
+    /** Record that a partition now ends earlier, because the rest of it has been split off */
+    public synchronized void partitionNarrowed(int id, KeyListingPartition partition) throws IOException {
+        final PartitionProgress p = partitions.get(id);
+        if (p != null) write(partitionRecord(p.lister, id, p.startAfter, partition.getEndAt(), p.contiguous));
+    }
+
+    /** Record that every key of a partition has been listed; it is finished once that many keys are done */
+    public synchronized void partitionListed(int id, long keys) throws IOException {
+        if (partitions.containsKey(id)) write(record(LISTED).writeInt(id).writeLong(keys));
+    }
+
+    /** @return true if the key finished in an earlier run, and need not be handled again */
+    public synchronized boolean isDone(int id, String key) {
+        final PartitionProgress p = partitions.get(id);
+        return p != null && p.skip.contains(key);
+    }
+
+    /** @return keys whose jobs failed in an earlier run */
+    public synchronized Set<String> getFailedKeys(String lister) {
+        final Set<String> keys = failed.get(lister);
+        return keys == null ? Collections.<String>emptySet() : new TreeSet<String>(keys);
+    }
+
+    /** @return true if a failed key was found only in the destination, so retrying it means deleting it there */
+    public synchronized boolean isFailedRemoved(String lister, String key) {
+        final Set<String> keys = failedRemoved.get(lister);
+        return keys != null && keys.contains(key);
+    }
+
+    /** Record that a listed key was skipped because isDone was true for it */
+    public synchronized void keySkipped(int id, long seq, String key) throws IOException {
+        if (partitions.containsKey(id)) write(record(KEY_DONE).writeInt(id).writeLong(seq).writeUTF(key));
+    }
+
+    /**
+     * Record that a key's job has finished.
+     * @param id the partition the key was listed from, or -1 if it is a retry of a failed key
+     * @param seq the position of the key in the partition's listing
+     * @param key the key, relative to the lister's prefix (or, if removed, the compare prefix)
+     * @param removed true if the key was found only in the destination
+     */
+    public synchronized void keyDone(String lister, int id, long seq, String key, boolean removed, boolean succeeded) throws IOException {
+        if (id >= 0 && partitions.containsKey(id)) write(record(KEY_DONE).writeInt(id).writeLong(seq).writeUTF(key));
+        final Set<String> failedKeys = failed.get(lister);
+        if (!succeeded) {
+            if (failedKeys == null || !failedKeys.contains(key) || isFailedRemoved(lister, key) != removed) {
+                write(record(removed ? FAILED_REMOVED : FAILED).writeUTF(lister).writeUTF(key));
+            }
+        } else if (failedKeys != null && failedKeys.contains(key)) {
+            write(record(CLEARED).writeUTF(lister).writeUTF(key));
+        }
+        if (buffer.position() - compactedSize > COMPACT_BYTES) compact();
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel == null) return;
+        buffer.force();
+        channel.close();
+        channel = null;
+        buffer = null;
+    }
+
+    private int countFailed() {
+        int count = 0;
+        for (Set<String> keys : failed.values()) count += keys.size();
+        return count;
+    }
+
+    /** A record being built; write() appends it to the journal and applies it to the state */
+    private static class Record {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        Record writeUTF(String s) throws IOException { out.writeUTF(s); return this; }
+        Record writeInt(int i) throws IOException { out.writeInt(i); return this; }
+        Record writeLong(long l) throws IOException { out.writeLong(l); return this; }
+        Record writeNullable(String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) out.writeUTF(s);
+            return this;
+        }
+    }
+
+    private static Record record(byte type) throws IOException {
+        final Record record = new Record();
+        record.out.writeByte(type);
+        return record;
+    }
+
+    private static Record partitionRecord(String lister, int id, String startAfter, String endAt, long contiguous) throws IOException {
+        return record(PARTITION).writeUTF(lister).writeInt(id).writeNullable(startAfter).writeNullable(endAt).writeLong(contiguous);
+    }
+
+    private void write(Record record) throws IOException {
+        final byte[] payload = record.bytes.toByteArray();
+        append(payload);
+        apply(payload);
+    }
+
+    private void append(byte[] payload) throws IOException {
+        // a zero length (the file's initial contents) marks the end of the records
+        final int needed = 8 + payload.length + 4;
+        if (buffer.remaining() < needed) {
+            final int position = buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(2L * buffer.capacity(), position + needed));
+            buffer.position(position);
+        }
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+
+        final long now = System.currentTimeMillis();
+        if (now - lastForce > FORCE_INTERVAL_MILLIS) {
+            buffer.force();
+            lastForce = now;
+        }
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final byte type = in.readByte();
+        switch (type) {
+            case HEADER:
+                header = in.readUTF();
+                break;
+
+            case LISTER:
+                listers.add(in.readUTF());
+                break;
+
+            case PARTITION: {
+                final String lister = in.readUTF();
+                final int id = in.readInt();
+                final String startAfter = readNullable(in);
+                final String endAt = readNullable(in);
+                final long contiguous = in.readLong();
+                listers.add(lister);
+                final PartitionProgress existing = partitions.get(id);
+                if (existing != null) {
+                    existing.endAt = endAt;
+                } else {
+                    partitions.put(id, new PartitionProgress(lister, id, startAfter, endAt, contiguous));
+                }
+                nextPartitionId = Math.max(nextPartitionId, id + 1);
+                break;
+            }
+
+            case KEY_DONE: {
+                final PartitionProgress p = partitions.get(in.readInt());
+                if (p != null) {
+                    p.done(in.readLong(), in.readUTF());
+                    if (p.isFinished()) partitions.remove(p.id);
+                }
+                break;
+            }
+
+            case SKIP: {
+                final PartitionProgress p = partitions.get(in.readInt());
+                if (p != null) p.skip.add(in.readUTF());
+                break;
+            }
+
+            case LISTED: {
+                final PartitionProgress p = partitions.get(in.readInt());
+                if (p != null) {
+                    p.listed = in.readLong();
+                    if (p.isFinished()) partitions.remove(p.id);
+                }
+                break;
+            }
+
+            case FAILED:
+            case FAILED_REMOVED: {
+                final String lister = in.readUTF();
+                final String key = in.readUTF();
+                add(failed, lister, key);
+                if (type == FAILED_REMOVED) {
+                    add(failedRemoved, lister, key);
+                } else {
+                    remove(failedRemoved, lister, key);
+                }
+                break;
+            }
+
+            case CLEARED: {
+                final String lister = in.readUTF();
+                final String key = in.readUTF();
+                remove(failed, lister, key);
+                remove(failedRemoved, lister, key);
+                break;
+            }
+
+            default:
+                throw new IOException("unknown journal record type: "+type);
+        }
+    }
+
+    private static void add(Map<String, Set<String>> keys, String lister, String key) {
+        Set<String> listerKeys = keys.get(lister);
+        if (listerKeys == null) keys.put(lister, listerKeys = new HashSet<String>());
+        listerKeys.add(key);
+    }
+
+    private static void remove(Map<String, Set<String>> keys, String lister, String key) {
+        final Set<String> listerKeys = keys.get(lister);
+        if (listerKeys != null) listerKeys.remove(key);
+    }
+
+    private void replay() throws IOException {
+        final ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        int records = 0;
+        while (bytes.remaining() >= 8) {
+            final int length = bytes.getInt();
+            final int checksum = bytes.getInt();
+            if (length <= 0 || length > bytes.remaining()) break;
+            final byte[] payload = new byte[length];
+            bytes.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                // the process died while writing this record; everything before it is intact
+                log.warn("journal "+file+" ends with an incomplete record, ignoring it");
+                break;
+            }
+            apply(payload);
+            records++;
+        }
+        log.info("read "+records+" records from journal "+file);
+    }
+
+    /**
+     * Prepare the loaded state for a new run: each partition will be listed again from its watermark, so the keys it
+     * had finished beyond the watermark are to be skipped, and their positions start again from zero.
+     */
+    private void restart() {
+        for (PartitionProgress p : new ArrayList<PartitionProgress>(partitions.values())) {
+            final PartitionProgress restarted = new PartitionProgress(p.lister, p.id, p.watermark, p.endAt, 0);
+            restarted.skip.addAll(p.skip);
+            restarted.skip.addAll(p.ahead.values());
+            partitions.put(p.id, restarted);
+        }
+    }
+
+    /** Rewrite the journal with just the current state, then carry on appending to the new file */
+    private void compact() throws IOException {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        records.add(record(HEADER).writeUTF(header).bytes.toByteArray());
+        for (String lister : listers) records.add(record(LISTER).writeUTF(lister).bytes.toByteArray());
+        for (PartitionProgress p : partitions.values()) {
+            records.add(partitionRecord(p.lister, p.id, p.watermark, p.endAt, p.contiguous).bytes.toByteArray());
+            for (Map.Entry<Long, String> done : p.ahead.entrySet()) {
+                records.add(record(KEY_DONE).writeInt(p.id).writeLong(done.getKey()).writeUTF(done.getValue()).bytes.toByteArray());
+            }
+            for (String key : p.skip) records.add(record(SKIP).writeInt(p.id).writeUTF(key).bytes.toByteArray());
+            if (p.listed >= 0) records.add(record(LISTED).writeInt(p.id).writeLong(p.listed).bytes.toByteArray());
+        }
+        for (Map.Entry<String, Set<String>> keys : failed.entrySet()) {
+            for (String key : keys.getValue()) {
+                final byte type = isFailedRemoved(keys.getKey(), key) ? FAILED_REMOVED : FAILED;
+                records.add(record(type).writeUTF(keys.getKey()).writeUTF(key).bytes.toByteArray());
+            }
+        }
+
+        final File compacted = new File(file.getAbsolutePath()+".compacting");
+        final FileChannel newChannel = FileChannel.open(compacted.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final FileChannel oldChannel = channel;
+        channel = newChannel;
+        buffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+        for (byte[] record : records) append(record);
+        buffer.force();
+        lastForce = System.currentTimeMillis();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (oldChannel != null) oldChannel.close();
+        compactedSize = buffer.position();
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -1,6 +1,5 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -11,20 +10,23 @@ import org.slf4j.Logger;
 @Slf4j
 public class KeyCopyJob extends BaseKeyJob {
 
-    public KeyCopyJob(AmazonS3Client client, S3ToS3Context context, S3ObjectSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    public KeyCopyJob(S3Operations client, S3ToS3Context context, S3ObjectSummary summary) {
+        super(client, context, summary);
    }
 
     @Override public Logger getLog() { return log; }
 
+    @Override protected boolean needsSourceMetadata() { return false; }
+
     @Override
     boolean execute(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
         String key = summary.getKey();
         S3ToS3Options options = context.getOptions();
         boolean verbose = options.isVerbose();
-        int maxRetries= options.getMaxRetries();
         S3ToS3Stats stats = context.getStats();
-        for (int tries = 0; tries < maxRetries; tries++) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.COPY, summary.getSize());
+        while (attempts.next()) {
+            final int tries = attempts.getTries() - 1;
             if (verbose) log.info("copying (try #" + tries + "): " + key + " to: " + keydest);
             final CopyObjectRequest request = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest);
 
@@ -34,29 +36,29 @@ public class KeyCopyJob extends BaseKeyJob {
 				request.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
 			}
             
-            request.setNewObjectMetadata(sourceMetadata);
+            // without new metadata, S3 copies the source object's metadata (the COPY metadata directive)
+            if (sourceMetadata != null) request.setNewObjectMetadata(sourceMetadata);
             if (options.isCrossAccountCopy()) {
                 request.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
-            } else {
+            } else if (objectAcl != null) {
                 request.setAccessControlList(objectAcl);
             }
             try {
-                client.copyObject(request);
-                stats.s3copyCount.incrementAndGet();
-                stats.bytesCopied.addAndGet(sourceMetadata.getContentLength());
+                final CopyObjectResult result = client.copyObject(request);
+                copiedEtag = result.getETag();
+                copiedLastModified = result.getLastModifiedDate();
+                attempts.succeeded();
+                stats.s3copyCount.increment();
+                stats.bytesCopied.add(summary.getSize());
                 if (verbose) log.info("successfully copied (on try #" + tries + "): " + key + " to: " + keydest);
                 return true;
             } catch (AmazonS3Exception s3e) {
+                attempts.failed(s3e);
                 log.error("s3 exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + s3e);
             } catch (Exception e) {
+                attempts.failed(e);
                 log.error("unexpected exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + e);
             }
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                log.error("interrupted while waiting to retry key: " + key);
-                return false;
-            }
         }
         return false;
     }
@@ -1,19 +1,22 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 
 import java.util.Date;
 
 @Slf4j
-public class KeyDeleteJob extends BaseKeyJob {
+public class KeyDeleteJob extends BaseKeyJob implements DeleteBatcher.Listener {
 
     private String keysrc;
 
-    public KeyDeleteJob (AmazonS3Client client, S3ToS3Context context, S3ObjectSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    /** set when a merged listing already established that the key does not exist in the source bucket */
+    @Setter private boolean removedFromSource = false;
+
+    public KeyDeleteJob (S3Operations client, S3ToS3Context context, S3ObjectSummary summary) {
+        super(client, context, summary);
 
         final S3ToS3Options options = context.getOptions();
         keysrc = summary.getKey(); // NOTE: summary.getKey is the key in the destination bucket
@@ -25,62 +28,103 @@ public class KeyDeleteJob extends BaseKeyJob {
 
     @Override public Logger getLog() { return log; }
 
+    /**
+     * Deleting needs neither the source metadata nor its ACL, so unlike BaseKeyJob.run this goes
+     * straight from shouldAction to execute.
+     */
+    @Override
+    public void run() {
+        final S3ToS3Options options = context.getOptions();
+        final String key = summary.getKey();
+        try {
+            if (!shouldAction()) return;
+            if (!execute(null, null)) failed = true;
+
+        } catch (Exception e) {
+            failed = true;
+            log.error("error deleting key: "+key+": "+e);
+
+        } finally {
+            if (options.isVerbose()) log.info("done with "+key);
+        }
+    }
 
     @Override
     public boolean execute(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
         final S3ToS3Options options = context.getOptions();
         final S3ToS3Stats stats = context.getStats();
         final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
         final String key = summary.getKey();
-        try {
-            if (!shouldAction()) return false;
 
-            final DeleteObjectRequest request = new DeleteObjectRequest(((options.isDelete()) ? options.getSourceBucket() : options.getDestinationBucket()), key);
+        final String bucket = options.isDelete() ? options.getSourceBucket() : options.getDestinationBucket();
 
-            if (options.isDryRun()) {
-                log.info("Would have deleted "+key+" from destination because "+keysrc+" does not exist in source");
-            } else {
-                boolean deletedOK = false;
-                for (int tries=0; tries<maxRetries; tries++) {
-                    if (verbose) log.info("deleting (try #"+tries+"): "+key);
-                    try {
-                        stats.s3deleteCount.incrementAndGet();
-                        client.deleteObject(request);
-                        deletedOK = true;
-                        if (verbose) log.info("successfully deleted (on try #"+tries+"): "+key);
-                        break;
-
-                    } catch (AmazonS3Exception s3e) {
-                        log.error("s3 exception deleting (try #"+tries+") "+key+": "+s3e);
-
-                    } catch (Exception e) {
-                        log.error("unexpected exception deleting (try #"+tries+") "+key+": "+e);
-                    }
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        log.error("interrupted while waiting to retry key: "+key);
-                        break;
-                    }
-                }
-                if (deletedOK) {
-                    context.getStats().objectsDeleted.incrementAndGet();
-                } else {
-                    context.getStats().deleteErrors.incrementAndGet();
-                }
-            }
+        if (options.isDryRun()) {
+            log.info("Would have deleted "+key+" from destination because "+keysrc+" does not exist in source");
+            return true;
+        }
 
-        } catch (Exception e) {
-            log.error("error deleting key: "+key+": "+e);
+        final DeleteBatcher batcher = context.getDeleteBatcher();
+        if (batcher != null) {
+            // stats are updated by deleted/deleteFailed once the batch containing this key has been sent
+            if (verbose) log.info("queueing delete: "+key);
+            deferCompletion();
+            batcher.delete(bucket, key, this);
+            return true;
+        }
 
-        } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
+        final DeleteObjectRequest request = new DeleteObjectRequest(bucket, key);
+        boolean deletedOK = false;
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.DELETE);
+        while (attempts.next()) {
+            final int tries = attempts.getTries() - 1;
+            if (verbose) log.info("deleting (try #"+tries+"): "+key);
+            try {
+                stats.s3deleteCount.increment();
+                client.deleteObject(request);
+                attempts.succeeded();
+                deletedOK = true;
+                if (verbose) log.info("successfully deleted (on try #"+tries+"): "+key);
+                break;
+
+            } catch (AmazonS3Exception s3e) {
+                attempts.failed(s3e);
+                log.error("s3 exception deleting (try #"+tries+") "+key+": "+s3e);
+
+            } catch (Exception e) {
+                attempts.failed(e);
+                log.error("unexpected exception deleting (try #"+tries+") "+key+": "+e);
             }
-            if (verbose) log.info("done with "+key);
         }
-        return true;
+        if (deletedOK) {
+            stats.objectsDeleted.increment();
+            removeFromIndex();
+        } else {
+            stats.deleteErrors.increment();
+            context.getPrefixStats().failed(key);
+        }
+        return deletedOK;
+    }
+
+    @Override
+    public void deleted(String bucket, String key) {
+        if (context.getOptions().isVerbose()) log.info("successfully deleted: "+key);
+        context.getStats().objectsDeleted.increment();
+        removeFromIndex();
+        completed(true);
+    }
+
+    // with the delete action the key was deleted from the source, which the index does not cover
+    private void removeFromIndex() {
+        final DestinationIndex index = context.getDestinationIndex();
+        if (index != null && !context.getOptions().isDelete()) index.remove(summary.getKey());
+    }
+
+    @Override
+    public void deleteFailed(String bucket, String key, String reason) {
+        log.error("error deleting key: "+key+": "+reason);
+        context.getStats().deleteErrors.increment();
+        context.getPrefixStats().failed(key);
+        completed(false);
     }
 
     @Override
@@ -108,9 +152,19 @@ public class KeyDeleteJob extends BaseKeyJob {
             }
         }
 
+        if (options.isDelete()) {
+            // the key came from a listing of the bucket we are deleting from, so it exists
+            return true;
+        }
+
+        if (removedFromSource) {
+            if (verbose) log.info("Key not found in source listing (will delete from destination): "+ keysrc);
+            return true;
+        }
+
         try {
-            ObjectMetadata metadata = getObjectMetadata(options.getSourceBucket(), keysrc, options);
-            return context.getOptions().isDelete(); // object exists in source bucket, don't delete it from destination bucket
+            getObjectMetadata(options.getSourceBucket(), keysrc, options);
+            return false; // object exists in source bucket, don't delete it from destination bucket
 
         } catch (AmazonS3Exception e) {
             if (e.getStatusCode() == 404) {
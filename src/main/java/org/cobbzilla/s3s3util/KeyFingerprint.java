@@ -12,4 +12,15 @@ public class KeyFingerprint {
         this(size, null);
     }
 
+    /**
+     * Builds the fingerprint used to decide whether an object needs copying. ETags of multipart copies
+     * never match the source, so objects above the multipart threshold are compared by size only.
+     */
+    public static KeyFingerprint forComparison(S3ToS3Options options, long sourceSize, long size, String etag) {
+        if (options.isSizeOnly() || options.isMultipart(sourceSize)) {
+            return new KeyFingerprint(size);
+        }
+        return new KeyFingerprint(size, etag);
+    }
+
 }
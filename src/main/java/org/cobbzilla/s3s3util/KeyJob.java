@@ -1,86 +1,92 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AccessControlList;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.Setter;
 import org.slf4j.Logger;
 
 public abstract class KeyJob implements Runnable {
 
-    protected final AmazonS3Client client;
+    protected final S3Operations client;
     protected final S3ToS3Context context;
     protected final S3ObjectSummary summary;
-    protected final Object notifyLock;
 
-    public KeyJob(AmazonS3Client client, S3ToS3Context context, S3ObjectSummary summary, Object notifyLock) {
+    /** Told when a job's work is finished, which for batched deletes can be after run returns */
+    public interface Completion {
+        void completed(KeyJob job, boolean succeeded);
+    }
+
+    @Setter private Completion completion;
+    private volatile boolean completionDeferred = false;
+    protected volatile boolean failed = false;
+
+    public boolean isFailed() { return failed; }
+    public boolean isCompletionDeferred() { return completionDeferred; }
+
+    public KeyJob(S3Operations client, S3ToS3Context context, S3ObjectSummary summary) {
         this.client = client;
         this.context = context;
         this.summary = summary;
-        this.notifyLock = notifyLock;
     }
 
     public abstract Logger getLog();
 
     @Override public String toString() { return summary.getKey(); }
 
+    /**
+     * Call before handing work to the DeleteBatcher: the job is then finished once the batcher reports back,
+     * and must call completed itself, instead of being finished when run returns.
+     */
+    protected void deferCompletion() { completionDeferred = true; }
+
+    protected void completed(boolean succeeded) {
+        if (completion != null) completion.completed(this, succeeded);
+    }
+
     protected ObjectMetadata getObjectMetadata(String bucket, String key, S3ToS3Options options) throws Exception {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.HEAD);
         Exception ex = null;
-        for (int tries=0; tries<options.getMaxRetries(); tries++) {
+        while (attempts.next()) {
             try {
-                context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectMetadata(bucket, key);
-
-            } catch (AmazonS3Exception e) {
-                if (e.getStatusCode() == 404) throw e;
+                context.getStats().s3getCount.increment();
+                final ObjectMetadata metadata = client.getObjectMetadata(bucket, key);
+                attempts.succeeded();
+                return metadata;
 
             } catch (Exception e) {
                 ex = e;
-                if (options.isVerbose()) {
-                    if (tries >= options.getMaxRetries()) {
-                        getLog().error("getObjectMetadata(" + key + ") failed (try #" + tries + "), giving up");
-                        break;
-                    } else {
-                        getLog().warn("getObjectMetadata("+key+") failed (try #"+tries+"), retrying...");
-                    }
-                }
+                attempts.failed(e);
+                if (e instanceof AmazonS3Exception && ((AmazonS3Exception) e).getStatusCode() == 404) throw e;
+                if (options.isVerbose()) getLog().warn("getObjectMetadata("+key+") failed (try #"+(attempts.getTries()-1)+"): "+e);
             }
         }
+        if (ex == null) throw new InterruptedException("interrupted before getObjectMetadata(" + key + ")");
+        getLog().error("getObjectMetadata(" + key + ") failed after " + attempts.getTries() + " tries, giving up");
         throw ex;
     }
 
     protected AccessControlList getAccessControlList(S3ToS3Options options, String key) throws Exception {
-        Exception ex = null;
-
-        for (int tries=0; tries<=options.getMaxRetries(); tries++) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.GET);
+        while (attempts.next()) {
             try {
-                context.getStats().s3getCount.incrementAndGet();
-                return client.getObjectAcl(options.getSourceBucket(), key);
+                context.getStats().s3getCount.increment();
+                final AccessControlList acl = client.getObjectAcl(options.getSourceBucket(), key);
+                attempts.succeeded();
+                return acl;
 
             } catch (Exception e) {
-                ex = e;
-
-                if (tries >= options.getMaxRetries()) {
-                    // Annoyingly there can be two reasons for this to fail. It will fail if the IAM account
-                    // permissions are wrong, but it will also fail if we are copying an item that we don't
-                    // own ourselves. This may seem unusual, but it occurs when copying AWS Detailed Billing
-                    // objects since although they live in your bucket, the object owner is AWS.
-                    getLog().warn("Unable to obtain object ACL, copying item without ACL data.");
-                    return new AccessControlList();
-		}
-
-                if (options.isVerbose()) {
-                   if (tries >= options.getMaxRetries()) {
-                        getLog().warn("getObjectAcl(" + key + ") failed (try #" + tries + "), giving up.");
-			break;
-                    } else {
-                        getLog().warn("getObjectAcl("+key+") failed (try #"+tries+"), retrying...");
-                    }
-                }
+                attempts.failed(e);
+                if (options.isVerbose()) getLog().warn("getObjectAcl("+key+") failed (try #"+(attempts.getTries()-1)+"): "+e);
             }
         }
-        throw ex;
+        // Annoyingly there can be two reasons for this to fail. It will fail if the IAM account
+        // permissions are wrong, but it will also fail if we are copying an item that we don't
+        // own ourselves. This may seem unusual, but it occurs when copying AWS Detailed Billing
+        // objects since although they live in your bucket, the object owner is AWS.
+        getLog().warn("Unable to obtain object ACL, copying item without ACL data.");
+        return new AccessControlList();
     }
 
 }
@@ -1,152 +1,538 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Lists a bucket (optionally merge-joined against a second bucket) and hands the keys to a KeyMaster one page at a
+ * time. Pages are full-size ListObjectsV2 pages, and each cursor keeps the request for its next page in flight while
+ * the current one is being consumed. Listed pages are packed (see PackedKeyPage) and passed to the consumer through
+ * a PendingKeyQueue; once the queued keys use up the --max-queue-memory budget, further pages are spilled to disk, so listing
+ * never waits for the copy jobs to catch up.
+ */
 @Slf4j
 public class KeyLister implements Runnable {
 
-    private AmazonS3Client client;
+    public static final String DELIMITER = "/";
+
+    /** stop splitting partitions once this many partitions per list thread are outstanding */
+    public static final int PARTITIONS_PER_LIST_THREAD = 4;
+
+    /** the number of keys S3 returns in a full listing page */
+    public static final int PAGE_SIZE = 1000;
+
+    private S3Operations client;
     private S3ToS3Context context;
-    private int maxQueueCapacity;
+    private final String bucket;
+    private final String prefix;
+    private final String compareBucket;
+    private final String comparePrefix;
+    private final boolean reportRemoved;
+
+    private final PendingKeyQueue pending;
+    private final Journal journal;
+    private final Progress progress;
+
+    /** identifies this lister's partitions in the journal */
+    @Getter @Setter private String name = "lister";
 
-    private final List<S3ObjectSummary> summaries;
     private final AtomicBoolean done = new AtomicBoolean(false);
-    private ObjectListing listing;
+
+    private ExecutorService listPool;
+    private ExecutorService prefetchPool;
+    private final AtomicInteger pendingPartitions = new AtomicInteger(0);
+    private final AtomicInteger pageCounter = new AtomicInteger(0);
+    private final CountDownLatch partitionsDone = new CountDownLatch(1);
 
     public boolean isDone () { return done.get(); }
 
-    public KeyLister(AmazonS3Client client, S3ToS3Context context, int maxQueueCapacity, String bucket, String prefix) {
+    public KeyLister(S3Operations client, S3ToS3Context context, String bucket, String prefix) {
+        this(client, context, bucket, prefix, null, null, false);
+    }
+
+    /**
+     * @param compareBucket if not null, this bucket is listed alongside the primary one and merge-joined with it,
+     *                      so that only keys that are new or changed relative to it are returned
+     * @param comparePrefix the base prefix of the keys in compareBucket
+     * @param reportRemoved if true, keys found only in compareBucket are returned too (see ListedKey.isRemoved)
+     */
+    public KeyLister(S3Operations client, S3ToS3Context context, String bucket, String prefix,
+                     String compareBucket, String comparePrefix, boolean reportRemoved) {
         this.client = client;
         this.context = context;
-        this.maxQueueCapacity = maxQueueCapacity;
-
-        final S3ToS3Options options = context.getOptions();
-        int fetchSize = options.getMaxThreads();
-        this.summaries = new ArrayList<S3ObjectSummary>(10*fetchSize);
-
-        final ListObjectsRequest request = new ListObjectsRequest(bucket, prefix, null, null, fetchSize);
-        listing = s3getFirstBatch(client, request);
-        synchronized (summaries) {
-            final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
-            summaries.addAll(objectSummaries);
-            context.getStats().objectsRead.addAndGet(objectSummaries.size());
-            if (options.isVerbose()) log.info("added initial set of "+objectSummaries.size()+" keys");
-        }
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+        this.compareBucket = compareBucket;
+        this.comparePrefix = comparePrefix == null ? "" : comparePrefix;
+        this.reportRemoved = reportRemoved;
+        this.journal = context.getJournal();
+        this.progress = context.getProgress();
+        this.pending = new PendingKeyQueue(context, context.getOptions().getMaxQueueMemoryBytes(), context.getQueuedKeyBytes());
     }
 
     @Override
     public void run() {
         final S3ToS3Options options = context.getOptions();
-        final boolean verbose = options.isVerbose();
-        int counter = 0;
-        log.info("starting...");
+        log.info("starting "+(compareBucket == null ? "" : "merged ")+"listing of "+bucket+"/"+prefix
+                +(compareBucket == null ? "" : " against "+compareBucket+"/"+comparePrefix)+" with "+options.getListThreads()+" threads...");
+        listPool = Executors.newFixedThreadPool(options.getListThreads());
+        prefetchPool = Executors.newCachedThreadPool();
         try {
-            while (true) {
-                while (getSize() < maxQueueCapacity) {
-                    if (listing.isTruncated()) {
-                        listing = s3getNextBatch();
-                        if (++counter % 100 == 0) context.getStats().logStats();
-                        synchronized (summaries) {
-                            final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
-                            summaries.addAll(objectSummaries);
-                            context.getStats().objectsRead.addAndGet(objectSummaries.size());
-                            if (verbose) log.info("queued next set of "+objectSummaries.size()+" keys (total now="+getSize()+")");
-                        }
-
-                    } else {
-                        log.info("No more keys found in source bucket, exiting");
-                        return;
-                    }
-                }
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    log.error("interrupted!");
-                    return;
+            // held until every partition has been submitted, in case there are none
+            pendingPartitions.incrementAndGet();
+            progress.listerStarted();
+            final Map<Integer, KeyListingPartition> resumed = journal == null ? null : journal.begin(name);
+            if (resumed == null) {
+                submit(KeyListingPartition.root(), 1);
+            } else {
+                log.info("resuming listing of "+bucket+"/"+prefix+": "+resumed.size()+" partitions left");
+                // what the run being resumed listed is not known, so the partitions left are all there is
+                if (resumed.isEmpty()) progress.covered(1);
+                for (Map.Entry<Integer, KeyListingPartition> partition : resumed.entrySet()) {
+                    submit(partition.getKey(), partition.getValue(), 1.0 / resumed.size());
                 }
             }
+            if (pendingPartitions.decrementAndGet() == 0) partitionsDone.countDown();
+            if (journal != null) retryFailedKeys();
+            partitionsDone.await();
+            log.info("No more keys found in "+bucket+"/"+prefix+", exiting");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
         } catch (Exception e) {
-            log.error("Error in run loop, KeyLister thread now exiting: "+e);
+            context.getStats().listErrors.increment();
+            log.error("Error listing "+bucket+"/"+prefix+": "+e, e);
 
         } finally {
-            if (verbose) log.info("KeyLister run loop finished");
+            listPool.shutdownNow();
+            prefetchPool.shutdownNow();
+            if (options.isVerbose()) log.info("KeyLister run loop finished");
             done.set(true);
+            pending.finish();
         }
     }
 
-    private ObjectListing s3getFirstBatch(AmazonS3Client client, ListObjectsRequest request) {
+    /**
+     * Waits for the next page of keys.
+     * @return the keys, or an empty page once everything has been listed
+     */
+    public PackedKeyPage getNextBatch() throws InterruptedException, IOException {
+        return pending.take();
+    }
 
-        final S3ToS3Options options = context.getOptions();
-        final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
+    /** @param weight how much of this lister's keyspace the partition is estimated to be (see Progress) */
+    private void submit(KeyListingPartition partition, double weight) throws IOException {
+        submit(journal == null ? -1 : journal.partitionStarted(name, partition), partition, weight);
+    }
 
-        Exception lastException = null;
-        for (int tries=0; tries<maxRetries; tries++) {
+    private void submit(int id, KeyListingPartition partition, double weight) {
+        pendingPartitions.incrementAndGet();
+        listPool.submit(new PartitionLister(id, partition, weight));
+    }
+
+    /**
+     * Keys whose jobs failed in the run being resumed are listed one at a time, and handed over again. A key that was
+     * found only in the compare bucket is looked up there, unless the primary bucket has it by now.
+     */
+    private void retryFailedKeys() throws IOException {
+        final List<ListedKey> batch = new ArrayList<ListedKey>();
+        for (String key : journal.getFailedKeys(name)) {
+            final S3ObjectSummary summary = find(bucket, prefix + key);
+            if (summary != null) {
+                batch.add(new ListedKey(summary));
+            } else if (compareBucket != null && reportRemoved && journal.isFailedRemoved(name, key)) {
+                final S3ObjectSummary destination = find(compareBucket, comparePrefix + key);
+                if (destination != null) batch.add(ListedKey.removed(destination));
+            }
+            if (batch.size() >= PAGE_SIZE) {
+                context.getStats().keysQueued.add(batch.size());
+                pending.put(PackedKeyPage.pack(bucket, compareBucket, -1, 0, batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            context.getStats().keysQueued.add(batch.size());
+            pending.put(PackedKeyPage.pack(bucket, compareBucket, -1, 0, batch));
+        }
+    }
+
+    /** @return the object with exactly this key, or null if there is none */
+    private S3ObjectSummary find(String bucketName, String key) {
+        final List<S3ObjectSummary> found = s3list(new ListObjectsV2Request()
+                .withBucketName(bucketName).withPrefix(key).withMaxKeys(1)).getObjectSummaries();
+        return !found.isEmpty() && found.get(0).getKey().equals(key) ? found.get(0) : null;
+    }
+
+    private boolean shouldSplit() {
+        final int listThreads = context.getOptions().getListThreads();
+        return listThreads > 1 && pendingPartitions.get() < PARTITIONS_PER_LIST_THREAD * listThreads;
+    }
+
+    /**
+     * Lists a single partition. The root partition is first listed with a delimiter, and split at the common prefixes
+     * found that way. Any splittable partition whose first page is truncated has the rest of its range split into
+     * smaller key ranges. Whatever remains is listed from the primary bucket and, if there is one, merge-joined
+     * against the same key range of the compare bucket.
+     */
+    private class PartitionLister implements Runnable {
+
+        private final int id;
+        private KeyListingPartition partition;
+        // how much of the keyspace this partition is; when it is split, the ranges split off take their share of it
+        private double weight;
+        // how many keys have been handed over, which is also the position of the next one in this partition
+        private long keysQueued = 0;
+        // for a root partition listed whole, its common prefixes, which mark how far the listing has got
+        private List<String> checkpoints = Collections.emptyList();
+        private int checkpointsPassed = 0;
+        private double weightCovered = 0;
+
+        PartitionLister(int id, KeyListingPartition partition, double weight) {
+            this.id = id;
+            this.partition = partition;
+            this.weight = weight;
+        }
+
+        @Override public void run() {
+            final boolean verbose = context.getOptions().isVerbose();
             try {
-                context.getStats().s3getCount.incrementAndGet();
-                ObjectListing listing = client.listObjects(request);
-                if (verbose) log.info("successfully got first batch of objects (on try #"+tries+")");
-                return listing;
+                if (verbose) log.info("listing partition "+partition);
+                if (partition.isRoot()) {
+                    final boolean split = shouldSplit();
+                    final List<String> boundaries = discoverCommonPrefixes();
+                    if (split && !boundaries.isEmpty()) {
+                        if (verbose) log.info("splitting "+bucket+"/"+prefix+" at "+boundaries.size()+" common prefixes");
+                        final List<KeyListingPartition> ranges = partition.splitAt(boundaries);
+                        for (KeyListingPartition range : ranges) submit(range, weight / ranges.size());
+                        weight = 0;
+                        if (journal != null) journal.partitionListed(id, 0);
+                        return;
+                    }
+                    checkpoints = boundaries;
+                }
+                list();
+
+            } catch (InterruptedException e) {
+                log.error("interrupted while listing partition "+partition);
 
             } catch (Exception e) {
-                lastException = e;
-                log.warn("s3getFirstBatch: error listing (try #"+tries+"): "+e);
-                if (Sleep.sleep(50)) {
-                    log.info("s3getFirstBatch: interrupted while waiting for next try");
-                    break;
+                context.getStats().listErrors.increment();
+                log.error("Error listing partition "+partition+", giving up on it: "+e);
+
+            } finally {
+                // a partition given up on is as done as it will get
+                progress.covered(weight - weightCovered);
+                if (pendingPartitions.decrementAndGet() == 0) partitionsDone.countDown();
+            }
+        }
+
+        private List<String> discoverCommonPrefixes() {
+            final ListObjectsV2Result page = s3list(new ListObjectsV2Request()
+                    .withBucketName(bucket).withPrefix(prefix).withDelimiter(DELIMITER).withMaxKeys(PAGE_SIZE));
+            final List<String> boundaries = new ArrayList<String>(page.getCommonPrefixes().size());
+            for (String commonPrefix : page.getCommonPrefixes()) boundaries.add(relative(prefix, commonPrefix));
+            return boundaries;
+        }
+
+        private void list() throws InterruptedException, IOException {
+            final PartitionCursor source = new PartitionCursor(bucket, prefix, partition);
+            source.fetch();
+            if (partition.isSplittable() && source.isTruncated() && !source.reachedEnd() && shouldSplit()) {
+                final String lastKey = source.getLastFetchedKey();
+                final List<KeyListingPartition> ranges = partition.splitAfter(lastKey);
+                partition = partition.endingAt(lastKey);
+                source.setPartition(partition);
+                if (journal != null) journal.partitionNarrowed(id, partition);
+                weight = weight / (ranges.size() + 1);
+                for (KeyListingPartition range : ranges) submit(range, weight);
+            }
+            if (compareBucket == null) {
+                listSingle(source);
+            } else {
+                merge(source, new PartitionCursor(compareBucket, comparePrefix, partition));
+            }
+            if (journal != null) journal.partitionListed(id, keysQueued);
+        }
+
+        private void listSingle(PartitionCursor source) throws InterruptedException, IOException {
+            List<ListedKey> batch = new ArrayList<ListedKey>(PAGE_SIZE);
+            S3ObjectSummary summary;
+            while ((summary = source.next()) != null) {
+                batch.add(new ListedKey(summary));
+                if (batch.size() >= PAGE_SIZE) batch = addPage(batch, source);
+            }
+            addPage(batch, source);
+        }
+
+        /**
+         * Merge-joins the partition's keys in the primary and compare buckets. Keys found only in the compare bucket are
+         * held back until both listings have been read to the end in order: a listing out of order fails the partition
+         * (see PartitionCursor.next), and a key it listed late would otherwise have been reported removed.
+         */
+        private void merge(PartitionCursor source, PartitionCursor destination) throws InterruptedException, IOException {
+            final S3ToS3Options options = context.getOptions();
+            final boolean verbose = options.isVerbose();
+            List<ListedKey> batch = new ArrayList<ListedKey>(PAGE_SIZE);
+            final List<ListedKey> removedBatch = new ArrayList<ListedKey>();
+            final List<PackedKeyPage> removedPages = new ArrayList<PackedKeyPage>();
+            while (true) {
+                final S3ObjectSummary src = source.peek();
+                final S3ObjectSummary dest = destination.peek();
+                if (src == null && dest == null) break;
+
+                final int cmp = src == null ? 1 : dest == null ? -1 : KeyListingPartition.KEY_ORDER.compare(source.relative(src), destination.relative(dest));
+                if (cmp < 0) {
+                    batch.add(new ListedKey(source.next(), null, true));
+
+                } else if (cmp > 0) {
+                    final S3ObjectSummary removed = destination.next();
+                    if (reportRemoved) {
+                        removedBatch.add(ListedKey.removed(removed));
+                        if (removedBatch.size() >= PAGE_SIZE) {
+                            removedPages.add(PackedKeyPage.pack(bucket, compareBucket, removedBatch));
+                            removedBatch.clear();
+                        }
+                    }
+
+                } else {
+                    source.next();
+                    destination.next();
+                    final KeyFingerprint sourceFingerprint = KeyFingerprint.forComparison(options, src.getSize(), src.getSize(), src.getETag());
+                    final KeyFingerprint destFingerprint = KeyFingerprint.forComparison(options, src.getSize(), dest.getSize(), dest.getETag());
+                    if (!sourceFingerprint.equals(destFingerprint)) {
+                        batch.add(new ListedKey(src, dest, true));
+                    } else if (verbose) {
+                        log.info("Destination file is same as source, not copying: "+src.getKey());
+                    }
+                }
+                if (batch.size() >= PAGE_SIZE) batch = addPage(batch, source);
+            }
+            addPage(batch, source);
+
+            if (!removedBatch.isEmpty()) removedPages.add(PackedKeyPage.pack(bucket, compareBucket, removedBatch));
+            for (PackedKeyPage page : removedPages) {
+                context.getStats().keysQueued.add(page.size());
+                pending.put(page.at(id, keysQueued));
+                keysQueued += page.size();
+            }
+        }
+
+        /**
+         * Counts the share of the partition before each checkpoint the listing has got past as covered, assuming, as
+         * for the partitions of a split, that each common prefix holds about as many keys as the others.
+         */
+        private void passCheckpoints(String lastReadKey) {
+            if (lastReadKey == null) return;
+            final int passedBefore = checkpointsPassed;
+            while (checkpointsPassed < checkpoints.size()
+                    && KeyListingPartition.KEY_ORDER.compare(lastReadKey, checkpoints.get(checkpointsPassed)) >= 0) {
+                checkpointsPassed++;
+            }
+            if (checkpointsPassed == passedBefore) return;
+            final double covered = weight * checkpointsPassed / (checkpoints.size() + 1);
+            progress.covered(covered - weightCovered);
+            weightCovered = covered;
+        }
+
+        /**
+         * Packs a page of keys and hands it to the consumer.
+         * @return the list to collect the next page in
+         */
+        private List<ListedKey> addPage(List<ListedKey> batch, PartitionCursor source) throws IOException {
+            final S3ToS3Stats stats = context.getStats();
+            stats.objectsRead.add(source.drainRead());
+            stats.bytesRead.add(source.drainReadBytes());
+            passCheckpoints(source.getLastReadKey());
+            if (pageCounter.incrementAndGet() % 100 == 0) stats.logStats();
+            if (batch.isEmpty()) return batch;
+
+            stats.keysQueued.add(batch.size());
+            pending.put(PackedKeyPage.pack(bucket, compareBucket, id, keysQueued, batch));
+            keysQueued += batch.size();
+            if (context.getOptions().isVerbose()) log.info("queued next set of "+batch.size()+" keys");
+            batch.clear();
+            return batch;
+        }
+    }
+
+    /**
+     * Walks the keys of one partition in one bucket. Once it starts reading a page, the request for the following
+     * page (if the partition continues past it) is sent in the background.
+     */
+    private class PartitionCursor {
+
+        private final String cursorBucket;
+        private final String base;
+        private KeyListingPartition partition;
+
+        private ListObjectsV2Result page;
+        private Future<ListObjectsV2Result> nextPage;
+        private boolean prefetchChecked;
+        private int index;
+        private boolean exhausted;
+        private int read;
+        private long readBytes;
+        private String lastReadRelative;
+
+        PartitionCursor(String cursorBucket, String base, KeyListingPartition partition) {
+            this.cursorBucket = cursorBucket;
+            this.base = base;
+            this.partition = partition;
+        }
+
+        void setPartition(KeyListingPartition partition) {
+            this.partition = partition;
+            prefetchChecked = false;
+        }
+
+        String relative(S3ObjectSummary summary) { return KeyLister.relative(base, summary.getKey()); }
+
+        boolean isTruncated() { return page != null && page.isTruncated(); }
+
+        String getLastReadKey() { return lastReadRelative; }
+
+        String getLastFetchedKey() {
+            final List<S3ObjectSummary> objects = page.getObjectSummaries();
+            return relative(objects.get(objects.size() - 1));
+        }
+
+        void fetch() throws InterruptedException {
+            if (page == null) {
+                final String startAfter = partition.getStartAfter() == null ? null : base + partition.getStartAfter();
+                page = s3list(new ListObjectsV2Request()
+                        .withBucketName(cursorBucket).withPrefix(base).withStartAfter(startAfter).withMaxKeys(PAGE_SIZE));
+
+            } else if (nextPage != null) {
+                try {
+                    page = nextPage.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("error prefetching from "+cursorBucket+": "+e.getCause(), e.getCause());
+                }
+
+            } else {
+                page = s3list(getNextPageRequest());
+            }
+            nextPage = null;
+            prefetchChecked = false;
+            index = 0;
+        }
+
+        private ListObjectsV2Request getNextPageRequest() {
+            return new ListObjectsV2Request()
+                    .withBucketName(cursorBucket).withPrefix(base).withMaxKeys(PAGE_SIZE)
+                    .withContinuationToken(page.getNextContinuationToken());
+        }
+
+        private void prefetch() {
+            if (prefetchChecked) return;
+            prefetchChecked = true;
+            if (nextPage != null || !page.isTruncated() || reachedEnd()) return;
+            final ListObjectsV2Request request = getNextPageRequest();
+            nextPage = prefetchPool.submit(new Callable<ListObjectsV2Result>() {
+                @Override public ListObjectsV2Result call() { return s3list(request); }
+            });
+        }
+
+        S3ObjectSummary peek() throws InterruptedException {
+            if (exhausted) return null;
+            if (page == null) fetch();
+            while (index >= page.getObjectSummaries().size()) {
+                if (!page.isTruncated() || reachedEnd()) {
+                    exhausted = true;
+                    return null;
                 }
+                fetch();
             }
+            prefetch();
+            final S3ObjectSummary summary = page.getObjectSummaries().get(index);
+            if (partition.isPastEnd(relative(summary))) {
+                exhausted = true;
+                return null;
+            }
+            return summary;
+        }
+
+        /** @return true if the current page already ends at the end of the partition, so there is no need to fetch another */
+        boolean reachedEnd() {
+            final List<S3ObjectSummary> objects = page.getObjectSummaries();
+            return partition.isBounded() && !objects.isEmpty()
+                    && KeyListingPartition.KEY_ORDER.compare(relative(objects.get(objects.size() - 1)), partition.getEndAt()) >= 0;
+        }
+
+        /** @throws IllegalStateException if the listing is not in KEY_ORDER, so a merge of it cannot be trusted */
+        S3ObjectSummary next() throws InterruptedException {
+            final S3ObjectSummary summary = peek();
+            if (summary != null) {
+                final String current = relative(summary);
+                if (lastReadRelative != null && KeyListingPartition.KEY_ORDER.compare(lastReadRelative, current) >= 0) {
+                    throw new IllegalStateException("listing of "+cursorBucket+"/"+base+" is out of order: "+current+" after "+lastReadRelative);
+                }
+                lastReadRelative = current;
+                index++;
+                read++;
+                readBytes += summary.getSize();
+            }
+            return summary;
+        }
+
+        /** @return the number of keys read since the last call */
+        int drainRead() {
+            final int count = read;
+            read = 0;
+            return count;
+        }
+
+        /** @return the total size of the keys read since the last call */
+        long drainReadBytes() {
+            final long bytes = readBytes;
+            readBytes = 0;
+            return bytes;
         }
-        throw new IllegalStateException("s3getFirstBatch: error listing: "+lastException, lastException);
     }
 
-    private ObjectListing s3getNextBatch() {
+    private static String relative(String base, String key) { return key.substring(base.length()); }
+
+    private ListObjectsV2Result s3list(ListObjectsV2Request request) {
         final S3ToS3Options options = context.getOptions();
         final boolean verbose = options.isVerbose();
-        final int maxRetries = options.getMaxRetries();
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.LIST);
 
-        for (int tries=0; tries<maxRetries; tries++) {
+        Exception lastException = null;
+        while (attempts.next()) {
+            final int tries = attempts.getTries() - 1;
             try {
-                context.getStats().s3getCount.incrementAndGet();
-                ObjectListing next = client.listNextBatchOfObjects(listing);
-                if (verbose) log.info("successfully got next batch of objects (on try #"+tries+")");
-                return next;
+                context.getStats().s3getCount.increment();
+                final ListObjectsV2Result result = client.listObjectsV2(request);
+                attempts.succeeded();
+                if (verbose) log.info("successfully listed "+request.getBucketName()+" (on try #"+tries+")");
+                return result;
 
             } catch (AmazonS3Exception s3e) {
+                lastException = s3e;
+                attempts.failed(s3e);
                 log.error("s3 exception listing objects (try #"+tries+"): "+s3e);
 
             } catch (Exception e) {
+                lastException = e;
+                attempts.failed(e);
                 log.error("unexpected exception listing objects (try #"+tries+"): "+e);
             }
-            if (Sleep.sleep(50)) {
-                log.info("s3getNextBatch: interrupted while waiting for next try");
-                break;
-            }
-        }
-        throw new IllegalStateException("Too many errors trying to list objects (maxRetries="+maxRetries+")");
-    }
-
-    private int getSize() {
-        synchronized (summaries) {
-            return summaries.size();
-        }
-    }
-
-    public List<S3ObjectSummary> getNextBatch() {
-        List<S3ObjectSummary> copy;
-        synchronized (summaries) {
-            copy = new ArrayList<S3ObjectSummary>(summaries);
-            summaries.clear();
         }
-        return copy;
+        throw new IllegalStateException("Too many errors trying to list objects (tries="+attempts.getTries()+"): "+lastException, lastException);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A contiguous range of the keyspace being listed. Keys are relative to the lister's base prefix, so the same
+ * partition can be listed from the source and the destination bucket: a partition holds every key that sorts after
+ * startAfter (exclusive, null means from the beginning) and does not sort after endAt (inclusive, null means to the end).
+ */
+@AllArgsConstructor @ToString
+public class KeyListingPartition {
+
+    /** Characters used as split points when a flat keyspace is divided into ranges, in ascending order */
+    public static final String SPLIT_CHARS = "-./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+
+    @Getter private final String startAfter;
+    @Getter private final String endAt;
+
+    /** if true, the partition may be split further once its first page has been listed */
+    @Getter private final boolean splittable;
+
+    /**
+     * Orders keys by code point, which is the order of their UTF-8 bytes, as S3 lists them. String.compareTo orders
+     * by UTF-16 char instead, which puts supplementary characters (stored as surrogates, 0xD800-0xDFFF) before the
+     * characters from 0xE000 to 0xFFFF, where code point order puts them after.
+     */
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override public int compare(String a, String b) {
+            final int length = Math.min(a.length(), b.length());
+            for (int i = 0; i < length; i++) {
+                final char x = a.charAt(i);
+                final char y = b.charAt(i);
+                if (x == y) continue;
+                final boolean surrogateX = Character.isSurrogate(x);
+                if (surrogateX != Character.isSurrogate(y)) return surrogateX ? 1 : -1;
+                return x - y;
+            }
+            return a.length() - b.length();
+        }
+    };
+
+    public static KeyListingPartition root() { return new KeyListingPartition(null, null, true); }
+
+    public boolean isRoot () { return startAfter == null && endAt == null; }
+    public boolean isBounded () { return endAt != null; }
+
+    public boolean isPastEnd (String relativeKey) { return endAt != null && KEY_ORDER.compare(relativeKey, endAt) > 0; }
+
+    /** @return this partition, truncated so that it ends at lastKey (inclusive) */
+    public KeyListingPartition endingAt (String lastKey) { return new KeyListingPartition(startAfter, lastKey, false); }
+
+    /**
+     * Splits this partition at the given boundaries (typically common prefixes found by a delimited listing).
+     * @param boundaries relative keys, in ascending order
+     * @return the ranges, in key order; together they cover exactly this partition
+     */
+    public List<KeyListingPartition> splitAt (List<String> boundaries) {
+        final List<KeyListingPartition> ranges = new ArrayList<KeyListingPartition>();
+        String lower = startAfter;
+        for (String boundary : boundaries) {
+            if (lower != null && KEY_ORDER.compare(boundary, lower) <= 0) continue;
+            if (endAt != null && KEY_ORDER.compare(boundary, endAt) >= 0) break;
+            ranges.add(new KeyListingPartition(lower, boundary, true));
+            lower = boundary;
+        }
+        ranges.add(new KeyListingPartition(lower, endAt, true));
+        return ranges;
+    }
+
+    /**
+     * Splits the remainder of this partition (everything after lastKey) into key ranges. Split points are sampled
+     * one and two characters past the longest prefix that lastKey shares with the start of the partition, since the
+     * keys immediately after lastKey are the ones most likely to be dense.
+     * The returned ranges are disjoint and together cover exactly (lastKey, endAt].
+     * @param lastKey the last (relative) key already listed from this partition
+     * @return the ranges, in key order
+     */
+    public List<KeyListingPartition> splitAfter (String lastKey) {
+        final String head = lastKey.substring(0, commonPrefixLength(startAfter == null ? "" : startAfter, lastKey));
+        final List<String> boundaries = new ArrayList<String>();
+        if (lastKey.length() > head.length()) {
+            final String next = head + new String(Character.toChars(lastKey.codePointAt(head.length())));
+            for (char c : SPLIT_CHARS.toCharArray()) boundaries.add(next + c);
+        }
+        for (char c : SPLIT_CHARS.toCharArray()) boundaries.add(head + c);
+        Collections.sort(boundaries, KEY_ORDER);
+        return new KeyListingPartition(lastKey, endAt, splittable).splitAt(boundaries);
+    }
+
+    private static int commonPrefixLength (String a, String b) {
+        final int max = Math.min(a.length(), b.length());
+        for (int i=0; i<max; i++) {
+            // never between the two halves of a surrogate pair
+            if (a.charAt(i) != b.charAt(i)) return i > 0 && Character.isHighSurrogate(a.charAt(i - 1)) ? i - 1 : i;
+        }
+        return max;
+    }
+}
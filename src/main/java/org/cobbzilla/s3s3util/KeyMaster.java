@@ -1,14 +1,12 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public abstract class KeyMaster implements Runnable {
@@ -16,29 +14,46 @@ public abstract class KeyMaster implements Runnable {
     public static final int STOP_TIMEOUT_SECONDS = 10;
     private static final long STOP_TIMEOUT = TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS);
 
-    protected AmazonS3Client client;
+    protected S3Operations client;
     protected S3ToS3Context context;
 
-    private AtomicBoolean done = new AtomicBoolean(false);
-    public boolean isDone () { return done.get(); }
+    private final CountDownLatch done = new CountDownLatch(1);
+    public boolean isDone () { return done.getCount() == 0; }
+
+    /** wait until every key has been listed and every job submitted for them has finished */
+    public void awaitDone () throws InterruptedException { done.await(); }
 
-    private BlockingQueue<Runnable> workQueue;
     private ThreadPoolExecutor executorService;
-    protected final Object notifyLock = new Object();
+
+    /** how many jobs per copy thread may be waiting in the executor; the rest of the backlog stays with the KeyLister */
+    public static final int JOBS_PER_THREAD = 4;
+
+    // one permit per job that has been submitted but has not finished yet; jobs hand theirs back as they complete
+    private final int maxJobsInFlight;
+    private final Semaphore admission;
 
     private Thread thread;
 
-    public KeyMaster(AmazonS3Client client, S3ToS3Context context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
+    public KeyMaster(S3Operations client, S3ToS3Context context, ThreadPoolExecutor executorService) {
         this.client = client;
         this.context = context;
-        this.workQueue = workQueue;
         this.executorService = executorService;
+        this.maxJobsInFlight = JOBS_PER_THREAD * context.getOptions().getMaxThreads();
+        this.admission = new Semaphore(maxJobsInFlight);
     }
 
+    public int getJobsInFlight () { return maxJobsInFlight - admission.availablePermits(); }
+
     protected abstract String getPrefix(S3ToS3Options options);
     protected abstract String getBucket(S3ToS3Options options);
 
-    protected abstract KeyJob getTask(S3ObjectSummary summary);
+    /** @return the bucket to merge-join the listing against, or null to list getBucket alone */
+    protected String getCompareBucket(S3ToS3Options options) { return null; }
+    protected String getComparePrefix(S3ToS3Options options) { return null; }
+    /** @return true if keys found only in the compare bucket should be handed to getTask as removed keys */
+    protected boolean isReportRemoved(S3ToS3Options options) { return false; }
+
+    protected abstract KeyJob getTask(ListedKey key);
 
     public void start () {
         this.thread = new Thread(this);
@@ -52,8 +67,11 @@ public abstract class KeyMaster implements Runnable {
         try {
             if (isDone()) return;
             this.thread.interrupt();
-            while (!isDone() && System.currentTimeMillis() - start < STOP_TIMEOUT) {
-                if (Sleep.sleep(50)) return;
+            try {
+                done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                log.error("interrupted while stopping "+name);
+                return;
             }
         } finally {
             if (!isDone()) {
@@ -73,59 +91,121 @@ public abstract class KeyMaster implements Runnable {
         final S3ToS3Options options = context.getOptions();
         final boolean verbose = options.isVerbose();
 
-        final int maxQueueCapacity = S3ToS3Master.getMaxQueueCapacity(options);
+        final Journal journal = context.getJournal();
+        final String name = getClass().getSimpleName();
+        final S3ToS3Stats stats = context.getStats();
 
         int counter = 0;
         try {
-            final KeyLister lister = new KeyLister(client, context, maxQueueCapacity, getBucket(options), getPrefix(options));
+            final KeyLister lister = new KeyLister(client, context, getBucket(options), getPrefix(options),
+                                                   getCompareBucket(options), getComparePrefix(options), isReportRemoved(options));
+            lister.setName(name);
             executorService.submit(lister);
 
-            List<S3ObjectSummary> summaries = lister.getNextBatch();
-            if (verbose) log.info(summaries.size()+" keys found in first batch from source bucket -- processing...");
-
             while (true) {
-                for (S3ObjectSummary summary : summaries) {
-                    while (workQueue.size() >= maxQueueCapacity) {
-                        try {
-                            synchronized (notifyLock) {
-                                notifyLock.wait(50);
-                            }
-                            Thread.sleep(50);
-
-                        } catch (InterruptedException e) {
-                            log.error("interrupted!");
-                            return;
-                        }
-                    }
-                    executorService.submit(getTask(summary));
-                    counter++;
-                }
-
-                summaries = lister.getNextBatch();
-                if (summaries.size() > 0) {
-                    if (verbose) log.info(summaries.size()+" more keys found in source bucket -- continuing (queue size="+workQueue.size()+", total processed="+counter+")...");
-
-                } else if (lister.isDone()) {
+                // blocks until the lister has a page ready; an empty page means the listing is complete
+                final long waitStarted = System.nanoTime();
+                final PackedKeyPage summaries = lister.getNextBatch();
+                stats.getLatency(S3ToS3Stats.Phase.LISTING).recordSince(waitStarted);
+                if (summaries.isEmpty()) {
                     if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
                     return;
-
-                } else {
-                    if (verbose) log.info("Lister has no keys queued, but is not done, waiting and retrying");
-                    if (Sleep.sleep(50)) return;
+                }
+                if (verbose) log.info(summaries.size()+" more keys found in source bucket -- continuing (in flight="+getJobsInFlight()+", total processed="+counter+")...");
+
+                long seq = summaries.getFirstSeq();
+                for (ListedKey summary : summaries) {
+                    final String relativeKey = getRelativeKey(options, summary);
+                    if (journal != null && journal.isDone(summaries.getPartitionId(), relativeKey)) {
+                        if (verbose) log.info("already done in the run being resumed: "+summary);
+                        journal.keySkipped(summaries.getPartitionId(), seq, relativeKey);
+                        stats.keysFinished.increment();
+                    } else {
+                        final long admissionStarted = System.nanoTime();
+                        admission.acquire();
+                        stats.getLatency(S3ToS3Stats.Phase.ADMISSION).recordSince(admissionStarted);
+                        submit(summary, summaries.getPartitionId(), seq, relativeKey);
+                    }
+                    seq++;
+                    counter++;
                 }
             }
 
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
+
         } catch (Exception e) {
             log.error("Unexpected exception in MirrorMaster: "+e, e);
 
         } finally {
-            while (workQueue.size() > 0 || executorService.getActiveCount() > 0) {
-                // wait for the queue to be empty
-                if (Sleep.sleep(100)) break;
+            // every permit comes back once the last job has finished
+            try {
+                admission.acquire(maxJobsInFlight);
+                admission.release(maxJobsInFlight);
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for "+getJobsInFlight()+" jobs to finish");
             }
-            // this will wait for currently executing tasks to finish
-            executorService.shutdown();
-            done.set(true);
+            done.countDown();
+        }
+    }
+
+    /** @return the key relative to the prefix it was listed under, as the KeyLister and Journal see it */
+    private String getRelativeKey(S3ToS3Options options, ListedKey key) {
+        final String base = key.isRemoved() ? getComparePrefix(options) : getPrefix(options);
+        return key.toString().substring(base == null ? 0 : base.length());
+    }
+
+    // the job is only built once a worker picks up the key; with a ShardScheduler, it waits there for its shard's turn
+    private void submit (final ListedKey key, final int partitionId, final long seq, final String relativeKey) {
+        final Journal journal = context.getJournal();
+        final String name = getClass().getSimpleName();
+        final KeyJob.Completion completion = new KeyJob.Completion() {
+            @Override public void completed(KeyJob job, boolean succeeded) {
+                try {
+                    journal.keyDone(name, partitionId, seq, relativeKey, key.isRemoved(), succeeded);
+                } catch (Exception e) {
+                    log.error("Error recording "+key+" in journal: "+e, e);
+                }
+            }
+        };
+        final S3ToS3Stats stats = context.getStats();
+        final long submitted = System.nanoTime();
+        final Runnable admitted = new Runnable() {
+            @Override public void run() {
+                final long started = System.nanoTime();
+                stats.getLatency(S3ToS3Stats.Phase.QUEUED).record(started - submitted);
+                final long retries = context.getRetryPolicy().getThreadRetries();
+                try {
+                    final KeyJob job = getTask(key);
+                    if (journal != null) job.setCompletion(completion);
+                    job.run();
+                    if (!job.isCompletionDeferred()) job.completed(!job.isFailed());
+                } finally {
+                    stats.getLatency(S3ToS3Stats.Phase.RUNNING).recordSince(started);
+                    context.getPrefixStats().retried(key.toString(), context.getRetryPolicy().getThreadRetries() - retries);
+                    stats.keysFinished.increment();
+                    admission.release();
+                }
+            }
+            @Override public String toString() { return key.toString(); }
+        };
+        final ShardScheduler scheduler = context.getShardScheduler();
+        if (scheduler != null) {
+            scheduler.submit(scheduler.getShard(relativeKey), admitted, new Runnable() {
+                @Override public void run() {
+                    stats.keysFinished.increment();
+                    admission.release();
+                    log.error("Error submitting job: "+key+": rejected by executor");
+                }
+            });
+            return;
+        }
+        try {
+            executorService.execute(admitted);
+        } catch (RejectedExecutionException e) {
+            stats.keysFinished.increment();
+            admission.release();
+            log.error("Error submitting job: "+key+": "+e);
         }
     }
 }
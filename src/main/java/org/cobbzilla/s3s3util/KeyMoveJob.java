@@ -1,6 +1,5 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
@@ -9,25 +8,28 @@ import org.slf4j.Logger;
  * Handles a single key. Determines if it should be copied, and if so, performs the copy operation.
  */
 @Slf4j
-public class KeyMoveJob extends BaseKeyJob {
+public class KeyMoveJob extends BaseKeyJob implements DeleteBatcher.Listener {
 
-    public KeyMoveJob(AmazonS3Client client, S3ToS3Context context, S3ObjectSummary summary, Object notifyLock) {
-        super(client, context, summary, notifyLock);
+    public KeyMoveJob(S3Operations client, S3ToS3Context context, S3ObjectSummary summary) {
+        super(client, context, summary);
     }
 
     @Override public Logger getLog() { return log; }
 
+    @Override protected boolean needsSourceMetadata() { return false; }
+
     @Override
     boolean execute(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
         String key = summary.getKey();
         S3ToS3Options options = context.getOptions();
         boolean verbose = options.isVerbose();
-        int maxRetries= options.getMaxRetries();
         S3ToS3Stats stats = context.getStats();
-        for (int tries = 0; tries < maxRetries; tries++) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.COPY, summary.getSize());
+        boolean copied = false;
+        while (!copied && attempts.next()) {
+            final int tries = attempts.getTries() - 1;
             if (verbose) log.info("copying (try #" + tries + "): " + key + " to: " + keydest);
             final CopyObjectRequest request = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest);
-            final DeleteObjectRequest deleteObjectRequest=new DeleteObjectRequest(options.getSourceBucket(),key);
 
             request.setStorageClass(StorageClass.valueOf(options.getStorageClass()));
             
@@ -35,32 +37,83 @@ public class KeyMoveJob extends BaseKeyJob {
 				request.putCustomRequestHeader("x-amz-server-side-encryption", "AES256");
 			}
             
-            request.setNewObjectMetadata(sourceMetadata);
+            // without new metadata, S3 copies the source object's metadata (the COPY metadata directive)
+            if (sourceMetadata != null) request.setNewObjectMetadata(sourceMetadata);
             if (options.isCrossAccountCopy()) {
                 request.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
-            } else {
+            } else if (objectAcl != null) {
                 request.setAccessControlList(objectAcl);
             }
             try {
-                client.copyObject(request);
-                client.deleteObject(deleteObjectRequest);
-                stats.bytesCopied.addAndGet(sourceMetadata.getContentLength());
-                stats.s3moveCount.incrementAndGet();
+                final CopyObjectResult result = client.copyObject(request);
+                copiedEtag = result.getETag();
+                copiedLastModified = result.getLastModifiedDate();
+                attempts.succeeded();
+                stats.bytesCopied.add(summary.getSize());
+                stats.s3moveCount.increment();
                 if (verbose) log.info("successfully copied (on try #" + tries + "): " + key + " to: " + keydest);
-                return true;
+                copied = true;
             } catch (AmazonS3Exception s3e) {
+                attempts.failed(s3e);
                 log.error("s3 exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + s3e);
             } catch (Exception e) {
+                attempts.failed(e);
                 log.error("unexpected exception copying (try #" + tries + ") " + key + " to: " + keydest + ": " + e);
             }
+        }
+        if (!copied) return false;
+        // outside the copy's loop, so that a failed delete is retried as a delete, and never copies again
+        deleteSource();
+        return true;
+    }
+
+    /**
+     * Remove the source object once it has been copied, batched with other deletes when possible. Either way, a
+     * delete that fails for good is reported to deleteFailed.
+     */
+    protected void deleteSource() {
+        final S3ToS3Options options = context.getOptions();
+        final String bucket = options.getSourceBucket();
+        final String key = summary.getKey();
+        final DeleteBatcher batcher = context.getDeleteBatcher();
+        if (batcher != null) {
+            deferCompletion();
+            batcher.delete(bucket, key, this);
+            return;
+        }
+
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.DELETE);
+        String reason = "interrupted";
+        while (attempts.next()) {
+            final int tries = attempts.getTries() - 1;
             try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                log.error("interrupted while waiting to retry key: " + key);
-                return false;
+                context.getStats().s3deleteCount.increment();
+                client.deleteObject(new DeleteObjectRequest(bucket, key));
+                attempts.succeeded();
+                if (options.isVerbose()) log.info("deleted source after move (on try #" + tries + "): " + key);
+                return;
+            } catch (Exception e) {
+                attempts.failed(e);
+                reason = e.toString();
+                log.error("exception deleting source after move (try #" + tries + ") " + key + ": " + e);
             }
         }
-        return false;
+        deferCompletion();
+        deleteFailed(bucket, key, reason);
+    }
+
+    @Override
+    public void deleted(String bucket, String key) {
+        if (context.getOptions().isVerbose()) log.info("deleted source after move: "+key);
+        completed(true);
+    }
+
+    @Override
+    public void deleteFailed(String bucket, String key, String reason) {
+        log.error("copied "+key+" to "+keydest+" but could not delete it from "+bucket+": "+reason);
+        context.getStats().moveErrors.increment();
+        context.getPrefixStats().failed(key);
+        completed(false);
     }
 
 }
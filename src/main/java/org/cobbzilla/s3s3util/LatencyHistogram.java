@@ -0,0 +1,79 @@
+package org.cobbzilla.s3s3util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, recorded from any number of threads without locking, with percentiles good to within
+ * about 1.5%: the same log-linear layout as an HdrHistogram, with 64 buckets for each power of two microseconds
+ * (durations under 64us are counted exactly), up to about three days. Longer durations are counted as the longest.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 38;
+    private static final long MAX_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong(0);
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the longest duration counted in bucket index, in microseconds */
+    static long highest(int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / SUB_BUCKETS - 1;
+        final long lowest = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        final long micros = Math.min(MAX_MICROS, Math.max(0, nanos / 1000));
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        totalMicros.add(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) max = maxMicros.get();
+    }
+
+    /** record the time since started, a System.nanoTime() */
+    public void recordSince(long started) { record(System.nanoTime() - started); }
+
+    public long getCount() { return count.sum(); }
+
+    public long getMaxMicros() { return maxMicros.get(); }
+
+    public long getTotalMicros() { return totalMicros.sum(); }
+
+    public long getMeanMicros() {
+        final long n = count.sum();
+        return n == 0 ? 0 : totalMicros.sum() / n;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the duration, in microseconds, that this percentage of those recorded took at most, or 0 if none
+     * have been
+     */
+    public long getPercentileMicros(double percentile) {
+        final long n = count.sum();
+        if (n == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            // no bucket holds anything longer than the longest recorded
+            if (seen >= rank) return Math.min(highest(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+}
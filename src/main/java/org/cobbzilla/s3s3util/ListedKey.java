@@ -0,0 +1,26 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A key handed from a KeyLister to its KeyMaster. When the lister has already compared the source listing with the
+ * destination listing, compared is true and destination holds the destination object (or null if there is none).
+ * A compared key with no summary exists only in the destination, i.e. it has been removed from the source.
+ */
+@AllArgsConstructor
+public class ListedKey {
+
+    @Getter private final S3ObjectSummary summary;
+    @Getter private final S3ObjectSummary destination;
+    @Getter private final boolean compared;
+
+    public ListedKey(S3ObjectSummary summary) { this(summary, null, false); }
+
+    public static ListedKey removed(S3ObjectSummary destination) { return new ListedKey(null, destination, true); }
+
+    public boolean isRemoved() { return summary == null; }
+
+    @Override public String toString() { return isRemoved() ? destination.getKey() : summary.getKey(); }
+}
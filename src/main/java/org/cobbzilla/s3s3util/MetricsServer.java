@@ -0,0 +1,82 @@
+package org.cobbzilla.s3s3util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves MirrorMetrics at /metrics over HTTP, for Prometheus (or anything else) to scrape while a run is going.
+ */
+@Slf4j
+public class MetricsServer {
+
+    public static final String PATH = "/metrics";
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param port the port to listen on, on every interface, or 0 for any free port (see getPort)
+     */
+    public MetricsServer(int port, final MirrorMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    final byte[] body = metrics.format().getBytes(UTF8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    if ("HEAD".equals(exchange.getRequestMethod())) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, body.length);
+                    final OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (RuntimeException e) {
+                    log.error("Error serving "+PATH+": "+e, e);
+                    exchange.sendResponseHeaders(500, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // one daemon thread: scrapes are rare, and must not keep the JVM running after the mirror is done
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "s3s3mirror-metrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    public void start() {
+        server.start();
+        log.info("serving metrics at http://localhost:"+getPort()+PATH);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
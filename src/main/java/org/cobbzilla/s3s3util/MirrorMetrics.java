@@ -0,0 +1,237 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * The statistics of a run as metrics, read live from its S3ToS3Context: the S3ToS3Stats counters, gauges of the
+ * work in flight and queued, throughput, and the latency histograms as summaries (quantiles, count and sum).
+ *
+ * The same samples are written in the Prometheus text format (see MetricsServer) and published over JMX as the
+ * attributes of this MBean, one attribute per sample, named after the metric and its label values: for instance
+ * request_latency_seconds_copy_0.99 for s3s3mirror_request_latency_seconds{request="copy",quantile="0.99"}.
+ */
+@Slf4j
+public class MirrorMetrics implements DynamicMBean {
+
+    public static final String PREFIX = "s3s3mirror_";
+    public static final String OBJECT_NAME = "org.cobbzilla.s3s3util:type=MirrorMetrics";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final S3ToS3Context context;
+    private ObjectName registered = null;
+
+    public MirrorMetrics(S3ToS3Context context) { this.context = context; }
+
+    /** one value of one metric */
+    static class Sample {
+        final String name;
+        final String type;
+        final String help;
+        final String[] labels;
+        final double value;
+
+        Sample(String name, String type, String help, String[] labels, double value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.labels = labels;
+            this.value = value;
+        }
+
+        String getAttributeName() {
+            final StringBuilder b = new StringBuilder(name);
+            for (int i = 1; i < labels.length; i += 2) b.append('_').append(labels[i]);
+            return b.toString();
+        }
+    }
+
+    private static final String[] NO_LABELS = new String[0];
+
+    private static void counter(List<Sample> samples, String name, String help, long value) {
+        samples.add(new Sample(name + "_total", "counter", help, NO_LABELS, value));
+    }
+
+    private static void gauge(List<Sample> samples, String name, String help, double value) {
+        samples.add(new Sample(name, "gauge", help, NO_LABELS, value));
+    }
+
+    private static void rate(List<Sample> samples, String name, String help, int minutes, double value) {
+        samples.add(new Sample(name, "gauge", help, new String[] {"window", minutes + "m"}, value));
+    }
+
+    private static void summary(List<Sample> samples, String name, String help, String label, String labelValue, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            samples.add(new Sample(name, "summary", help, new String[] {label, labelValue, "quantile", String.valueOf(quantile)},
+                    histogram.getPercentileMicros(quantile * 100) / 1e6));
+        }
+        samples.add(new Sample(name + "_sum", "summary", help, new String[] {label, labelValue}, histogram.getTotalMicros() / 1e6));
+        samples.add(new Sample(name + "_count", "summary", help, new String[] {label, labelValue}, histogram.getCount()));
+    }
+
+    /** @return every sample, as they are now, grouped by metric */
+    List<Sample> collect() {
+        final S3ToS3Stats stats = context.getStats();
+        final List<Sample> samples = new ArrayList<Sample>();
+
+        counter(samples, "objects_read", "Keys listed", stats.objectsRead.get());
+        counter(samples, "objects_copied", "Objects copied (or moved)", stats.objectsCopied.get());
+        counter(samples, "copy_errors", "Objects that could not be copied", stats.copyErrors.get());
+        counter(samples, "objects_deleted", "Objects deleted", stats.objectsDeleted.get());
+        counter(samples, "delete_errors", "Objects that could not be deleted", stats.deleteErrors.get());
+        counter(samples, "list_errors", "Listing partitions given up on, whose keys were not mirrored", stats.listErrors.get());
+        counter(samples, "move_errors", "Moved objects whose source could not be deleted", stats.moveErrors.get());
+        counter(samples, "bytes_copied", "Bytes copied", stats.bytesCopied.get());
+        counter(samples, "keys_spilled", "Listed keys spilled to disk to stay within --max-queue-memory", stats.keysSpilled.get());
+        counter(samples, "retries", "S3 requests retried", stats.retries.get());
+        counter(samples, "retries_denied", "S3 requests not retried because the retry budget was empty", stats.retriesDenied.get());
+        counter(samples, "throttled", "Throttled (503 SlowDown and the like) responses", stats.throttled.get());
+        counter(samples, "breaker_trips", "Times the circuit breaker opened", stats.breakerTrips.get());
+        counter(samples, "requests_succeeded", "S3 requests that succeeded", stats.requestsSucceeded.get());
+
+        gauge(samples, "requests_in_flight", "S3 requests sent and not yet answered", stats.requestsInFlight.get());
+        gauge(samples, "last_response_timestamp_seconds", "When the last S3 response (or error) came", stats.lastResponseMillis.get() / 1000.0);
+        final ThreadPoolExecutor executor = context.getExecutor();
+        final ShardScheduler scheduler = context.getShardScheduler();
+        gauge(samples, "threads", "Threads running jobs", executor == null ? 0 : executor.getCorePoolSize());
+        gauge(samples, "jobs_running", "Jobs running", executor == null ? 0 : executor.getActiveCount());
+        gauge(samples, "jobs_queued", "Jobs waiting for a thread, or for their shard's turn",
+                (executor == null ? 0 : executor.getQueue().size()) + (scheduler == null ? 0 : scheduler.getWaiting()));
+        gauge(samples, "queued_key_bytes", "Estimated memory held by listed keys waiting for a job", context.getQueuedKeyBytes().get());
+        gauge(samples, "retry_budget", "Retries left in the retry budget", context.getRetryPolicy().getBudget());
+        gauge(samples, "circuit_breaker_open", "1 while the circuit breaker is open", context.getRetryPolicy().isBreakerOpen() ? 1 : 0);
+
+        gauge(samples, "start_time_seconds", "When the run started", stats.getStart() / 1000.0);
+        for (int minutes : Rates.WINDOW_MINUTES) {
+            rate(samples, "keys_done_per_second", "Keys done per second, over the last minutes", minutes, stats.keyRates.getRate(minutes));
+        }
+        for (int minutes : Rates.WINDOW_MINUTES) {
+            rate(samples, "bytes_copied_per_second", "Bytes copied per second, over the last minutes", minutes, stats.byteRates.getRate(minutes));
+        }
+
+        final Progress progress = context.getProgress();
+        gauge(samples, "keys_done", "Keys listed whose jobs (if they needed one) have finished", progress.getKeysDone());
+        gauge(samples, "listed_ratio", "Estimated share of the keyspace listed, 0 to 1", progress.getListedFraction());
+        gauge(samples, "estimated_total_keys", "Estimated keys in the run (-1 until estimated)", progress.getEstimatedTotalKeys());
+        gauge(samples, "estimated_total_bytes", "Estimated bytes in the run (-1 until estimated)", progress.getEstimatedTotalBytes());
+        gauge(samples, "eta_seconds", "Estimated seconds until the run is done (-1 until estimated)", progress.getEtaSeconds());
+
+        for (S3ToS3Stats.Request request : S3ToS3Stats.Request.values()) {
+            summary(samples, "request_latency_seconds", "Time taken by S3 requests, failed ones included",
+                    "request", request.name().toLowerCase(Locale.ROOT), stats.getLatency(request));
+        }
+        for (S3ToS3Stats.Phase phase : S3ToS3Stats.Phase.values()) {
+            summary(samples, "phase_latency_seconds", "Time spent in each phase: waiting for listing, waiting for a job slot, queued and running",
+                    "phase", phase.name().toLowerCase(Locale.ROOT), stats.getLatency(phase));
+        }
+        return samples;
+    }
+
+    /** @return every metric, in the Prometheus text exposition format */
+    public String format() {
+        final StringBuilder b = new StringBuilder();
+        String family = null;
+        for (Sample sample : collect()) {
+            final String base = PREFIX + ("summary".equals(sample.type) ? sample.name.replaceAll("_(sum|count)$", "") : sample.name);
+            if (!base.equals(family)) {
+                family = base;
+                b.append("# HELP ").append(base).append(' ').append(sample.help).append('\n');
+                b.append("# TYPE ").append(base).append(' ').append(sample.type).append('\n');
+            }
+            b.append(PREFIX).append(sample.name);
+            if (sample.labels.length > 0) {
+                b.append('{');
+                for (int i = 0; i < sample.labels.length; i += 2) {
+                    if (i > 0) b.append(',');
+                    b.append(sample.labels[i]).append("=\"").append(sample.labels[i + 1]).append('"');
+                }
+                b.append('}');
+            }
+            b.append(' ').append(formatValue(sample.value)).append('\n');
+        }
+        return b.toString();
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    // ---- JMX
+
+    /** publish these metrics in the platform MBean server, replacing those of any earlier run */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+            registered = name;
+        } catch (Exception e) {
+            log.warn("Error registering "+OBJECT_NAME+" MBean: "+e);
+        }
+    }
+
+    public void unregister() {
+        if (registered == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (Exception e) {
+            log.warn("Error unregistering "+OBJECT_NAME+" MBean: "+e);
+        }
+        registered = null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        for (Sample sample : collect()) {
+            if (sample.getAttributeName().equals(attribute)) return sample.value;
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final List<Sample> samples = collect();
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            for (Sample sample : samples) {
+                if (sample.getAttributeName().equals(attribute)) {
+                    list.add(new Attribute(attribute, sample.value));
+                    break;
+                }
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()+" is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<Sample> samples = collect();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[samples.size()];
+        for (int i = 0; i < attributes.length; i++) {
+            final Sample sample = samples.get(i);
+            attributes[i] = new MBeanAttributeInfo(sample.getAttributeName(), Double.class.getName(), sample.help, true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Statistics of the s3s3mirror run", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,231 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies one object to the destination as a multipart upload, shared by MultipartKeyCopyJob and MultipartKeyMoveJob.
+ *
+ * The parts of an upload are copied concurrently. The job thread that calls copy() copies parts itself, and also
+ * submits helper tasks to the part executor; every thread claims the next uncopied part until none are left.
+ * Because the job thread never waits on a part that nobody has started, a busy pool only means fewer helpers, never
+ * a deadlock. The upload is completed (or aborted) once every claimed part has finished; initiating, completing and
+ * aborting it go through the RetryPolicy, like every other request, and an upload that is not completed is aborted.
+ * Part sizes come from the PartPlanner, which also learns from how long each part takes.
+ */
+@Slf4j
+public class MultipartCopy {
+
+    private final S3Operations client;
+    private final S3ToS3Context context;
+    private final S3ObjectSummary summary;
+    private final String keydest;
+
+    @Getter private final PartPlanner.PartPlan plan;
+    private final int partCount;
+
+    @Getter private String uploadId;
+    /** the ETag of the completed object */
+    @Getter private String etag;
+    private PartETag[] partETags;
+    private final AtomicInteger nextPart = new AtomicInteger(0);
+    private CountDownLatch partsDone;
+    private volatile boolean failed = false;
+
+    public MultipartCopy(S3Operations client, S3ToS3Context context, S3ObjectSummary summary, String keydest) {
+        this.client = client;
+        this.context = context;
+        this.summary = summary;
+        this.keydest = keydest;
+        this.plan = context.getPartPlanner().plan(context.getOptions(), summary.getSize());
+        this.partCount = plan.getPartCount();
+    }
+
+    /**
+     * @param sourceMetadata metadata to set on the new object
+     * @param objectAcl ACL to set on the new object, or null to leave the destination bucket's default (ignored for cross-account copies)
+     * @return true if every part was copied and the upload was completed, false if it was aborted
+     */
+    public boolean copy(ObjectMetadata sourceMetadata, AccessControlList objectAcl) {
+        final S3ToS3Options options = context.getOptions();
+        final String targetBucketName = options.getDestinationBucket();
+
+        if (options.isVerbose()) log.info("Initiating multipart upload request for " + summary.getKey() + " (" + partCount + " parts)");
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucketName, keydest)
+                .withObjectMetadata(sourceMetadata);
+        if (options.isCrossAccountCopy()) {
+            initiateRequest.withCannedACL(CannedAccessControlList.BucketOwnerFullControl);
+        } else if (objectAcl != null) {
+            initiateRequest.withAccessControlList(objectAcl);
+        }
+        uploadId = initiate(initiateRequest);
+        if (uploadId == null) return false;
+
+        boolean completed = false;
+        try {
+            partETags = new PartETag[partCount];
+            partsDone = new CountDownLatch(partCount);
+
+            submitHelpers();
+            copyParts();
+
+            // once a part has failed, nobody claims new parts: count the unclaimed ones as done so we only wait for those in flight
+            for (int part = nextPart.getAndIncrement(); part < partCount; part = nextPart.getAndIncrement()) {
+                partsDone.countDown();
+            }
+            try {
+                partsDone.await();
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for parts of " + summary.getKey() + " (uploadId=" + uploadId + ")");
+                failed = true;
+            }
+            if (failed) return false;
+
+            final List<PartETag> eTags = new ArrayList<PartETag>(partCount);
+            for (PartETag eTag : partETags) eTags.add(eTag);
+            completed = complete(new CompleteMultipartUploadRequest(targetBucketName, keydest, uploadId, eTags));
+            if (completed && options.isVerbose()) log.info("completed multipart request for : " + summary.getKey());
+            return completed;
+
+        } finally {
+            // an upload left open keeps its parts, and S3 bills for them, until it is aborted
+            if (!completed) abort(targetBucketName);
+        }
+    }
+
+    /** @return the id of the new upload, or null if it could not be initiated */
+    private String initiate(InitiateMultipartUploadRequest request) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(context.getOptions().getMaxRetries(), RateLimits.Operation.COPY);
+        Exception lastException = null;
+        while (attempts.next()) {
+            try {
+                final String id = client.initiateMultipartUpload(request).getUploadId();
+                attempts.succeeded();
+                return id;
+            } catch (Exception e) {
+                lastException = e;
+                attempts.failed(e);
+            }
+        }
+        log.error("Error initiating multipart copy of " + summary.getKey() + " to " + keydest + " (tries=" + attempts.getTries() + "): " + lastException);
+        return null;
+    }
+
+    private boolean complete(CompleteMultipartUploadRequest request) {
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(context.getOptions().getMaxRetries(), RateLimits.Operation.COPY);
+        Exception lastException = null;
+        while (attempts.next()) {
+            try {
+                etag = client.completeMultipartUpload(request).getETag();
+                attempts.succeeded();
+                return true;
+            } catch (Exception e) {
+                lastException = e;
+                attempts.failed(e);
+            }
+        }
+        log.error("Error completing multipart copy of " + summary.getKey() + " to " + keydest + " (uploadId=" + uploadId + ", tries=" + attempts.getTries() + "): " + lastException);
+        return false;
+    }
+
+    private void abort(String bucket) {
+        log.error("Aborting multipart copy of " + summary.getKey() + " to " + keydest + " (uploadId=" + uploadId + ")");
+        // even when the job was interrupted: clear the flag while aborting, so that the attempts are made
+        final boolean interrupted = Thread.interrupted();
+        try {
+            final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(context.getOptions().getMaxRetries(), RateLimits.Operation.COPY);
+            Exception lastException = null;
+            while (attempts.next()) {
+                try {
+                    client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, keydest, uploadId));
+                    attempts.succeeded();
+                    return;
+                } catch (Exception e) {
+                    lastException = e;
+                    attempts.failed(e);
+                }
+            }
+            log.error("Error aborting multipart copy of " + summary.getKey() + ", upload " + uploadId + " is left open in " + bucket + ": " + lastException);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submitHelpers() {
+        final ThreadPoolExecutor executor = context.getPartExecutor();
+        if (executor == null) return;
+        final int helpers = Math.min(partCount, executor.getCorePoolSize()) - 1;
+        final Runnable helper = new Runnable() {
+            @Override public void run() { copyParts(); }
+            @Override public String toString() { return "parts of " + summary.getKey(); }
+        };
+        for (int i=0; i<helpers; i++) {
+            try {
+                executor.execute(helper);
+            } catch (RejectedExecutionException e) {
+                if (context.getOptions().isVerbose()) log.info("could not submit helper for parts of " + summary.getKey() + ": " + e);
+                return;
+            }
+        }
+    }
+
+    /** claim and copy parts until there are none left, or one of them has failed */
+    private void copyParts() {
+        while (!failed) {
+            final int part = nextPart.getAndIncrement();
+            if (part >= partCount) return;
+            try {
+                if (!copyPart(part)) failed = true;
+            } finally {
+                partsDone.countDown();
+            }
+        }
+    }
+
+    private boolean copyPart(int part) {
+        final S3ToS3Options options = context.getOptions();
+        final long firstByte = plan.getFirstByte(part);
+        final long lastByte = plan.getLastByte(part);
+        final String infoMessage = "copying part " + (part + 1) + "/" + partCount + " of " + summary.getKey() + ": " + firstByte + " to " + lastByte;
+        if (options.isVerbose()) log.info(infoMessage);
+
+        final CopyPartRequest copyRequest = new CopyPartRequest()
+                .withDestinationBucketName(options.getDestinationBucket())
+                .withDestinationKey(keydest)
+                .withSourceBucketName(options.getSourceBucket())
+                .withSourceKey(summary.getKey())
+                .withUploadId(uploadId)
+                .withFirstByte(firstByte)
+                .withLastByte(lastByte)
+                .withPartNumber(part + 1);
+
+        final RetryPolicy.Attempts attempts = context.getRetryPolicy().attempts(options.getMaxRetries(), RateLimits.Operation.COPY, lastByte - firstByte + 1);
+        Exception lastException = null;
+        while (!failed && attempts.next()) {
+            try {
+                if (options.isVerbose()) log.info("try :" + attempts.getTries());
+                context.getStats().s3copyCount.increment();
+                final long start = System.currentTimeMillis();
+                final CopyPartResult result = client.copyPart(copyRequest);
+                attempts.succeeded();
+                context.getPartPlanner().partCopied(lastByte - firstByte + 1, System.currentTimeMillis() - start);
+                partETags[part] = new PartETag(result.getPartNumber(), result.getETag());
+                if (options.isVerbose()) log.info("completed " + infoMessage);
+                return true;
+            } catch (Exception e) {
+                lastException = e;
+                attempts.failed(e);
+            }
+        }
+        if (lastException != null) log.error("Exception while doing multipart copy (" + infoMessage + ")", lastException);
+        return false;
+    }
+}
@@ -0,0 +1,315 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of listed keys packed into a single byte array, which is how keys wait in a PendingKeyQueue. Each key is
+ * stored as the length of the prefix it shares with the previous key plus the rest of the key in UTF-8, its size and
+ * Last-Modified time as varints, and its ETag as 16 raw bytes when it is an MD5 (or MD5 and part count, for
+ * multipart ETags). Bucket names are stored once per page, and fields the jobs never use (owner, storage class) are
+ * dropped. Keys are unpacked one at a time as the page is iterated, so a ListedKey and its job only exist once the
+ * KeyMaster is about to hand the key to a worker.
+ *
+ * Pages are packed in a per-thread scratch buffer, so packing allocates nothing but the finished array.
+ */
+public class PackedKeyPage implements Iterable<ListedKey> {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** rough heap cost of a page apart from its data: the page itself, its array header and bucket name references */
+    public static final int PAGE_OVERHEAD_BYTES = 64;
+
+    public static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private static final int HAS_SUMMARY = 1;
+    private static final int HAS_DESTINATION = 2;
+    private static final int COMPARED = 4;
+
+    private static final int ETAG_NONE = 0;
+    private static final int ETAG_MD5 = 1;
+    private static final int ETAG_MULTIPART = 2;
+    private static final int ETAG_OTHER = 3;
+    private static final int MD5_BYTES = 16;
+
+    public static final PackedKeyPage EMPTY = new PackedKeyPage(null, null, -1, 0, 0, new byte[0]);
+
+    private static final ThreadLocal<Packer> packers = new ThreadLocal<Packer>() {
+        @Override protected Packer initialValue() { return new Packer(); }
+    };
+
+    @Getter private final String bucket;
+    @Getter private final String compareBucket;
+
+    /** the listing partition the keys came from (see Journal), or -1 */
+    @Getter private final int partitionId;
+    /** the position of the first key in its partition's listing */
+    @Getter private final long firstSeq;
+
+    private final int count;
+    private final byte[] data;
+
+    private PackedKeyPage(String bucket, String compareBucket, int partitionId, long firstSeq, int count, byte[] data) {
+        this.bucket = bucket;
+        this.compareBucket = compareBucket;
+        this.partitionId = partitionId;
+        this.firstSeq = firstSeq;
+        this.count = count;
+        this.data = data;
+    }
+
+    public int size() { return count; }
+
+    /** @return the same keys, handed over from this position in a partition's listing */
+    public PackedKeyPage at(int partitionId, long firstSeq) {
+        return new PackedKeyPage(bucket, compareBucket, partitionId, firstSeq, count, data);
+    }
+    public boolean isEmpty() { return count == 0; }
+
+    /** @return roughly how much heap this page uses */
+    public long getBytes() { return PAGE_OVERHEAD_BYTES + data.length; }
+
+    /**
+     * @param bucket the bucket the keys' summaries were listed from
+     * @param compareBucket the bucket their destinations were listed from, if any
+     */
+    public static PackedKeyPage pack(String bucket, String compareBucket, List<ListedKey> keys) {
+        return pack(bucket, compareBucket, -1, 0, keys);
+    }
+
+    public static PackedKeyPage pack(String bucket, String compareBucket, int partitionId, long firstSeq, List<ListedKey> keys) {
+        final Packer packer = packers.get();
+        packer.reset();
+        for (ListedKey key : keys) packer.add(key);
+        return new PackedKeyPage(bucket, compareBucket, partitionId, firstSeq, keys.size(), Arrays.copyOf(packer.buffer, packer.length));
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        writeNullable(out, bucket);
+        writeNullable(out, compareBucket);
+        out.writeInt(partitionId);
+        out.writeLong(firstSeq);
+        out.writeInt(count);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    public static PackedKeyPage read(DataInputStream in) throws IOException {
+        final String bucket = readNullable(in);
+        final String compareBucket = readNullable(in);
+        final int partitionId = in.readInt();
+        final long firstSeq = in.readLong();
+        final int count = in.readInt();
+        final byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new PackedKeyPage(bucket, compareBucket, partitionId, firstSeq, count, data);
+    }
+
+    @Override
+    public Iterator<ListedKey> iterator() { return new Unpacker(); }
+
+    private static class Packer {
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+        private String previousKey;
+        private String previousDestinationKey;
+
+        void reset() {
+            length = 0;
+            previousKey = "";
+            previousDestinationKey = "";
+        }
+
+        void add(ListedKey key) {
+            final S3ObjectSummary summary = key.getSummary();
+            final S3ObjectSummary destination = key.getDestination();
+            writeByte((summary != null ? HAS_SUMMARY : 0) | (destination != null ? HAS_DESTINATION : 0) | (key.isCompared() ? COMPARED : 0));
+            if (summary != null) {
+                writeKey(previousKey, summary.getKey());
+                previousKey = summary.getKey();
+                writeFields(summary);
+            }
+            if (destination != null) {
+                writeKey(previousDestinationKey, destination.getKey());
+                previousDestinationKey = destination.getKey();
+                writeFields(destination);
+            }
+        }
+
+        private void writeKey(String previous, String key) {
+            final int max = Math.min(previous.length(), key.length());
+            int shared = 0;
+            while (shared < max && previous.charAt(shared) == key.charAt(shared)) shared++;
+            // never split a surrogate pair between the shared prefix and the suffix
+            if (shared > 0 && Character.isHighSurrogate(key.charAt(shared - 1))) shared--;
+            writeVarint(shared);
+            writeBytes(key.substring(shared).getBytes(UTF8));
+        }
+
+        private void writeFields(S3ObjectSummary summary) {
+            writeVarint(summary.getSize());
+            writeVarint(summary.getLastModified() == null ? 0 : summary.getLastModified().getTime() + 1);
+            final String etag = summary.getETag();
+            if (etag == null) {
+                writeByte(ETAG_NONE);
+            } else if (isMd5(etag, etag.length())) {
+                writeByte(ETAG_MD5);
+                writeMd5(etag);
+            } else if (isMultipartEtag(etag)) {
+                writeByte(ETAG_MULTIPART);
+                writeMd5(etag);
+                writeVarint(Long.parseLong(etag.substring(2 * MD5_BYTES + 1)));
+            } else {
+                writeByte(ETAG_OTHER);
+                writeBytes(etag.getBytes(UTF8));
+            }
+        }
+
+        private void writeMd5(String etag) {
+            for (int i = 0; i < MD5_BYTES; i++) {
+                writeByte((Character.digit(etag.charAt(2 * i), 16) << 4) | Character.digit(etag.charAt(2 * i + 1), 16));
+            }
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int more) {
+            if (length + more > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+        }
+    }
+
+    // only lowercase hex is packed, so the ETag unpacks to exactly the string S3 returned
+    private static boolean isMd5(String etag, int end) {
+        if (end != 2 * MD5_BYTES) return false;
+        for (int i = 0; i < end; i++) {
+            final char c = etag.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) return false;
+        }
+        return true;
+    }
+
+    private static boolean isMultipartEtag(String etag) {
+        final int dash = 2 * MD5_BYTES;
+        if (etag.length() <= dash + 1 || etag.length() > dash + 10 || etag.charAt(dash) != '-' || !isMd5(etag, dash)) return false;
+        // the part count must unpack to the same digits
+        if (etag.charAt(dash + 1) == '0') return false;
+        for (int i = dash + 1; i < etag.length(); i++) {
+            if (etag.charAt(i) < '0' || etag.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    private class Unpacker implements Iterator<ListedKey> {
+        private int position = 0;
+        private int unpacked = 0;
+        private String previousKey = "";
+        private String previousDestinationKey = "";
+
+        @Override public boolean hasNext() { return unpacked < count; }
+
+        @Override
+        public ListedKey next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            unpacked++;
+            final int flags = readByte();
+            S3ObjectSummary summary = null;
+            S3ObjectSummary destination = null;
+            if ((flags & HAS_SUMMARY) != 0) {
+                previousKey = readKey(previousKey);
+                summary = readFields(bucket, previousKey);
+            }
+            if ((flags & HAS_DESTINATION) != 0) {
+                previousDestinationKey = readKey(previousDestinationKey);
+                destination = readFields(compareBucket == null ? bucket : compareBucket, previousDestinationKey);
+            }
+            return new ListedKey(summary, destination, (flags & COMPARED) != 0);
+        }
+
+        @Override public void remove() { throw new UnsupportedOperationException(); }
+
+        private String readKey(String previous) {
+            final int shared = (int) readVarint();
+            return previous.substring(0, shared) + readString();
+        }
+
+        private S3ObjectSummary readFields(String summaryBucket, String key) {
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(summaryBucket);
+            summary.setKey(key);
+            summary.setSize(readVarint());
+            final long lastModified = readVarint();
+            if (lastModified != 0) summary.setLastModified(new Date(lastModified - 1));
+            switch (readByte()) {
+                case ETAG_MD5:       summary.setETag(readMd5()); break;
+                case ETAG_MULTIPART: summary.setETag(readMd5() + "-" + readVarint()); break;
+                case ETAG_OTHER:     summary.setETag(readString()); break;
+                default:             break;
+            }
+            return summary;
+        }
+
+        private String readMd5() {
+            final StringBuilder b = new StringBuilder(2 * MD5_BYTES);
+            for (int i = 0; i < MD5_BYTES; i++) {
+                final int value = readByte();
+                b.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xF, 16));
+            }
+            return b.toString();
+        }
+
+        private String readString() {
+            final int length = (int) readVarint();
+            final String s = new String(data, position, length, UTF8);
+            position += length;
+            return s;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final int b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        private int readByte() { return data[position++] & 0xFF; }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,89 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.cobbzilla.s3s3util.S3ToS3Constants.GB;
+import static org.cobbzilla.s3s3util.S3ToS3Constants.MB;
+
+/**
+ * Chooses the part size for each multipart copy. Within the S3 limits (at most 10,000 parts, each between 5MB and
+ * 5GB, except that the last part may be smaller), parts are sized so that each one takes about TARGET_PART_MILLIS
+ * to copy at the per-part throughput observed so far in this run, and so that an object has enough parts to keep
+ * every thread busy. Parts are then evened out, so an object never ends with one large part and one sliver.
+ * If the user set --upload-part-size, that size is used as long as it fits the limits.
+ */
+@Slf4j
+public class PartPlanner {
+
+    public static final long MIN_PART_SIZE = 5 * MB;
+    public static final long MAX_PART_SIZE = 5 * GB;
+    public static final int MAX_PARTS = 10000;
+
+    /** part size to use until some parts have been copied and we know how fast they go */
+    public static final long INITIAL_PART_SIZE = 256 * MB;
+
+    /** long enough that per-request overhead is small, short enough that a retried part does not cost much */
+    public static final long TARGET_PART_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** weight given to each new part when updating the observed throughput */
+    private static final double SMOOTHING = 0.2;
+
+    @AllArgsConstructor @ToString
+    public static class PartPlan {
+        @Getter private final long objectSize;
+        @Getter private final long partSize;
+        @Getter private final int partCount;
+
+        public long getFirstByte (int part) { return part * partSize; }
+        public long getLastByte (int part) { return Math.min(getFirstByte(part) + partSize, objectSize) - 1; }
+    }
+
+    // bytes per millisecond for a single part, or 0 if no part has finished yet
+    private double partThroughput = 0;
+
+    public synchronized double getPartThroughput () { return partThroughput; }
+
+    /**
+     * Record a part that finished copying.
+     * @param bytes size of the part
+     * @param millis how long the successful request took
+     */
+    public synchronized void partCopied (long bytes, long millis) {
+        final double throughput = ((double) bytes) / Math.max(millis, 1);
+        partThroughput = (partThroughput == 0) ? throughput : SMOOTHING * throughput + (1 - SMOOTHING) * partThroughput;
+    }
+
+    public PartPlan plan (S3ToS3Options options, long objectSize) {
+        long partSize;
+        if (options.getUploadPartSize() > 0) {
+            partSize = options.getUploadPartSize();
+
+        } else {
+            final double throughput = getPartThroughput();
+            partSize = (throughput == 0) ? INITIAL_PART_SIZE : (long) (throughput * TARGET_PART_MILLIS);
+
+            // smaller parts if that lets every thread work on the object at once
+            final long sizeForAllThreads = divideRoundingUp(objectSize, Math.max(options.getMaxThreads(), 1));
+            partSize = Math.min(partSize, Math.max(sizeForAllThreads, MIN_PART_SIZE));
+        }
+
+        partSize = Math.max(partSize, divideRoundingUp(objectSize, MAX_PARTS));
+        partSize = Math.min(Math.max(partSize, MIN_PART_SIZE), MAX_PART_SIZE);
+
+        final int partCount = (int) divideRoundingUp(objectSize, partSize);
+        final long evenPartSize = divideRoundingUp(objectSize, partCount);
+        if (partCount == 1 || evenPartSize >= MIN_PART_SIZE) partSize = evenPartSize;
+
+        final PartPlan plan = new PartPlan(objectSize, partSize, (int) divideRoundingUp(objectSize, partSize));
+        if (options.isVerbose()) log.info("plan: " + plan);
+        return plan;
+    }
+
+    private static long divideRoundingUp (long size, long divisor) { return (size + divisor - 1) / divisor; }
+
+}
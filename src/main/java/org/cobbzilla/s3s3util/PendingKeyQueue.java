@@ -0,0 +1,141 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds pages of listed keys until the KeyMaster takes them. Pages are kept in memory (packed, see PackedKeyPage)
+ * while the size of all queued pages (across every lister sharing the same counter) fits in --max-queue-memory; beyond that, pages are
+ * appended to a spill file and read back once the consumer has caught up with the pages in memory. Producers never
+ * wait, so listing runs at full speed however far behind the copy jobs are.
+ */
+@Slf4j
+public class PendingKeyQueue {
+
+    // placed on the queue once the producers are finished
+    private static final PackedKeyPage END = PackedKeyPage.EMPTY;
+
+    private final S3ToS3Context context;
+    private final long budget;
+    private final AtomicLong memoryBytes;
+
+    private final LinkedTransferQueue<PackedKeyPage> memory = new LinkedTransferQueue<PackedKeyPage>();
+
+    // one permit for each page (in memory or spilled) ready to be taken, plus one when the producers are finished
+    private final Semaphore available = new Semaphore(0);
+
+    private final Object spillLock = new Object();
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private DataInputStream spillIn;
+    private final AtomicLong pagesSpilled = new AtomicLong(0);
+    private final AtomicLong pagesUnspilled = new AtomicLong(0);
+
+    /**
+     * @param budget the most bytes of keys to hold in memory
+     * @param memoryBytes the bytes currently held in memory; may be shared with other queues so they share one budget
+     */
+    public PendingKeyQueue(S3ToS3Context context, long budget, AtomicLong memoryBytes) {
+        this.context = context;
+        this.budget = budget;
+        this.memoryBytes = memoryBytes;
+    }
+
+    private boolean hasSpilledPages() { return pagesSpilled.get() > pagesUnspilled.get(); }
+
+    /** Add a page of keys. Never blocks: if the page does not fit in the memory budget, it is written to disk. */
+    public void put(PackedKeyPage page) throws IOException {
+        if (!hasSpilledPages() && reserve(page.getBytes())) {
+            memory.put(page);
+        } else {
+            spill(page);
+        }
+        available.release();
+    }
+
+    /** Called once no more pages will be put. */
+    public void finish() {
+        memory.put(END);
+        available.release();
+    }
+
+    /**
+     * Waits for the next page of keys.
+     * @return the keys, or an empty page once every page has been taken and finish has been called
+     */
+    public PackedKeyPage take() throws InterruptedException, IOException {
+        available.acquire();
+        final PackedKeyPage page = memory.poll();
+        if (page == END) {
+            if (hasSpilledPages()) {
+                // spilled pages were put before finish was called; put END back for the next take
+                memory.put(END);
+                return unspill();
+            }
+            memory.put(END);
+            available.release();
+            close();
+            return END;
+        }
+        if (page != null) {
+            memoryBytes.addAndGet(-page.getBytes());
+            return page;
+        }
+        return unspill();
+    }
+
+    /** Discard the spill file, if there is one. */
+    public void close() {
+        synchronized (spillLock) {
+            closeSpill();
+        }
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            final long current = memoryBytes.get();
+            // a page larger than the whole budget can still go to memory when nothing else is there
+            if (current + bytes > budget && current > 0) return false;
+            if (memoryBytes.compareAndSet(current, current + bytes)) return true;
+        }
+    }
+
+    private void spill(PackedKeyPage page) throws IOException {
+        synchronized (spillLock) {
+            if (spillOut == null) {
+                spillFile = File.createTempFile("s3s3mirror-pending-", ".keys");
+                spillFile.deleteOnExit();
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+                log.info("memory budget of "+budget+" bytes for queued keys is full, spilling to "+spillFile.getAbsolutePath());
+            }
+            page.write(spillOut);
+            spillOut.flush();
+            pagesSpilled.incrementAndGet();
+        }
+        context.getStats().keysSpilled.add(page.size());
+    }
+
+    private PackedKeyPage unspill() throws IOException {
+        // only the consumer reads, but the file is replaced under spillLock once it has been read to the end
+        synchronized (spillLock) {
+            final PackedKeyPage page = PackedKeyPage.read(spillIn);
+            if (pagesUnspilled.incrementAndGet() == pagesSpilled.get()) closeSpill();
+            return page;
+        }
+    }
+
+    private void closeSpill() {
+        if (spillFile == null) return;
+        try { spillOut.close(); } catch (IOException e) { log.warn("error closing "+spillFile+": "+e); }
+        try { spillIn.close(); } catch (IOException e) { log.warn("error closing "+spillFile+": "+e); }
+        if (!spillFile.delete()) log.warn("could not delete "+spillFile);
+        spillFile = null;
+        spillOut = null;
+        spillIn = null;
+    }
+}
@@ -0,0 +1,90 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Where the work and the trouble of a run come from: the key prefixes with the most objects copied, bytes copied,
+ * errors and retries, reported at the end of the run (--top-prefixes). A key's prefix is the key up to and including
+ * the first / after the prefix it was listed under (--prefix, or --dest-prefix for the destination), or the whole key
+ * if there is none.
+ *
+ * A bucket may have any number of prefixes, so they are counted by HeavyHitters, in bounded memory: the counts of the
+ * busiest prefixes are exact unless more than CAPACITY prefixes share a stripe, and are otherwise marked with how much
+ * they may be over. Retries are charged to the key of the job that made them; those of multipart parts run on other
+ * threads, and of batched deletes, are not charged to any prefix.
+ */
+public class PrefixStats {
+
+    /** prefixes counted at a time, by each stripe of each HeavyHitters */
+    public static final int CAPACITY = 128;
+
+    private final S3ToS3Context context;
+
+    @Getter private final HeavyHitters objects = new HeavyHitters(CAPACITY);
+    @Getter private final HeavyHitters bytes = new HeavyHitters(CAPACITY);
+    @Getter private final HeavyHitters errors = new HeavyHitters(CAPACITY);
+    @Getter private final HeavyHitters retries = new HeavyHitters(CAPACITY);
+
+    public PrefixStats(S3ToS3Context context) { this.context = context; }
+
+    private boolean isEnabled() { return context.getOptions().getTopPrefixes() > 0; }
+
+    /** an object was copied (or moved) */
+    public void copied(String key, long size) {
+        if (!isEnabled()) return;
+        final String prefix = getPrefix(key);
+        objects.add(prefix, 1);
+        bytes.add(prefix, size);
+    }
+
+    /** an object could not be copied, moved or deleted */
+    public void failed(String key) {
+        if (isEnabled()) errors.add(getPrefix(key), 1);
+    }
+
+    /** the job for this key retried its requests this many times */
+    public void retried(String key, long count) {
+        if (count > 0 && isEnabled()) retries.add(getPrefix(key), count);
+    }
+
+    public String getPrefix(String key) {
+        final S3ToS3Options options = context.getOptions();
+        int base = 0;
+        final String prefix = options.getPrefix();
+        if (prefix != null && key.startsWith(prefix)) base = prefix.length();
+        final String destPrefix = options.getDestPrefix();
+        if (destPrefix != null && destPrefix.length() > base && key.startsWith(destPrefix)) base = destPrefix.length();
+        final int slash = key.indexOf('/', base);
+        return slash == -1 ? key : key.substring(0, slash + 1);
+    }
+
+    /** @return the top prefixes of each kind, as tables, or an empty string if nothing was counted */
+    public String format() {
+        final int n = context.getOptions().getTopPrefixes();
+        final StringBuilder b = new StringBuilder();
+        format(b, "objects copied", objects, n, false);
+        format(b, "bytes copied", bytes, n, true);
+        format(b, "errors", errors, n, false);
+        format(b, "retries", retries, n, false);
+        return b.toString();
+    }
+
+    private static void format(StringBuilder b, String what, HeavyHitters counts, int n, boolean size) {
+        final long total = counts.getTotal();
+        if (total == 0 || n <= 0) return;
+        final List<HeavyHitters.Entry> top = counts.getTop(n);
+        b.append("top ").append(top.size()).append(" prefixes by ").append(what)
+                .append(" (of ").append(size ? S3ToS3Stats.formatSize(total) : String.valueOf(total)).append("):\n");
+        for (HeavyHitters.Entry entry : top) {
+            b.append(String.format("    %-50s %12s %6.1f%%", entry.getItem(),
+                    size ? S3ToS3Stats.formatSize(entry.getCount()) : String.valueOf(entry.getCount()),
+                    100.0 * entry.getCount() / total));
+            if (entry.getError() > 0) {
+                b.append(" (up to ").append(size ? S3ToS3Stats.formatSize(entry.getError()) : String.valueOf(entry.getError())).append(" over)");
+            }
+            b.append('\n');
+        }
+    }
+}
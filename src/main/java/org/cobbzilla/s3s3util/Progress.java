@@ -0,0 +1,67 @@
+package org.cobbzilla.s3s3util;
+
+/**
+ * Estimates how far along a run is. A key is done once it has been listed and, if it was handed to a job, the job
+ * has finished; keys that needed nothing (already in the destination, by a merged listing) are done once listed.
+ *
+ * The keys and bytes still to be listed are estimated from how much of the keyspace the listers have covered: each
+ * KeyLister's keyspace is worth 1, shared equally among the partitions it is split into (so the estimate assumes
+ * partitions of similar size), and a partition counts once it has been listed to the end. A lister that does not
+ * split its keyspace (--list-threads 1) uses its common prefixes instead: the share of each counts once the listing
+ * has got past it. Only if the keyspace has no common prefixes are the totals unknown until listing is done.
+ */
+public class Progress {
+
+    private final S3ToS3Stats stats;
+
+    private int listers = 0;
+    private double covered = 0;
+
+    public Progress(S3ToS3Stats stats) { this.stats = stats; }
+
+    /** a KeyLister has started, and will report its whole keyspace (1) as covered, in parts */
+    public synchronized void listerStarted() { listers++; }
+
+    /** a KeyLister has listed a part of its keyspace worth this much */
+    public synchronized void covered(double weight) { covered += weight; }
+
+    /** @return how much of the keyspace has been listed, 0 to 1 */
+    public synchronized double getListedFraction() { return listers == 0 ? 0 : Math.min(1, covered / listers); }
+
+    public long getKeysDone() {
+        final long pending = stats.keysQueued.get() - stats.keysFinished.get();
+        return Math.max(0, stats.objectsRead.get() - pending);
+    }
+
+    /** @return the estimated number of keys in the run, or -1 if nothing has been listed to the end yet */
+    public long getEstimatedTotalKeys() {
+        final double fraction = getListedFraction();
+        return fraction == 0 ? -1 : Math.round(stats.objectsRead.get() / fraction);
+    }
+
+    /** @return the estimated size of the keys in the run, or -1 if nothing has been listed to the end yet */
+    public long getEstimatedTotalBytes() {
+        final double fraction = getListedFraction();
+        return fraction == 0 ? -1 : Math.round(stats.bytesRead.get() / fraction);
+    }
+
+    /** @return the percentage of keys done, or -1 if the total is unknown */
+    public double getPercentDone() {
+        final long total = getEstimatedTotalKeys();
+        if (total < 0) return -1;
+        return total == 0 ? 100 : Math.min(100, 100.0 * getKeysDone() / total);
+    }
+
+    /**
+     * @return the estimated seconds until every key is done, at the 5-minute moving average rate of keys done, or -1
+     * if the total is unknown or nothing is getting done
+     */
+    public long getEtaSeconds() {
+        final long total = getEstimatedTotalKeys();
+        final double rate = stats.keyRates.getEwma(5);
+        if (total < 0) return -1;
+        final long left = Math.max(0, total - getKeysDone());
+        if (left == 0) return 0;
+        return rate <= 0 ? -1 : (long) Math.ceil(left / rate);
+    }
+}
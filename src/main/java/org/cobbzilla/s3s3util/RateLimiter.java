@@ -0,0 +1,59 @@
+package org.cobbzilla.s3s3util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: permits are added at a steady rate, up to one second's worth, and each acquire takes some. An
+ * acquire of more permits than are available takes them anyway, leaving the bucket in debt, and waits until the
+ * debt has been paid back; so a single acquire may be larger than the bucket (the bytes of a big object).
+ * The rate can be changed at any time, and applies at once to acquires already waiting: they wait in slices of at
+ * most MAX_WAIT_MILLIS and work out how long is left at the current rate. A rate of 0 means no limit.
+ */
+public class RateLimiter {
+
+    public static final long MAX_WAIT_MILLIS = 100;
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private double rate = 0;
+
+    // permits taken, and permits the rate has made available, since the start; the bucket holds the difference
+    private double taken = 0;
+    private double granted = 0;
+    private long last = System.nanoTime();
+
+    public synchronized double getRate() { return rate; }
+
+    public synchronized void setRate(double rate) {
+        refill();
+        this.rate = Math.max(0, rate);
+        if (granted - taken > this.rate) granted = taken + this.rate;
+        if (this.rate == 0) granted = taken;
+        notifyAll();
+    }
+
+    /** wait until permits may be used; returns early, with the thread's interrupt flag set, if interrupted */
+    public synchronized void acquire(long permits) {
+        if (rate == 0) return;
+        refill();
+        taken += permits;
+        final double mine = taken;
+        try {
+            while (rate > 0) {
+                final double owed = mine - granted;
+                if (owed <= 0) return;
+                final long waitNanos = (long) Math.ceil(owed / rate * NANOS_PER_SECOND);
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MILLIS)));
+                refill();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        if (rate > 0) granted = Math.min(taken + rate, granted + (now - last) * rate / NANOS_PER_SECOND);
+        last = now;
+    }
+}
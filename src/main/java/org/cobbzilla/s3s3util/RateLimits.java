@@ -0,0 +1,236 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Limits on how fast a run uses S3 (--rate-limits): requests per second for each kind of request, for all of them
+ * together, and bytes copied per second. Every S3 call acquires from the limiters that apply to it first.
+ *
+ * The limits come from a schedule file, which is read again whenever it changes, and checked against the clock
+ * every RELOAD_MILLIS, so limits can be changed, or follow the time of day, without restarting the run. Each line is
+ *
+ *     limit rate [HH:MM-HH:MM] [days]
+ *
+ * where limit is one of list, head, get, copy, delete, requests (all requests) or bytes; rate is a number per
+ * second, with an optional K, M or G suffix for bytes, or "unlimited"; the time window may wrap past midnight; and
+ * days is a comma-separated list of days or day ranges, such as mon-fri or sat,sun. For each limit, the first line
+ * whose window includes the current time applies; with no such line, there is no limit. Blank lines and lines
+ * starting with # are ignored. For example:
+ *
+ *     copy     500   09:00-18:00 mon-fri
+ *     bytes    100M  08:00-20:00
+ *     requests 2000
+ */
+@Slf4j
+public class RateLimits implements Runnable {
+
+    public static final long RELOAD_MILLIS = 5000;
+
+    public enum Operation { LIST, HEAD, GET, COPY, DELETE }
+
+    public static final String REQUESTS = "requests";
+    public static final String BYTES = "bytes";
+
+    private static final List<String> DAYS = Arrays.asList("sun", "mon", "tue", "wed", "thu", "fri", "sat");
+
+    /** One line of the schedule */
+    static class Rule {
+        final String limit;
+        final double rate;
+        final int startMinute; // minutes after midnight, or -1 for all day
+        final int endMinute;
+        final BitSet days;     // by Calendar.DAY_OF_WEEK - 1, or null for every day
+
+        Rule(String limit, double rate, int startMinute, int endMinute, BitSet days) {
+            this.limit = limit;
+            this.rate = rate;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+            this.days = days;
+        }
+
+        boolean applies(Calendar when) {
+            if (days != null && !days.get(when.get(Calendar.DAY_OF_WEEK) - 1)) return false;
+            if (startMinute < 0) return true;
+            final int minute = when.get(Calendar.HOUR_OF_DAY) * 60 + when.get(Calendar.MINUTE);
+            return startMinute <= endMinute
+                    ? minute >= startMinute && minute < endMinute
+                    : minute >= startMinute || minute < endMinute;
+        }
+    }
+
+    private final Map<Operation, RateLimiter> operations = new EnumMap<Operation, RateLimiter>(Operation.class);
+    private final RateLimiter requests = new RateLimiter();
+    private final RateLimiter bytes = new RateLimiter();
+
+    private File file;
+    private long lastModified = -1;
+    private volatile List<Rule> rules = Collections.emptyList();
+    private Thread thread;
+
+    public RateLimits() {
+        for (Operation operation : Operation.values()) operations.put(operation, new RateLimiter());
+    }
+
+    /** wait until one request of this kind may be sent */
+    public void acquire(Operation operation) {
+        requests.acquire(1);
+        operations.get(operation).acquire(1);
+    }
+
+    /** wait until one request of this kind, which copies this many bytes, may be sent */
+    public void acquire(Operation operation, long bytesCopied) {
+        acquire(operation);
+        bytes.acquire(bytesCopied);
+    }
+
+    /** read the schedule from file, and keep following it until stop is called */
+    public void start(File file) throws IOException {
+        this.file = file;
+        reload();
+        thread = new Thread(this, "rate-limits");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (thread != null) thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            if (Sleep.sleep((int) RELOAD_MILLIS)) return;
+            try {
+                reload();
+            } catch (Exception e) {
+                log.error("Error reading rate limits from "+file+", keeping the current ones: "+e);
+            }
+        }
+    }
+
+    private synchronized void reload() throws IOException {
+        if (file.lastModified() != lastModified) {
+            lastModified = file.lastModified();
+            rules = parse(file);
+            log.info("Read "+rules.size()+" rate limits from "+file);
+        }
+        apply(rules, Calendar.getInstance());
+    }
+
+    /** set every limiter from the rules that apply at the given time */
+    synchronized void apply(List<Rule> rules, Calendar when) {
+        for (Operation operation : Operation.values()) {
+            setRate(operation.name().toLowerCase(), operations.get(operation), rules, when);
+        }
+        setRate(REQUESTS, requests, rules, when);
+        setRate(BYTES, bytes, rules, when);
+    }
+
+    private void setRate(String limit, RateLimiter limiter, List<Rule> rules, Calendar when) {
+        double rate = 0;
+        for (Rule rule : rules) {
+            if (rule.limit.equals(limit) && rule.applies(when)) {
+                rate = rule.rate;
+                break;
+            }
+        }
+        if (rate != limiter.getRate()) {
+            log.info("rate limit for "+limit+": "+(rate == 0 ? "unlimited" : rate+"/s"));
+            limiter.setRate(rate);
+        }
+    }
+
+    /** @return the limiter for an operation, or for REQUESTS or BYTES */
+    RateLimiter getLimiter(String limit) {
+        if (limit.equals(REQUESTS)) return requests;
+        if (limit.equals(BYTES)) return bytes;
+        return operations.get(Operation.valueOf(limit.toUpperCase()));
+    }
+
+    static List<Rule> parse(File file) throws IOException {
+        final List<Rule> rules = new ArrayList<Rule>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                try {
+                    rules.add(parseRule(line));
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException(file+" line "+lineNumber+": "+e.getMessage(), e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rules;
+    }
+
+    static Rule parseRule(String line) {
+        final String[] parts = line.split("\\s+");
+        if (parts.length < 2 || parts.length > 4) throw new IllegalArgumentException("expected: limit rate [HH:MM-HH:MM] [days]");
+
+        final String limit = parts[0].toLowerCase();
+        boolean known = limit.equals(REQUESTS) || limit.equals(BYTES);
+        for (Operation operation : Operation.values()) known |= operation.name().equalsIgnoreCase(limit);
+        if (!known) throw new IllegalArgumentException("unknown limit: "+parts[0]);
+
+        final double rate = parts[1].equalsIgnoreCase("unlimited") ? 0
+                : limit.equals(BYTES) ? S3ToS3Options.parseBytes(parts[1]) : Double.parseDouble(parts[1]);
+        if (rate < 0) throw new IllegalArgumentException("rate cannot be negative: "+parts[1]);
+
+        int start = -1;
+        int end = -1;
+        BitSet days = null;
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].contains(":")) {
+                final String[] window = parts[i].split("-");
+                if (window.length != 2) throw new IllegalArgumentException("invalid time window: "+parts[i]);
+                start = parseMinute(window[0]);
+                end = parseMinute(window[1]);
+            } else {
+                days = parseDays(parts[i]);
+            }
+        }
+        return new Rule(limit, rate, start, end, days);
+    }
+
+    private static int parseMinute(String time) {
+        final String[] hm = time.split(":");
+        if (hm.length != 2) throw new IllegalArgumentException("invalid time: "+time);
+        final int hour = Integer.parseInt(hm[0]);
+        final int minute = Integer.parseInt(hm[1]);
+        if (hour < 0 || hour > 24 || minute < 0 || minute > 59) throw new IllegalArgumentException("invalid time: "+time);
+        return hour * 60 + minute;
+    }
+
+    private static BitSet parseDays(String spec) {
+        final BitSet days = new BitSet(7);
+        for (String range : spec.toLowerCase().split(",")) {
+            final String[] ends = range.split("-");
+            final int first = day(ends[0]);
+            final int last = ends.length > 1 ? day(ends[1]) : first;
+            for (int day = first; ; day = (day + 1) % 7) {
+                days.set(day);
+                if (day == last) break;
+            }
+        }
+        return days;
+    }
+
+    private static int day(String name) {
+        final int day = DAYS.indexOf(name.length() > 3 ? name.substring(0, 3) : name);
+        if (day < 0) throw new IllegalArgumentException("unknown day: "+name);
+        return day;
+    }
+}
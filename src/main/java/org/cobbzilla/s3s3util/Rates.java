@@ -0,0 +1,65 @@
+package org.cobbzilla.s3s3util;
+
+/**
+ * The recent rate of a growing total (keys done, bytes copied), as of the last tick: over sliding windows of the
+ * last 1, 5 and 15 minutes, and as exponentially weighted moving averages over the same periods (as Unix load
+ * averages are), which react sooner to a change but never quite forget the past.
+ *
+ * tick is called every TICK_SECONDS (by StatusReporter) with the total at the time.
+ */
+public class Rates {
+
+    public static final int TICK_SECONDS = 5;
+    public static final int[] WINDOW_MINUTES = {1, 5, 15};
+
+    private static final int TICKS = 15 * 60 / TICK_SECONDS;
+
+    // what the total grew by in each of the last TICKS ticks, indexed by tick % TICKS
+    private final long[] deltas = new long[TICKS];
+    private long ticks = 0;
+    private long last = 0;
+
+    private final double[] ewma = new double[WINDOW_MINUTES.length];
+    private final double[] alpha = new double[WINDOW_MINUTES.length];
+
+    public Rates() {
+        for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+            alpha[i] = 1 - Math.exp(-TICK_SECONDS / (60.0 * WINDOW_MINUTES[i]));
+        }
+    }
+
+    public synchronized void tick(long total) {
+        final long delta = total - last;
+        last = total;
+        deltas[(int) (ticks % TICKS)] = delta;
+        final double rate = delta / (double) TICK_SECONDS;
+        for (int i = 0; i < ewma.length; i++) {
+            // the first tick starts the average, rather than pulling it up from zero
+            ewma[i] = ticks == 0 ? rate : ewma[i] + alpha[i] * (rate - ewma[i]);
+        }
+        ticks++;
+    }
+
+    /** @return how many times tick has been called */
+    public synchronized long getTicks() { return ticks; }
+
+    /**
+     * @param minutes the length of the window, at most 15
+     * @return the average rate per second over the last minutes, or over the whole run if it is shorter
+     */
+    public synchronized double getRate(int minutes) {
+        final int window = (int) Math.min(ticks, Math.min(TICKS, minutes * 60 / TICK_SECONDS));
+        if (window == 0) return 0;
+        long sum = 0;
+        for (int i = 1; i <= window; i++) sum += deltas[(int) ((ticks - i) % TICKS)];
+        return sum / (double) (window * TICK_SECONDS);
+    }
+
+    /** @return the exponentially weighted moving average rate per second, over about this many minutes (1, 5 or 15) */
+    public synchronized double getEwma(int minutes) {
+        for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+            if (WINDOW_MINUTES[i] == minutes) return ewma[i];
+        }
+        throw new IllegalArgumentException("no moving average over "+minutes+" minutes");
+    }
+}
@@ -0,0 +1,345 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether, and when, a failed S3 request is tried again. Shared by every job, lister and batcher in a run.
+ *
+ * Errors are classified as throttling (503 SlowDown and the like), server errors (other 5xx), network errors (no
+ * response at all) and client errors (other 4xx, which are not retried). Retries wait with "decorrelated jitter":
+ * each wait is random, between the base delay and three times the previous wait, up to a cap, so that requests that
+ * failed together do not retry together. Throttling starts from a longer base delay.
+ *
+ * Two things protect S3 (and the run) when errors are widespread rather than one-off:
+ *  - a retry budget: each retry spends RETRY_COST tokens (THROTTLE_RETRY_COST when throttled) and each success
+ *    earns one back, up to RETRY_BUDGET. A request that fails while the budget is empty is not retried, so that
+ *    retries can never multiply the request rate by more than a little.
+ *  - a circuit breaker: when at least BREAKER_ERROR_RATE of the requests in the last BREAKER_WINDOW_SECONDS
+ *    seconds (and at least BREAKER_MIN_REQUESTS of them) failed with a retryable error, every request waits until
+ *    the breaker closes again. After BREAKER_OPEN_MILLIS one request is let through; if it succeeds the breaker
+ *    closes, otherwise it stays open twice as long, up to BREAKER_MAX_OPEN_MILLIS. Only that request (the probe)
+ *    decides: requests already in flight when the breaker opened are counted, but change nothing when they finish.
+ *
+ * Each attempt also waits for the --rate-limits that apply to its kind of request, so that retries are limited too.
+ */
+@Slf4j
+public class RetryPolicy {
+
+    public enum ErrorClass {
+        THROTTLED, SERVER, NETWORK, CLIENT;
+        public boolean isRetryable() { return this != CLIENT; }
+    }
+
+    public static final long BASE_DELAY_MILLIS = 20;
+    public static final long THROTTLE_BASE_DELAY_MILLIS = 200;
+    public static final long MAX_DELAY_MILLIS = 2000;
+    public static final long THROTTLE_MAX_DELAY_MILLIS = 20000;
+
+    public static final int RETRY_BUDGET = 500;
+    public static final int RETRY_COST = 5;
+    public static final int THROTTLE_RETRY_COST = 10;
+
+    public static final int BREAKER_WINDOW_SECONDS = 10;
+    public static final int BREAKER_MIN_REQUESTS = 50;
+    public static final double BREAKER_ERROR_RATE = 0.5;
+    public static final long BREAKER_OPEN_MILLIS = 1000;
+    public static final long BREAKER_MAX_OPEN_MILLIS = 30000;
+
+    private static final Set<String> THROTTLE_CODES = new HashSet<String>(Arrays.asList(
+            "SlowDown", "Throttling", "ThrottlingException", "ThrottledException", "RequestThrottled",
+            "RequestThrottledException", "TooManyRequestsException", "RequestLimitExceeded", "BandwidthLimitExceeded",
+            "ProvisionedThroughputExceededException"));
+
+    private static final Set<String> TRANSIENT_CODES = new HashSet<String>(Arrays.asList(
+            "InternalError", "ServiceUnavailable", "RequestTimeout", "RequestTimeTooSkewed", "OperationAborted"));
+
+    private final S3ToS3Stats stats;
+    private final RateLimits rateLimits;
+
+    // retries made on each thread, so that a job's retries can be charged to its key (see PrefixStats)
+    private final ThreadLocal<long[]> threadRetries = new ThreadLocal<long[]>() {
+        @Override protected long[] initialValue() { return new long[1]; }
+    };
+
+    /** @return how many retries have been made on this thread */
+    public long getThreadRetries() { return threadRetries.get()[0]; }
+
+    public RetryPolicy(S3ToS3Stats stats) { this(stats, new RateLimits()); }
+
+    public RetryPolicy(S3ToS3Stats stats, RateLimits rateLimits) {
+        this.stats = stats;
+        this.rateLimits = rateLimits;
+    }
+
+    /** @return the class of error e is */
+    public static ErrorClass classify(Throwable e) {
+        if (e instanceof MultiObjectDeleteException) {
+            ErrorClass worst = ErrorClass.CLIENT;
+            for (MultiObjectDeleteException.DeleteError error : ((MultiObjectDeleteException) e).getErrors()) {
+                final ErrorClass errorClass = classifyCode(error.getCode());
+                if (errorClass == ErrorClass.THROTTLED) return errorClass;
+                if (errorClass.isRetryable()) worst = errorClass;
+            }
+            return worst;
+        }
+        if (e instanceof AmazonServiceException) {
+            final AmazonServiceException ase = (AmazonServiceException) e;
+            final String code = ase.getErrorCode();
+            final int status = ase.getStatusCode();
+            if (code != null && THROTTLE_CODES.contains(code)) return ErrorClass.THROTTLED;
+            if (status == 429) return ErrorClass.THROTTLED;
+            if (code != null && TRANSIENT_CODES.contains(code)) return ErrorClass.SERVER;
+            if (status >= 400 && status < 500) return ErrorClass.CLIENT;
+            // 5xx, or a service error with no status at all
+            return ErrorClass.SERVER;
+        }
+        if (e instanceof AmazonClientException || e instanceof IOException) return ErrorClass.NETWORK;
+        // anything else is unexpected, but has always been retried
+        return ErrorClass.SERVER;
+    }
+
+    /** @return the class of error a per-key error code (as in a multi-object delete response) is */
+    public static ErrorClass classifyCode(String code) {
+        if (code == null) return ErrorClass.SERVER;
+        if (THROTTLE_CODES.contains(code)) return ErrorClass.THROTTLED;
+        if (TRANSIENT_CODES.contains(code)) return ErrorClass.SERVER;
+        return ErrorClass.CLIENT;
+    }
+
+    // ---- retry budget
+
+    private int budget = RETRY_BUDGET;
+    private boolean budgetExhausted = false;
+
+    synchronized boolean spend(ErrorClass errorClass) {
+        final int cost = errorClass == ErrorClass.THROTTLED ? THROTTLE_RETRY_COST : RETRY_COST;
+        if (budget < cost) {
+            if (!budgetExhausted) log.warn("retry budget exhausted: failing requests will not be retried until more succeed");
+            budgetExhausted = true;
+            stats.retriesDenied.increment();
+            return false;
+        }
+        budget -= cost;
+        return true;
+    }
+
+    synchronized void earn() {
+        if (budget < RETRY_BUDGET) budget++;
+        if (budgetExhausted && budget >= RETRY_BUDGET / 10) {
+            log.info("retry budget restored");
+            budgetExhausted = false;
+        }
+    }
+
+    public synchronized int getBudget() { return budget; }
+
+    // ---- circuit breaker
+
+    private enum BreakerState { CLOSED, OPEN, HALF_OPEN }
+
+    private final Object breaker = new Object();
+    private BreakerState breakerState = BreakerState.CLOSED;
+    private long openUntil = 0;
+    private long openMillis = BREAKER_OPEN_MILLIS;
+    private boolean probing = false;
+    private long probeStarted = 0;
+    // the number of the probe being waited for; each request let through while half open gets the next one
+    private long probe = 0;
+
+    // requests and errors per second over the window, indexed by second % BREAKER_WINDOW_SECONDS
+    private final long[] windowSeconds = new long[BREAKER_WINDOW_SECONDS];
+    private final int[] windowRequests = new int[BREAKER_WINDOW_SECONDS];
+    private final int[] windowErrors = new int[BREAKER_WINDOW_SECONDS];
+
+    public boolean isBreakerOpen() { synchronized (breaker) { return breakerState != BreakerState.CLOSED; } }
+
+    /**
+     * Wait until a request may be sent.
+     * @return the request's probe number, if it is let through as the probe of a half-open breaker, otherwise 0
+     */
+    private long awaitBreaker() throws InterruptedException {
+        synchronized (breaker) {
+            while (true) {
+                if (breakerState == BreakerState.CLOSED) return 0;
+                final long now = System.currentTimeMillis();
+                if (breakerState == BreakerState.OPEN && now >= openUntil) breakerState = BreakerState.HALF_OPEN;
+                // a probe that never reports back (its thread died, say) is given up on eventually
+                if (breakerState == BreakerState.HALF_OPEN && (!probing || now - probeStarted > BREAKER_MAX_OPEN_MILLIS)) {
+                    probing = true;
+                    probeStarted = now;
+                    return ++probe;
+                }
+                breaker.wait(breakerState == BreakerState.OPEN ? Math.max(1, openUntil - now) : 100);
+            }
+        }
+    }
+
+    /** @param probe the request's probe number (see awaitBreaker) */
+    private void record(boolean error, long probe) {
+        synchronized (breaker) {
+            final long second = System.currentTimeMillis() / 1000;
+            final int slot = (int) (second % BREAKER_WINDOW_SECONDS);
+            if (windowSeconds[slot] != second) {
+                windowSeconds[slot] = second;
+                windowRequests[slot] = 0;
+                windowErrors[slot] = 0;
+            }
+            windowRequests[slot]++;
+            if (error) windowErrors[slot]++;
+
+            if (breakerState == BreakerState.HALF_OPEN && probing && probe == this.probe) {
+                probing = false;
+                if (error) {
+                    openMillis = Math.min(2 * openMillis, BREAKER_MAX_OPEN_MILLIS);
+                    open("probe request failed");
+                } else {
+                    log.info("circuit breaker closed");
+                    breakerState = BreakerState.CLOSED;
+                    openMillis = BREAKER_OPEN_MILLIS;
+                    clearWindow();
+                }
+                breaker.notifyAll();
+                return;
+            }
+            if (breakerState != BreakerState.CLOSED || !error) return;
+
+            int requests = 0;
+            int errors = 0;
+            for (int i = 0; i < BREAKER_WINDOW_SECONDS; i++) {
+                if (second - windowSeconds[i] >= BREAKER_WINDOW_SECONDS) continue;
+                requests += windowRequests[i];
+                errors += windowErrors[i];
+            }
+            if (requests >= BREAKER_MIN_REQUESTS && errors >= BREAKER_ERROR_RATE * requests) {
+                open(errors+" of "+requests+" requests failed in the last "+BREAKER_WINDOW_SECONDS+" seconds");
+            }
+        }
+    }
+
+    private void open(String reason) {
+        log.warn("circuit breaker open for "+openMillis+"ms: "+reason);
+        stats.breakerTrips.increment();
+        breakerState = BreakerState.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+    }
+
+    private void clearWindow() {
+        Arrays.fill(windowSeconds, 0);
+        Arrays.fill(windowRequests, 0);
+        Arrays.fill(windowErrors, 0);
+    }
+
+    /** @return the attempts of one request, which may be tried up to maxAttempts times, and is not rate limited */
+    public Attempts attempts(int maxAttempts) { return new Attempts(maxAttempts, null, 0); }
+
+    /** @return the attempts of one request of this kind, which may be tried up to maxAttempts times */
+    public Attempts attempts(int maxAttempts, RateLimits.Operation operation) { return new Attempts(maxAttempts, operation, 0); }
+
+    /** @return the attempts of one request of this kind, copying this many bytes, which may be tried up to maxAttempts times */
+    public Attempts attempts(int maxAttempts, RateLimits.Operation operation, long bytes) { return new Attempts(maxAttempts, operation, bytes); }
+
+    /**
+     * The attempts of one request. Use as:
+     * <pre>
+     *     final RetryPolicy.Attempts attempts = retryPolicy.attempts(options.getMaxRetries(), RateLimits.Operation.HEAD);
+     *     while (attempts.next()) {
+     *         try {
+     *             ... send the request ...
+     *             attempts.succeeded();
+     *             return;
+     *         } catch (Exception e) {
+     *             attempts.failed(e);
+     *         }
+     *     }
+     * </pre>
+     */
+    public class Attempts {
+        private final int maxAttempts;
+        private final RateLimits.Operation operation;
+        private final long bytes;
+        /** how many attempts have been started: the current attempt is #getTries()-1 */
+        @Getter private int tries = 0;
+        @Getter private ErrorClass lastError = null;
+        private long lastDelay = 0;
+        private long started = 0;
+        private long probe = 0;
+
+        private Attempts(int maxAttempts, RateLimits.Operation operation, long bytes) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.operation = operation;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Wait until the next attempt may be made: the first at once, later ones after a backoff, and all of them
+         * while the circuit breaker is open and until the rate limits allow them.
+         * @return false if there is to be no next attempt: the request succeeded, its last error is not retryable,
+         * it has been tried maxAttempts times, the retry budget is empty, or the thread was interrupted
+         */
+        public boolean next() {
+            if (tries > 0) {
+                if (lastError == null || !lastError.isRetryable() || tries >= maxAttempts) return false;
+                if (!spend(lastError)) return false;
+                stats.retries.increment();
+                threadRetries.get()[0]++;
+                if (Sleep.sleep((int) backoff())) return false;
+            }
+            try {
+                probe = awaitBreaker();
+            } catch (InterruptedException e) {
+                log.error("interrupted while waiting for circuit breaker");
+                return false;
+            }
+            if (operation != null) {
+                if (bytes > 0) {
+                    rateLimits.acquire(operation, bytes);
+                } else {
+                    rateLimits.acquire(operation);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    log.error("interrupted while waiting for rate limits");
+                    return false;
+                }
+            }
+            tries++;
+            lastError = null;
+            started = System.nanoTime();
+            return true;
+        }
+
+        public void succeeded() {
+            lastError = null;
+            stats.requestsSucceeded.increment();
+            stats.requestNanos.add(System.nanoTime() - started);
+            earn();
+            record(false, probe);
+        }
+
+        /** @return the class of e */
+        public ErrorClass failed(Throwable e) {
+            lastError = classify(e);
+            if (lastError == ErrorClass.THROTTLED) stats.throttled.increment();
+            record(lastError.isRetryable(), probe);
+            return lastError;
+        }
+
+        private long backoff() {
+            final boolean throttled = lastError == ErrorClass.THROTTLED;
+            final long base = throttled ? THROTTLE_BASE_DELAY_MILLIS : BASE_DELAY_MILLIS;
+            final long cap = throttled ? THROTTLE_MAX_DELAY_MILLIS : MAX_DELAY_MILLIS;
+            final long previous = Math.max(base, lastDelay);
+            lastDelay = Math.min(cap, base + ThreadLocalRandom.current().nextLong(3 * previous - base + 1));
+            return lastDelay;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.*;
+
+/**
+ * The S3 requests s3s3mirror sends, and nothing else. Listers, jobs and batchers send their requests through this
+ * rather than through an AmazonS3Client, so that something other than S3 can answer them (such as a stand-in for
+ * tests), and so that the transport can be changed without touching them.
+ *
+ * Methods have the same signatures, and throw the same exceptions, as their namesakes on AmazonS3.
+ *
+ * @see BlockingS3Operations
+ */
+public interface S3Operations {
+
+    ListObjectsV2Result listObjectsV2(ListObjectsV2Request request);
+
+    ObjectMetadata getObjectMetadata(String bucket, String key);
+
+    AccessControlList getObjectAcl(String bucket, String key);
+
+    CopyObjectResult copyObject(CopyObjectRequest request);
+
+    InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request);
+
+    CopyPartResult copyPart(CopyPartRequest request);
+
+    CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request);
+
+    void abortMultipartUpload(AbortMultipartUploadRequest request);
+
+    void deleteObject(DeleteObjectRequest request);
+
+    DeleteObjectsResult deleteObjects(DeleteObjectsRequest request);
+}
@@ -1,13 +1,55 @@
 package org.cobbzilla.s3s3util;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
-@AllArgsConstructor
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class S3ToS3Context {
 
     @Getter @Setter private S3ToS3Options options;
     @Getter private final S3ToS3Stats stats = new S3ToS3Stats();
 
+    /** how far along the run is, from what the listers and jobs report */
+    @Getter private final Progress progress = new Progress(stats);
+
+    /** the busiest prefixes of the run, by objects, bytes, errors and retries (--top-prefixes) */
+    @Getter private final PrefixStats prefixStats = new PrefixStats(this);
+
+    /** shared by every request in the run; without --rate-limits, nothing is limited */
+    @Getter private final RateLimits rateLimits = new RateLimits();
+
+    /** shared by every request in the run, so backoff, the retry budget and the circuit breaker see all of them */
+    @Getter private final RetryPolicy retryPolicy = new RetryPolicy(stats, rateLimits);
+
+    /** set by S3ToS3Master for the duration of a run; when null, keys are deleted one request at a time */
+    @Getter @Setter private DeleteBatcher deleteBatcher;
+
+    /** the executor that runs KeyJobs, set by S3ToS3Master */
+    @Getter @Setter private ThreadPoolExecutor executor;
+
+    /**
+     * the executor multipart copies run their helpers on, set by S3ToS3Master: apart from the jobs, so that the parts
+     * of an upload are not queued behind every job waiting for a thread. When null, each job copies its parts itself
+     */
+    @Getter @Setter private ThreadPoolExecutor partExecutor;
+
+    /** estimated bytes of listed keys held in memory by every PendingKeyQueue, limited by --max-queue-memory */
+    @Getter private final AtomicLong queuedKeyBytes = new AtomicLong(0);
+
+    /** shared by every multipart copy in the run, so part sizes follow the throughput seen so far */
+    @Getter private final PartPlanner partPlanner = new PartPlanner();
+
+    /** set by S3ToS3Master when --shard-prefix-length is used; when null, KeyMasters submit jobs to the executor directly */
+    @Getter @Setter private ShardScheduler shardScheduler;
+
+    /** set by S3ToS3Master when the run is journaled (--journal or --resume) */
+    @Getter @Setter private Journal journal;
+
+    /** set by S3ToS3Master when --dest-index is used */
+    @Getter @Setter private DestinationIndex destinationIndex;
+
+    public S3ToS3Context(S3ToS3Options options) { this.options = options; }
+
 }
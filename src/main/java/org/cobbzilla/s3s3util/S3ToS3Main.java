@@ -2,6 +2,7 @@ package org.cobbzilla.s3s3util;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Protocol;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
 import com.amazonaws.auth.BasicSessionCredentials;
@@ -61,21 +62,28 @@ public class S3ToS3Main {
 
             client = getAmazonS3Client();
             context = new S3ToS3Context(options);
-            master = new S3ToS3Master(client, context);
+            master = new S3ToS3Master(new BlockingS3Operations(client), context);
 
             Runtime.getRuntime().addShutdownHook(context.getStats().getShutdownHook());
             Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
         }
     }
 
-    protected AmazonS3Client getAmazonS3Client() {
+    protected ClientConfiguration getClientConfiguration() {
+        // RetryPolicy makes every retry, so that its budget, breaker, counters and latencies see each request
         ClientConfiguration clientConfiguration = new ClientConfiguration().withProtocol((options.isSsl() ? Protocol.HTTPS : Protocol.HTTP))
-                .withMaxConnections(options.getMaxConnections());
+                .withMaxConnections(options.getConnectionPoolSize())
+                .withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
         if (options.getHasProxy()) {
             clientConfiguration = clientConfiguration
                     .withProxyHost(options.getProxyHost())
                     .withProxyPort(options.getProxyPort());
         }
+        return clientConfiguration;
+    }
+
+    protected AmazonS3Client getAmazonS3Client() {
+        final ClientConfiguration clientConfiguration = getClientConfiguration();
         AmazonS3Client client = null;
         if(System.getenv("AWS_SECURITY_TOKEN") != null) {
             BasicSessionCredentials basicSessionCredentials = new BasicSessionCredentials(System.getenv("AWS_ACCESS_KEY_ID"), System.getenv("AWS_SECRET_ACCESS_KEY"), System.getenv("AWS_SECURITY_TOKEN"));
@@ -1,9 +1,10 @@
 package org.cobbzilla.s3s3util;
 
-import com.amazonaws.services.s3.AmazonS3Client;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages the Starts a KeyLister and sends batches of keys to the ExecutorService for handling by KeyJobs
@@ -13,15 +14,42 @@ public class S3ToS3Master {
 
     public static final String VERSION = System.getProperty("s3tos3util.version");
 
-    private final AmazonS3Client client;
+    private final S3Operations client;
     private final S3ToS3Context context;
 
-    public S3ToS3Master(AmazonS3Client client, S3ToS3Context context) {
-        this.client = client;
+    public S3ToS3Master(S3Operations client, S3ToS3Context context) {
+        this.client = new TimedS3Operations(client, context.getStats());
         this.context = context;
     }
 
     public void mirror() {
+        final MirrorMetrics metrics = new MirrorMetrics(context);
+        MetricsServer metricsServer = null;
+        final int metricsPort = context.getOptions().getMetricsPort();
+        if (metricsPort > 0) {
+            try {
+                metricsServer = new MetricsServer(metricsPort, metrics);
+            } catch (Exception e) {
+                log.error("Error serving metrics on port "+metricsPort+": "+e, e);
+                return;
+            }
+            metricsServer.start();
+        }
+        metrics.register();
+        final StatusReporter statusReporter = new StatusReporter(context);
+        statusReporter.start();
+        try {
+            run();
+        } finally {
+            statusReporter.stop();
+            final String topPrefixes = context.getPrefixStats().format();
+            if (topPrefixes.length() > 0) log.info("busiest prefixes:\n" + topPrefixes);
+            metrics.unregister();
+            if (metricsServer != null) metricsServer.stop();
+        }
+    }
+
+    private void run() {
 
         log.info("version "+VERSION+" starting");
 
@@ -30,35 +58,88 @@ public class S3ToS3Master {
         if (options.isVerbose() && options.hasCtime())
             log.info("will not copy anything "+((options.isYounger())?"older":"younger") + "than "+options.getCtime()+" (cutoff="+options.getAgeDate()+")");
 
-        final int maxQueueCapacity = getMaxQueueCapacity(options);
-        final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(maxQueueCapacity);
-        final RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
-            @Override
-            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-                log.error("Error submitting job: "+r+", possible queue overflow");
+        // before anything else talks to S3: listing the destination index is limited too
+        final File rateLimitsFile = options.getRateLimits();
+        if (rateLimitsFile != null) {
+            try {
+                context.getRateLimits().start(rateLimitsFile);
+            } catch (Exception e) {
+                log.error("Error reading rate limits "+rateLimitsFile+": "+e, e);
+                return;
             }
-        };
+        }
 
-        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, workQueue, rejectedExecutionHandler);
+        final File journalFile = options.getJournalFile();
+        if (journalFile != null) {
+            try {
+                context.setJournal(Journal.open(journalFile, options, options.getResume() != null));
+            } catch (Exception e) {
+                log.error("Error opening journal "+journalFile+": "+e, e);
+                context.getRateLimits().stop();
+                return;
+            }
+        }
 
-        final KeyMaster copyMaster = new CopyMaster(client, context, workQueue, executorService);
+        final File indexFile = options.getDestIndex();
+        if (indexFile != null) {
+            try {
+                context.setDestinationIndex(DestinationIndex.open(client, context, indexFile));
+            } catch (Exception e) {
+                log.error("Error opening destination index "+indexFile+": "+e, e);
+                closeJournal();
+                context.getRateLimits().stop();
+                return;
+            }
+        }
+
+        // each KeyMaster limits how many of its jobs can be waiting here, so the queue itself need not be bounded
+        final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>();
+
+        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, workQueue);
+        if (options.isVirtualThreads()) {
+            final ThreadFactory virtual = VirtualThreads.factory("s3s3mirror-job-");
+            if (virtual != null) {
+                executorService.setThreadFactory(virtual);
+                log.info("running jobs on up to "+options.getMaxThreads()+" virtual threads");
+            } else {
+                log.warn(S3ToS3Options.LONGOPT_VIRTUAL_THREADS+": this JVM ("+System.getProperty("java.version")+") has no virtual threads, using platform threads");
+            }
+        }
+        context.setExecutor(executorService);
+        final ThreadPoolExecutor partExecutor = partExecutor(options);
+        context.setPartExecutor(partExecutor);
+        if (options.getShardPrefixLength() > 0) {
+            context.setShardScheduler(new ShardScheduler(executorService, options.getShardPrefixLength(), options.getShardMaxInFlight()));
+        }
+
+        ConcurrencyController controller = null;
+        if (options.isAdaptiveThreads()) {
+            controller = new ConcurrencyController(context, executorService);
+            controller.start();
+        }
+
+        final KeyMaster copyMaster = new CopyMaster(client, context, executorService);
         KeyMaster deleteMaster = null;
 
+        final DeleteBatcher deleteBatcher = new DeleteBatcher(client, context);
+        context.setDeleteBatcher(deleteBatcher);
+
         try {
+            deleteBatcher.start();
             copyMaster.start();
 
-            if (!context.getOptions().isDelete() && context.getOptions().isDeleteRemoved()) {
-                deleteMaster = new DeleteMaster(client, context, workQueue, executorService);
+            // with merged listings, CopyMaster finds removed keys itself
+            if (!options.isDelete() && options.isDeleteRemoved() && !options.isMergeListings()) {
+                deleteMaster = new DeleteMaster(client, context, executorService);
                 deleteMaster.start();
             }
 
-            while (true) {
-                if (copyMaster.isDone() && (deleteMaster == null || deleteMaster.isDone())) {
-                    log.info("mirror: completed");
-                    break;
-                }
-                if (Sleep.sleep(100)) return;
-            }
+            copyMaster.awaitDone();
+            if (deleteMaster != null) deleteMaster.awaitDone();
+            log.info("mirror: completed");
+
+        } catch (InterruptedException e) {
+            log.error("interrupted!");
 
         } catch (Exception e) {
             log.error("Unexpected exception in mirror: "+e, e);
@@ -68,16 +149,50 @@ public class S3ToS3Master {
             if (deleteMaster != null) {
                 try { deleteMaster.stop(); } catch (Exception e) { log.error("Error stopping deleteMaster: "+e, e); }
             }
+            // all jobs have finished, send whatever deletes they left in partially filled batches
+            try { deleteBatcher.close(); } catch (Exception e) { log.error("Error flushing deleteBatcher: "+e, e); }
+            context.setDeleteBatcher(null);
+            if (context.getDestinationIndex() != null) {
+                try { context.getDestinationIndex().close(); } catch (Exception e) { log.error("Error closing destination index: "+e, e); }
+                context.setDestinationIndex(null);
+            }
+            closeJournal();
+            if (controller != null) controller.stop();
+            context.getRateLimits().stop();
+            context.setShardScheduler(null);
+            context.setExecutor(null);
+            context.setPartExecutor(null);
+            executorService.shutdown();
+            // lets multipart helpers with nothing left to claim finish
+            partExecutor.shutdown();
         }
     }
 
-    public static int getMaxQueueCapacity(S3ToS3Options options) {
-        long freeMem = Runtime.getRuntime().freeMemory();
-        long maxMem = Runtime.getRuntime().maxMemory();
-        int maxCapacity = Math.max(10 * options.getMaxThreads(), (int) (freeMem * 0.40) / 20);
-        log.info("Total Free available memory {}", freeMem);
-        log.info("Max Queue Capacity {}", maxCapacity);
-        return maxCapacity;
+    /** a small pool for the parts of multipart copies, a quarter the size of the job pool */
+    private ThreadPoolExecutor partExecutor(S3ToS3Options options) {
+        final int threads = Math.max(2, options.getMaxThreads() / 4);
+        final ThreadPoolExecutor partExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        final ThreadFactory virtual = options.isVirtualThreads() ? VirtualThreads.factory("s3s3mirror-part-") : null;
+        if (virtual != null) {
+            partExecutor.setThreadFactory(virtual);
+        } else {
+            final AtomicInteger count = new AtomicInteger(0);
+            partExecutor.setThreadFactory(new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "s3s3mirror-part-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return partExecutor;
+    }
+
+    private void closeJournal() {
+        if (context.getJournal() != null) {
+            try { context.getJournal().close(); } catch (Exception e) { log.error("Error closing journal: "+e, e); }
+            context.setJournal(null);
+        }
     }
 
 }
@@ -7,9 +7,10 @@ import org.joda.time.DateTime;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import java.io.File;
 import java.util.Date;
 
-import static org.cobbzilla.s3s3util.S3ToS3Constants.GB;
+import static org.cobbzilla.s3s3util.S3ToS3Constants.*;
 
 public class S3ToS3Options implements AWSCredentials {
 
@@ -82,6 +83,9 @@ public class S3ToS3Options implements AWSCredentials {
     public boolean hasDestPrefix() { return destPrefix != null && destPrefix.length() > 0; }
     public int getDestPrefixLength () { return destPrefix == null ? 0 : destPrefix.length(); }
 
+    /** @return the prefix under which destination keys live: the dest-prefix if there is one, otherwise the source prefix */
+    public String getDestListingPrefix () { return hasDestPrefix() ? destPrefix : prefix; }
+
     public static final String AWS_ENDPOINT = "AWS_ENDPOINT";
 
     public static final String USAGE_ENDPOINT = "AWS endpoint to use (or set "+AWS_ENDPOINT+" in your environment)";
@@ -106,12 +110,92 @@ public class S3ToS3Options implements AWSCredentials {
     @Setter
     private int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
 
+    public static final String USAGE_ADAPTIVE_THREADS = "Adjust the number of threads while running, between " +
+            ConcurrencyController.MIN_THREADS+" and "+LONGOPT_MAX_THREADS+", from the throughput, latency and throttling " +
+            "of S3 requests, instead of always running "+LONGOPT_MAX_THREADS+" threads";
+    public static final String OPT_ADAPTIVE_THREADS = "-D";
+    public static final String LONGOPT_ADAPTIVE_THREADS = "--adaptive-threads";
+    @Option(name=OPT_ADAPTIVE_THREADS, aliases=LONGOPT_ADAPTIVE_THREADS, usage=USAGE_ADAPTIVE_THREADS)
+    @Getter @Setter private boolean adaptiveThreads = false;
+
+    public static final String USAGE_VIRTUAL_THREADS = "Run jobs on virtual threads instead of platform threads, when the " +
+            "JVM has them (Java 21 or later), so that "+LONGOPT_MAX_THREADS+" can be in the thousands: each job spends most " +
+            "of its time waiting for S3, and a waiting virtual thread costs little. Also raises "+LONGOPT_MAX_CONNECTIONS+
+            " to "+LONGOPT_MAX_THREADS+" if it is lower";
+    public static final String OPT_VIRTUAL_THREADS = "-V";
+    public static final String LONGOPT_VIRTUAL_THREADS = "--virtual-threads";
+    @Option(name=OPT_VIRTUAL_THREADS, aliases=LONGOPT_VIRTUAL_THREADS, usage=USAGE_VIRTUAL_THREADS)
+    @Getter @Setter private boolean virtualThreads = false;
+
+    /** @return the size of the HTTP connection pool: with threads that can grow past it, one connection per thread */
+    public int getConnectionPoolSize () {
+        return adaptiveThreads || virtualThreads ? Math.max(maxConnections, maxThreads) : maxConnections;
+    }
+
     public static final String USAGE_MAX_RETRIES = "Maximum number of retries for S3 requests (default 5)";
     public static final String OPT_MAX_RETRIES = "-r";
     public static final String LONGOPT_MAX_RETRIES = "--max-retries";
     @Option(name=OPT_MAX_RETRIES, aliases=LONGOPT_MAX_RETRIES, usage=USAGE_MAX_RETRIES)
     @Getter @Setter private int maxRetries = 5;
-    
+
+    public static final String USAGE_MAX_QUEUE_MEMORY = "Memory to use for keys that have been listed but not yet copied, in bytes or with a " +
+            "K, M or G suffix. Once it is used up, further keys are spilled to a temporary file (default 1/4 of the max heap size)";
+    public static final String OPT_MAX_QUEUE_MEMORY = "-Q";
+    public static final String LONGOPT_MAX_QUEUE_MEMORY = "--max-queue-memory";
+    @Option(name=OPT_MAX_QUEUE_MEMORY, aliases=LONGOPT_MAX_QUEUE_MEMORY, usage=USAGE_MAX_QUEUE_MEMORY)
+    @Getter @Setter private String maxQueueMemory = null;
+
+    public long getMaxQueueMemoryBytes () {
+        if (maxQueueMemory == null) return Runtime.getRuntime().maxMemory() / 4;
+        return parseBytes(maxQueueMemory);
+    }
+
+    /** @return a number of bytes, given as a number with an optional K, M or G suffix */
+    public static long parseBytes (String bytes) {
+        final String value = bytes.trim().toUpperCase();
+        final char unit = value.charAt(value.length() - 1);
+        switch (unit) {
+            case 'K': return Long.parseLong(value.substring(0, value.length() - 1)) * KB;
+            case 'M': return Long.parseLong(value.substring(0, value.length() - 1)) * MB;
+            case 'G': return Long.parseLong(value.substring(0, value.length() - 1)) * GB;
+            default:  return Long.parseLong(value);
+        }
+    }
+
+    public static final String USAGE_LIST_THREADS = "Number of concurrent listing requests per bucket. Values greater than 1 split the keyspace " +
+            "into partitions (by common prefix, or by key range when the bucket is flat) and list them in parallel (default 1)";
+    public static final String OPT_LIST_THREADS = "-L";
+    public static final String LONGOPT_LIST_THREADS = "--list-threads";
+    @Option(name=OPT_LIST_THREADS, aliases=LONGOPT_LIST_THREADS, usage=USAGE_LIST_THREADS)
+    @Getter @Setter private int listThreads = 1;
+
+    public boolean isParallelListing () { return listThreads > 1; }
+
+    public static final String USAGE_SHARD_PREFIX_LENGTH = "Spread jobs across key prefixes of this many characters " +
+            "(after --prefix), taking turns among them, instead of running them in the order keys are listed, so that no " +
+            "single prefix is throttled by S3 while others are idle. Works best with "+LONGOPT_LIST_THREADS+" above 1 (default 0, off)";
+    public static final String OPT_SHARD_PREFIX_LENGTH = "-H";
+    public static final String LONGOPT_SHARD_PREFIX_LENGTH = "--shard-prefix-length";
+    @Option(name=OPT_SHARD_PREFIX_LENGTH, aliases=LONGOPT_SHARD_PREFIX_LENGTH, usage=USAGE_SHARD_PREFIX_LENGTH)
+    @Getter @Setter private int shardPrefixLength = 0;
+
+    public static final String USAGE_SHARD_MAX_IN_FLIGHT = "With "+LONGOPT_SHARD_PREFIX_LENGTH+", the most jobs for one " +
+            "prefix that may be running at once (default 1/4 of "+LONGOPT_MAX_THREADS+")";
+    public static final String OPT_SHARD_MAX_IN_FLIGHT = "-K";
+    public static final String LONGOPT_SHARD_MAX_IN_FLIGHT = "--shard-max-in-flight";
+    @Option(name=OPT_SHARD_MAX_IN_FLIGHT, aliases=LONGOPT_SHARD_MAX_IN_FLIGHT, usage=USAGE_SHARD_MAX_IN_FLIGHT)
+    @Setter private int shardMaxInFlight = 0;
+
+    public int getShardMaxInFlight () { return shardMaxInFlight > 0 ? shardMaxInFlight : Math.max(1, maxThreads / 4); }
+
+    public static final String USAGE_MERGE_LISTINGS = "List the destination alongside the source and compare size/ETag from the two " +
+            "listings, instead of sending a HEAD request to the destination for every source key. " +
+            "With -X, objects missing from the source are found from the same listings";
+    public static final String OPT_MERGE_LISTINGS = "-M";
+    public static final String LONGOPT_MERGE_LISTINGS = "--merge-listings";
+    @Option(name=OPT_MERGE_LISTINGS, aliases=LONGOPT_MERGE_LISTINGS, usage=USAGE_MERGE_LISTINGS)
+    @Getter @Setter private boolean mergeListings = false;
+
     public static final String USAGE_SIZE_ONLY = "Only use object size when checking for equality and ignore etags";
     public static final String OPT_SIZE_ONLY = "-S";
     public static final String LONGOPT_SIZE_ONLY = "--size-only";
@@ -208,15 +292,25 @@ public class S3ToS3Options implements AWSCredentials {
      * Current max file size allowed in amazon is 5 GB. We can try and provide this as an option too.
      */
     public static final long MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE = 5 * GB;
-    private static final long DEFAULT_PART_SIZE = 4 * GB;
+    private static final long DEFAULT_PART_SIZE = 0;
     private static final String MULTI_PART_UPLOAD_SIZE_USAGE = "The upload size (in bytes) of each part uploaded as part of a multipart request " +
-            "for files that are greater than the max allowed file size of " + MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE + " bytes ("+(MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE/GB)+"GB). " +
-            "Defaults to " + DEFAULT_PART_SIZE + " bytes ("+(DEFAULT_PART_SIZE/GB)+"GB).";
+            "for files that are greater than the multipart threshold. Raised if needed to stay within the 10,000 part limit. " +
+            "Defaults to 0, which picks a size for each object from its size, the number of threads and how fast parts have been copying.";
     private static final String OPT_MULTI_PART_UPLOAD_SIZE = "-u";
     private static final String LONGOPT_MULTI_PART_UPLOAD_SIZE = "--upload-part-size";
     @Option(name=OPT_MULTI_PART_UPLOAD_SIZE, aliases=LONGOPT_MULTI_PART_UPLOAD_SIZE, usage=MULTI_PART_UPLOAD_SIZE_USAGE)
     @Getter @Setter private long uploadPartSize = DEFAULT_PART_SIZE;
 
+    public static final String MULTIPART_THRESHOLD_USAGE = "Objects larger than this size (in bytes) are copied as multipart uploads, " +
+            "with their parts copied in parallel. Cannot be more than " + MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE + " bytes ("+(MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE/GB)+"GB), " +
+            "which is also the default.";
+    public static final String OPT_MULTIPART_THRESHOLD = "-T";
+    public static final String LONGOPT_MULTIPART_THRESHOLD = "--multipart-threshold";
+    @Option(name=OPT_MULTIPART_THRESHOLD, aliases=LONGOPT_MULTIPART_THRESHOLD, usage=MULTIPART_THRESHOLD_USAGE)
+    @Getter @Setter private long multipartThreshold = MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE;
+
+    public boolean isMultipart (long size) { return size > multipartThreshold; }
+
     private static final String CROSS_ACCOUNT_USAGE ="Copy across AWS accounts. Only Resource-based policies are supported (as " +
             "specified by AWS documentation) for cross account copying. " +
             "Default is false (copying within same account, preserving ACLs across copies). " +
@@ -226,6 +320,90 @@ public class S3ToS3Options implements AWSCredentials {
     @Option(name=OPT_CROSS_ACCOUNT_COPY, aliases=LONGOPT_CROSS_ACCOUNT_COPY, usage=CROSS_ACCOUNT_USAGE)
     @Getter @Setter private boolean crossAccountCopy = false;
 
+    public static final String USAGE_SKIP_ACLS = "Do not copy object ACLs: new objects get the default ACL of the destination " +
+            "bucket. Saves a GET request per object";
+    public static final String OPT_SKIP_ACLS = "-a";
+    public static final String LONGOPT_SKIP_ACLS = "--skip-acls";
+    @Option(name=OPT_SKIP_ACLS, aliases=LONGOPT_SKIP_ACLS, usage=USAGE_SKIP_ACLS)
+    @Getter @Setter private boolean skipAcls = false;
+
+    /** @return true if each object's ACL should be fetched and set on its copy */
+    public boolean isCopyAcls () { return !crossAccountCopy && !skipAcls; }
+
+    public static final String USAGE_JOURNAL = "Record the progress of the run in this file, so that it can be resumed with " +
+            "--resume if it is interrupted";
+    public static final String OPT_JOURNAL = "-J";
+    public static final String LONGOPT_JOURNAL = "--journal";
+    @Option(name=OPT_JOURNAL, aliases=LONGOPT_JOURNAL, usage=USAGE_JOURNAL)
+    @Getter @Setter private File journal = null;
+
+    public static final String USAGE_RESUME = "Resume the run recorded in this journal file, skipping keys it had already " +
+            "finished, and carry on recording to it. Use the same source, destination and options as that run";
+    public static final String OPT_RESUME = "-R";
+    public static final String LONGOPT_RESUME = "--resume";
+    @Option(name=OPT_RESUME, aliases=LONGOPT_RESUME, usage=USAGE_RESUME)
+    @Getter @Setter private File resume = null;
+
+    /** @return the journal to write to, or null if the run is not journaled */
+    public File getJournalFile () { return resume != null ? resume : journal; }
+
+    public static final String USAGE_DEST_INDEX = "Keep the size and ETag of every destination object in this file, and " +
+            "compare source objects against it instead of sending a HEAD request to the destination for each. The file is " +
+            "built from a listing of the destination when it does not exist, and kept up to date by the copies and deletes " +
+            "of each run. Changes made to the destination by anything else are only seen after a reconcile " +
+            "(see --dest-index-max-age)";
+    public static final String OPT_DEST_INDEX = "-I";
+    public static final String LONGOPT_DEST_INDEX = "--dest-index";
+    @Option(name=OPT_DEST_INDEX, aliases=LONGOPT_DEST_INDEX, usage=USAGE_DEST_INDEX)
+    @Getter @Setter private File destIndex = null;
+
+    public static final String USAGE_DEST_INDEX_MAX_AGE = "Rebuild the "+LONGOPT_DEST_INDEX+" file from a full listing of " +
+            "the destination when it was last rebuilt this many days ago or more (default 0, only when it is missing)";
+    public static final String OPT_DEST_INDEX_MAX_AGE = "-Y";
+    public static final String LONGOPT_DEST_INDEX_MAX_AGE = "--dest-index-max-age";
+    @Option(name=OPT_DEST_INDEX_MAX_AGE, aliases=LONGOPT_DEST_INDEX_MAX_AGE, usage=USAGE_DEST_INDEX_MAX_AGE)
+    @Getter @Setter private int destIndexMaxAge = 0;
+
+    public static final String USAGE_RATE_LIMITS = "Limit S3 requests per second (of each kind, and in all) and bytes " +
+            "copied per second, as given in this file. Each line is: limit rate [HH:MM-HH:MM] [days], where limit is list, " +
+            "head, get, copy, delete, requests or bytes, for example \"copy 500 09:00-18:00 mon-fri\" or \"bytes 100M\". " +
+            "For each limit, the first line that applies at the time is used. The file is read again when it changes";
+    public static final String OPT_RATE_LIMITS = "-W";
+    public static final String LONGOPT_RATE_LIMITS = "--rate-limits";
+    @Option(name=OPT_RATE_LIMITS, aliases=LONGOPT_RATE_LIMITS, usage=USAGE_RATE_LIMITS)
+    @Getter @Setter private File rateLimits = null;
+
+    public static final String USAGE_METRICS_PORT = "Serve the run's statistics at http://host:PORT/metrics, in the " +
+            "Prometheus text format, while it runs (default 0, off). They are also published over JMX as the " +
+            MirrorMetrics.OBJECT_NAME+" MBean";
+    public static final String OPT_METRICS_PORT = "-O";
+    public static final String LONGOPT_METRICS_PORT = "--metrics-port";
+    @Option(name=OPT_METRICS_PORT, aliases=LONGOPT_METRICS_PORT, usage=USAGE_METRICS_PORT)
+    @Getter @Setter private int metricsPort = 0;
+
+    public static final String USAGE_STATUS_INTERVAL = "Log a one-line status every this many seconds: keys done, the " +
+            "estimated total, percent done, recent rates and estimated time left (default 60, 0 for never)";
+    public static final String OPT_STATUS_INTERVAL = "-N";
+    public static final String LONGOPT_STATUS_INTERVAL = "--status-interval";
+    @Option(name=OPT_STATUS_INTERVAL, aliases=LONGOPT_STATUS_INTERVAL, usage=USAGE_STATUS_INTERVAL)
+    @Getter @Setter private int statusInterval = 60;
+
+    public static final String USAGE_STATUS_FILE = "Keep the run's status in this file, as JSON (progress, estimates, " +
+            "counters and rates), rewritten every few seconds and when the run ends";
+    public static final String OPT_STATUS_FILE = "-F";
+    public static final String LONGOPT_STATUS_FILE = "--status-file";
+    @Option(name=OPT_STATUS_FILE, aliases=LONGOPT_STATUS_FILE, usage=USAGE_STATUS_FILE)
+    @Getter @Setter private File statusFile = null;
+
+    public static final int MAX_TOP_PREFIXES = 100;
+    public static final String USAGE_TOP_PREFIXES = "At the end of the run, report the key prefixes (up to the first / " +
+            "after --prefix) with the most objects copied, bytes copied, errors and retries: this many of each " +
+            "(default 10, 0 for none, at most "+MAX_TOP_PREFIXES+")";
+    public static final String OPT_TOP_PREFIXES = "-G";
+    public static final String LONGOPT_TOP_PREFIXES = "--top-prefixes";
+    @Option(name=OPT_TOP_PREFIXES, aliases=LONGOPT_TOP_PREFIXES, usage=USAGE_TOP_PREFIXES)
+    @Getter @Setter private int topPrefixes = 10;
+
     private static final String ACTION_USAGE = "Possible actions are copy ,move or delete.";
     private static final String OPT_ACTION = "-A";
     private static final String LONGOPT_ACTION = "--action";
@@ -273,12 +451,40 @@ public class S3ToS3Options implements AWSCredentials {
             destPrefix = scrubbed.substring(slashPos+1);
         }
 
+        try {
+            if (getMaxQueueMemoryBytes() <= 0) throw new IllegalArgumentException(LONGOPT_MAX_QUEUE_MEMORY+" must be positive");
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid "+LONGOPT_MAX_QUEUE_MEMORY+": "+maxQueueMemory);
+        }
+
+        if (multipartThreshold > MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE) {
+            throw new IllegalArgumentException(LONGOPT_MULTIPART_THRESHOLD+" cannot be more than "+MAX_SINGLE_REQUEST_UPLOAD_FILE_SIZE+" bytes");
+        }
+        if (multipartThreshold < PartPlanner.MIN_PART_SIZE) {
+            throw new IllegalArgumentException(LONGOPT_MULTIPART_THRESHOLD+" cannot be less than "+PartPlanner.MIN_PART_SIZE+" bytes");
+        }
+
+        if (journal != null && resume != null && !journal.equals(resume)) {
+            throw new IllegalArgumentException(LONGOPT_JOURNAL+" and "+LONGOPT_RESUME+" must be the same file");
+        }
+
         if ("move".equalsIgnoreCase(action.trim()))
             move = true;
         else if ("delete".equalsIgnoreCase(action.trim()))
             delete = true;
         else
             copy = true;
+
+        if (destIndex != null && delete) {
+            throw new IllegalArgumentException(LONGOPT_DEST_INDEX+" cannot be used with the delete action");
+        }
+        if (destIndexMaxAge < 0) throw new IllegalArgumentException(LONGOPT_DEST_INDEX_MAX_AGE+" cannot be negative");
+        if (listThreads < 1) throw new IllegalArgumentException(LONGOPT_LIST_THREADS+" must be at least 1");
+        if (shardPrefixLength < 0) throw new IllegalArgumentException(LONGOPT_SHARD_PREFIX_LENGTH+" cannot be negative");
+        if (shardMaxInFlight < 0) throw new IllegalArgumentException(LONGOPT_SHARD_MAX_IN_FLIGHT+" cannot be negative");
+        if (topPrefixes < 0 || topPrefixes > MAX_TOP_PREFIXES) throw new IllegalArgumentException(LONGOPT_TOP_PREFIXES+" must be between 0 and "+MAX_TOP_PREFIXES);
+        if (statusInterval < 0) throw new IllegalArgumentException(LONGOPT_STATUS_INTERVAL+" cannot be negative");
+        if (metricsPort < 0 || metricsPort > 65535) throw new IllegalArgumentException(LONGOPT_METRICS_PORT+" must be a port number");
     }
 
     protected String scrubS3ProtocolPrefix(String bucket) {
@@ -20,20 +20,78 @@ public class S3ToS3Stats {
         log.info(BANNER + "STATS BEGIN\n" + toString() + "STATS END " + BANNER);
     }
 
-    private long start = System.currentTimeMillis();
+    @Getter private long start = System.currentTimeMillis();
 
-    public final AtomicLong objectsRead = new AtomicLong(0);
-    public final AtomicLong objectsCopied = new AtomicLong(0);
-    public final AtomicLong copyErrors = new AtomicLong(0);
-    public final AtomicLong objectsDeleted = new AtomicLong(0);
-    public final AtomicLong deleteErrors = new AtomicLong(0);
-    public final AtomicLong moveErrors = new AtomicLong(0);
+    // updated by every thread, for every key and request: Counters, so that the threads do not contend for them
+    public final Counter objectsRead = new Counter();
+    public final Counter objectsCopied = new Counter();
+    public final Counter copyErrors = new Counter();
+    public final Counter objectsDeleted = new Counter();
+    public final Counter deleteErrors = new Counter();
+    public final Counter listErrors = new Counter();
+    public final Counter moveErrors = new Counter();
+    public final Counter keysSpilled = new Counter();
+    public final Counter retries = new Counter();
+    public final Counter retriesDenied = new Counter();
+    public final Counter throttled = new Counter();
+    public final Counter breakerTrips = new Counter();
+    // every S3 request that succeeded, and their total latency, for the ConcurrencyController
+    public final Counter requestsSucceeded = new Counter();
+    public final Counter requestNanos = new Counter();
+    // S3 requests sent and not yet answered, and when the last answer (or error) came, to tell a stalled run
+    public final Counter requestsInFlight = new Counter();
+    public final AtomicLong lastResponseMillis = new AtomicLong(System.currentTimeMillis());
 
-    public final AtomicLong s3moveCount = new AtomicLong(0);
-    public final AtomicLong s3copyCount = new AtomicLong(0);
-    public final AtomicLong s3deleteCount = new AtomicLong(0);
-    public final AtomicLong s3getCount = new AtomicLong(0);
-    public final AtomicLong bytesCopied = new AtomicLong(0);
+    public final Counter s3moveCount = new Counter();
+    public final Counter s3copyCount = new Counter();
+    public final Counter s3deleteCount = new Counter();
+    public final Counter s3getCount = new Counter();
+    public final Counter bytesCopied = new Counter();
+
+    // for Progress: the size of the keys listed, keys handed to KeyMasters, and those whose jobs have finished
+    public final Counter bytesRead = new Counter();
+    public final Counter keysQueued = new Counter();
+    public final Counter keysFinished = new Counter();
+
+    // recent rates of keys done (see Progress) and bytes copied, kept up to date by StatusReporter
+    public final Rates keyRates = new Rates();
+    public final Rates byteRates = new Rates();
+
+    /** the kinds of S3 request, each with its own latency histogram */
+    public enum Request {
+        LIST("LIST"), HEAD("HEAD"), GET_ACL("GET ACL"), COPY("COPY"),
+        MULTIPART_START("multipart start"), COPY_PART("COPY part"), MULTIPART_COMPLETE("multipart complete"),
+        MULTIPART_ABORT("multipart abort"), DELETE("DELETE"), DELETE_BATCH("DELETE batch");
+
+        private final String label;
+        Request(String label) { this.label = label; }
+        @Override public String toString() { return label; }
+    }
+
+    /**
+     * Where the time of a run goes, outside S3 requests: long waits for listing mean the run is bound by listing,
+     * long waits for a job slot mean it is bound by the jobs, and long queueing means by the threads running them.
+     */
+    public enum Phase {
+        LISTING("waiting for listing"), ADMISSION("waiting for job slot"), QUEUED("job queued"), RUNNING("job running");
+
+        private final String label;
+        Phase(String label) { this.label = label; }
+        @Override public String toString() { return label; }
+    }
+
+    private final LatencyHistogram[] requestLatency = new LatencyHistogram[Request.values().length];
+    private final LatencyHistogram[] phaseLatency = new LatencyHistogram[Phase.values().length];
+    {
+        for (int i = 0; i < requestLatency.length; i++) requestLatency[i] = new LatencyHistogram();
+        for (int i = 0; i < phaseLatency.length; i++) phaseLatency[i] = new LatencyHistogram();
+    }
+
+    /** @return how long requests of this kind have taken, failed ones included */
+    public LatencyHistogram getLatency(Request request) { return requestLatency[request.ordinal()]; }
+
+    /** @return how long this phase has taken, each time it has been passed through */
+    public LatencyHistogram getLatency(Phase phase) { return phaseLatency[phase.ordinal()]; }
 
     public static final long HOUR = TimeUnit.HOURS.toMillis(1);
     public static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
@@ -51,14 +109,57 @@ public class S3ToS3Stats {
                 + "copy errors: "+copyErrors+"\n"
                 + "deleted: "+objectsDeleted+"\n"
                 + "delete errors: "+deleteErrors+"\n"
+                + "listing errors: "+listErrors+(listErrors.get() > 0 ? " (keys in the partitions given up on were not mirrored)" : "")+"\n"
                 + "duration: "+duration+"\n"
                 + "read rate: "+readRate+"/minute\n"
                 + "copy rate: "+copyRate+"/minute\n"
                 + "delete rate: "+deleteRate+"/minute\n"
+                + formatRates()
                 + "bytes copied: "+formatBytes(bytesCopied.get())+"\n"
+                + "keys spilled to disk: "+keysSpilled+"\n"
+                + "retries: "+retries+" (throttled responses: "+throttled+", retries denied by budget: "+retriesDenied+")\n"
+                + "circuit breaker trips: "+breakerTrips+"\n"
                 + "GET operations: "+s3getCount+"\n"
                 + "COPY operations: "+ (s3copyCount.get()+s3moveCount.get())+"\n"
-                + "DELETE operations: "+ (s3deleteCount.get()+s3moveCount.get())+"\n";
+                + "DELETE operations: "+s3deleteCount+"\n"
+                + formatLatencies();
+    }
+
+    private String formatRates() {
+        if (keyRates.getTicks() == 0) return "";
+        return String.format("keys done per second (last 1m/5m/15m): %.1f/%.1f/%.1f%n",
+                keyRates.getRate(1), keyRates.getRate(5), keyRates.getRate(15))
+                + "bytes copied per second (last 1m/5m/15m): " + formatSize((long) byteRates.getRate(1)) + "/"
+                + formatSize((long) byteRates.getRate(5)) + "/" + formatSize((long) byteRates.getRate(15)) + "\n";
+    }
+
+    private String formatLatencies() {
+        final StringBuilder b = new StringBuilder();
+        for (Request request : Request.values()) formatLatency(b, request.toString(), getLatency(request));
+        for (Phase phase : Phase.values()) formatLatency(b, phase.toString(), getLatency(phase));
+        if (b.length() == 0) return "";
+        return String.format("%-22s%10s%10s%10s%10s%10s%n", "latency (ms)", "count", "p50", "p90", "p99", "max") + b;
+    }
+
+    private void formatLatency(StringBuilder b, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) return;
+        b.append(String.format("%-22s%10d%10.1f%10.1f%10.1f%10.1f%n", name, histogram.getCount(),
+                histogram.getPercentileMicros(50) / 1000.0, histogram.getPercentileMicros(90) / 1000.0,
+                histogram.getPercentileMicros(99) / 1000.0, histogram.getMaxMicros() / 1000.0));
+    }
+
+    /** @return bytes, compactly: 512B, 1.5KB, 20.3GB */
+    public static String formatSize(long bytes) {
+        if (bytes >= TB) return String.format("%.1fTB", (double) bytes / TB);
+        if (bytes >= GB) return String.format("%.1fGB", (double) bytes / GB);
+        if (bytes >= MB) return String.format("%.1fMB", (double) bytes / MB);
+        if (bytes >= KB) return String.format("%.1fKB", (double) bytes / KB);
+        return bytes + "B";
+    }
+
+    /** @return a duration in seconds as H:MM:SS */
+    public static String formatDuration(long seconds) {
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
     }
 
     private String formatBytes(long bytesCopied) {
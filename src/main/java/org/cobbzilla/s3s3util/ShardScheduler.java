@@ -0,0 +1,151 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Sits between the KeyMasters and the executor (--shard-prefix-length), so that jobs are spread across the key
+ * prefixes S3 partitions a bucket by, instead of all going to the same one. S3 limits request rates per prefix, and
+ * keys are listed in order, so jobs taken in the order they were listed all land on one prefix at a time: that prefix
+ * is throttled while the rest of the bucket is idle.
+ *
+ * Each job belongs to a shard, the first few characters of its key. Jobs wait here, in one queue per shard, and are
+ * handed to the executor in turn from each shard that has jobs waiting and fewer than maxPerShard jobs in the
+ * executor. Only enough jobs to keep every thread busy are in the executor at any time (see getWindow), so that the
+ * rest can still be reordered.
+ *
+ * Spreading only works across the jobs that are waiting here, which are the jobs a KeyMaster has admitted (see
+ * KeyMaster.JOBS_PER_THREAD). Listing in parallel (--list-threads) keeps keys from several parts of the bucket
+ * waiting at once.
+ */
+@Slf4j
+public class ShardScheduler {
+
+    /** jobs of one shard: those waiting, and how many have been handed to the executor and have not finished */
+    private static class Shard {
+        final String name;
+        final ArrayDeque<Job> waiting = new ArrayDeque<Job>();
+        int inFlight = 0;
+        Shard(String name) { this.name = name; }
+    }
+
+    private static class Job {
+        final Runnable task;
+        final Runnable rejected;
+        Job(Runnable task, Runnable rejected) { this.task = task; this.rejected = rejected; }
+    }
+
+    private final ThreadPoolExecutor executor;
+    @Getter private final int prefixLength;
+    @Getter private final int maxPerShard;
+
+    // shards with jobs waiting or in flight, in the order they take turns; a shard is removed once it has neither
+    private final LinkedHashMap<String, Shard> shards = new LinkedHashMap<String, Shard>();
+    private int inFlight = 0;
+    private int waiting = 0;
+
+    public ShardScheduler(ThreadPoolExecutor executor, int prefixLength, int maxPerShard) {
+        this.executor = executor;
+        this.prefixLength = prefixLength;
+        this.maxPerShard = Math.max(1, maxPerShard);
+    }
+
+    /** @return the shard of a key, relative to the prefix it was listed under */
+    public String getShard(String relativeKey) {
+        return relativeKey.length() <= prefixLength ? relativeKey : relativeKey.substring(0, prefixLength);
+    }
+
+    /**
+     * Schedule a task to run on the executor.
+     * @param shard the shard it belongs to, see getShard
+     * @param task the task
+     * @param rejected run instead of task if the executor rejects it
+     */
+    public void submit(String shard, Runnable task, Runnable rejected) {
+        synchronized (this) {
+            Shard s = shards.get(shard);
+            if (s == null) {
+                s = new Shard(shard);
+                shards.put(shard, s);
+            }
+            s.waiting.add(new Job(task, rejected));
+            waiting++;
+        }
+        dispatch();
+    }
+
+    /** @return the number of jobs waiting here for their turn */
+    public synchronized int getWaiting() { return waiting; }
+
+    /** @return the number of shards with jobs waiting or in flight */
+    public synchronized int getShardCount() { return shards.size(); }
+
+    /**
+     * @return how many jobs may be in the executor at once: enough that a thread that finishes a job always finds
+     * another one queued, and that the executor's queue is non-empty when jobs are waiting (as ConcurrencyController
+     * expects), but no more
+     */
+    private int getWindow() { return 2 * executor.getCorePoolSize(); }
+
+    /** hand jobs to the executor, taking turns among the shards, until the window is full or no shard can go */
+    public void dispatch() {
+        while (true) {
+            final Shard shard;
+            final Job job;
+            synchronized (this) {
+                if (inFlight >= getWindow()) return;
+                shard = nextShard();
+                if (shard == null) return;
+                job = shard.waiting.poll();
+                waiting--;
+                shard.inFlight++;
+                inFlight++;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            job.task.run();
+                        } finally {
+                            finished(shard);
+                        }
+                    }
+                    @Override public String toString() { return job.task.toString(); }
+                });
+            } catch (RejectedExecutionException e) {
+                finished(shard);
+                job.rejected.run();
+            }
+        }
+    }
+
+    // the first shard, in turn order, that has a job waiting and room for it; it then goes to the back of the line
+    private Shard nextShard() {
+        final Iterator<Map.Entry<String, Shard>> iter = shards.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Shard shard = iter.next().getValue();
+            if (!shard.waiting.isEmpty() && shard.inFlight < maxPerShard) {
+                iter.remove();
+                shards.put(shard.name, shard);
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private void finished(Shard shard) {
+        synchronized (this) {
+            shard.inFlight--;
+            inFlight--;
+            if (shard.inFlight == 0 && shard.waiting.isEmpty() && shards.get(shard.name) == shard) shards.remove(shard.name);
+        }
+        dispatch();
+    }
+}
@@ -0,0 +1,153 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.Cleanup;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Keeps the recent rates in S3ToS3Stats up to date while a run is going, and reports its progress (see Progress):
+ * as a one-line status in the log every --status-interval seconds, and, with --status-file, as a JSON document
+ * rewritten every Rates.TICK_SECONDS and once more when the run ends.
+ */
+@Slf4j
+public class StatusReporter implements Runnable {
+
+    private final S3ToS3Context context;
+    private final File statusFile;
+    private final long intervalMillis;
+
+    private Thread thread;
+    private long lastLogged = System.currentTimeMillis();
+
+    public StatusReporter(S3ToS3Context context) {
+        this.context = context;
+        this.statusFile = context.getOptions().getStatusFile();
+        this.intervalMillis = context.getOptions().getStatusInterval() * 1000L;
+    }
+
+    public void start() {
+        thread = new Thread(this, "status-reporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** stop ticking, and write the status file one last time */
+    public void stop() {
+        if (thread != null) thread.interrupt();
+        writeStatusFile(true);
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(Rates.TICK_SECONDS * 1000);
+            } catch (InterruptedException e) {
+                return; // stopped
+            }
+            tick();
+        }
+    }
+
+    void tick() {
+        final S3ToS3Stats stats = context.getStats();
+        stats.keyRates.tick(context.getProgress().getKeysDone());
+        stats.byteRates.tick(stats.bytesCopied.get());
+        if (intervalMillis > 0 && System.currentTimeMillis() - lastLogged >= intervalMillis) {
+            lastLogged = System.currentTimeMillis();
+            log.info(getStatusLine());
+        }
+        writeStatusFile(false);
+    }
+
+    /** @return for instance "status: 42.1% done, 1203456/~2858000 keys (~285.1GB), last 1m: 2150.3 keys/s 48.2MB/s, ETA 0:12:31" */
+    public String getStatusLine() {
+        final S3ToS3Stats stats = context.getStats();
+        final Progress progress = context.getProgress();
+        final double percent = progress.getPercentDone();
+        final long totalKeys = progress.getEstimatedTotalKeys();
+        final long eta = progress.getEtaSeconds();
+        return "status: " + (percent < 0 ? "?" : String.format("%.1f", percent)) + "% done, "
+                + progress.getKeysDone() + "/" + (totalKeys < 0 ? "?" : "~" + totalKeys) + " keys"
+                + (totalKeys < 0 ? "" : " (~" + S3ToS3Stats.formatSize(progress.getEstimatedTotalBytes()) + ")")
+                + String.format(", last 1m: %.1f keys/s ", stats.keyRates.getRate(1))
+                + S3ToS3Stats.formatSize((long) stats.byteRates.getRate(1)) + "/s"
+                + ", ETA " + (eta < 0 ? "?" : S3ToS3Stats.formatDuration(eta));
+    }
+
+    /** @return the run's progress, counters and rates, as a JSON object */
+    public String getStatusJson(boolean finished) {
+        final S3ToS3Stats stats = context.getStats();
+        final Progress progress = context.getProgress();
+        final SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final long now = System.currentTimeMillis();
+
+        final StringBuilder b = new StringBuilder("{\n");
+        field(b, "time", "\"" + iso.format(new Date(now)) + "\"");
+        field(b, "started", "\"" + iso.format(new Date(stats.getStart())) + "\"");
+        field(b, "elapsedSeconds", (now - stats.getStart()) / 1000);
+        field(b, "finished", finished);
+        field(b, "keysListed", stats.objectsRead.get());
+        field(b, "bytesListed", stats.bytesRead.get());
+        field(b, "listedFraction", progress.getListedFraction());
+        field(b, "keysDone", progress.getKeysDone());
+        field(b, "estimatedTotalKeys", unknownIfNegative(progress.getEstimatedTotalKeys()));
+        field(b, "estimatedTotalBytes", unknownIfNegative(progress.getEstimatedTotalBytes()));
+        field(b, "percentDone", progress.getPercentDone() < 0 ? "null" : String.format(Locale.ROOT, "%.2f", progress.getPercentDone()));
+        field(b, "etaSeconds", unknownIfNegative(progress.getEtaSeconds()));
+        field(b, "objectsCopied", stats.objectsCopied.get());
+        field(b, "bytesCopied", stats.bytesCopied.get());
+        field(b, "copyErrors", stats.copyErrors.get());
+        field(b, "objectsDeleted", stats.objectsDeleted.get());
+        field(b, "deleteErrors", stats.deleteErrors.get());
+        field(b, "listErrors", stats.listErrors.get());
+        field(b, "keysPerSecond", rates(stats.keyRates, false));
+        field(b, "keysPerSecondEwma", rates(stats.keyRates, true));
+        field(b, "bytesPerSecond", rates(stats.byteRates, false));
+        b.setLength(b.length() - 2);
+        return b.append("\n}\n").toString();
+    }
+
+    private static void field(StringBuilder b, String name, Object value) {
+        b.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static String unknownIfNegative(long value) { return value < 0 ? "null" : String.valueOf(value); }
+
+    private static String rates(Rates rates, boolean ewma) {
+        final StringBuilder b = new StringBuilder("{");
+        for (int minutes : Rates.WINDOW_MINUTES) {
+            if (b.length() > 1) b.append(", ");
+            b.append("\"").append(minutes).append("m\": ").append(String.format(Locale.ROOT, "%.2f",
+                    ewma ? rates.getEwma(minutes) : rates.getRate(minutes)));
+        }
+        return b.append("}").toString();
+    }
+
+    // written beside the file and renamed over it, so that readers never see half of it
+    private synchronized void writeStatusFile(boolean finished) {
+        if (statusFile == null) return;
+        final File temp = new File(statusFile.getPath() + ".tmp");
+        try {
+            {
+                @Cleanup final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+                writer.write(getStatusJson(finished));
+            }
+            Files.move(temp.toPath(), statusFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Error writing status file "+statusFile+": "+e);
+        }
+    }
+}
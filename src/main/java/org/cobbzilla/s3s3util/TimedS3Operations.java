@@ -0,0 +1,84 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.*;
+
+import static org.cobbzilla.s3s3util.S3ToS3Stats.Request;
+
+/**
+ * Sends each request with another S3Operations, and records how long it took, whether it succeeded or not, in the
+ * latency histogram for its kind of request. Also keeps count of the requests in flight, and when the last response
+ * came, which tell a run that is slow from one that is stuck.
+ */
+public class TimedS3Operations implements S3Operations {
+
+    private final S3Operations s3;
+    private final S3ToS3Stats stats;
+
+    public TimedS3Operations(S3Operations s3, S3ToS3Stats stats) {
+        this.s3 = s3;
+        this.stats = stats;
+    }
+
+    private long start() {
+        stats.requestsInFlight.increment();
+        return System.nanoTime();
+    }
+
+    private void done(Request request, long started) {
+        stats.getLatency(request).recordSince(started);
+        stats.requestsInFlight.decrement();
+        // written only when it changes: at thousands of responses a second, most find it up to date already
+        final long now = System.currentTimeMillis();
+        if (stats.lastResponseMillis.get() != now) stats.lastResponseMillis.set(now);
+    }
+
+    @Override public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        final long started = start();
+        try { return s3.listObjectsV2(request); } finally { done(Request.LIST, started); }
+    }
+
+    @Override public ObjectMetadata getObjectMetadata(String bucket, String key) {
+        final long started = start();
+        try { return s3.getObjectMetadata(bucket, key); } finally { done(Request.HEAD, started); }
+    }
+
+    @Override public AccessControlList getObjectAcl(String bucket, String key) {
+        final long started = start();
+        try { return s3.getObjectAcl(bucket, key); } finally { done(Request.GET_ACL, started); }
+    }
+
+    @Override public CopyObjectResult copyObject(CopyObjectRequest request) {
+        final long started = start();
+        try { return s3.copyObject(request); } finally { done(Request.COPY, started); }
+    }
+
+    @Override public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        final long started = start();
+        try { return s3.initiateMultipartUpload(request); } finally { done(Request.MULTIPART_START, started); }
+    }
+
+    @Override public CopyPartResult copyPart(CopyPartRequest request) {
+        final long started = start();
+        try { return s3.copyPart(request); } finally { done(Request.COPY_PART, started); }
+    }
+
+    @Override public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        final long started = start();
+        try { return s3.completeMultipartUpload(request); } finally { done(Request.MULTIPART_COMPLETE, started); }
+    }
+
+    @Override public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        final long started = start();
+        try { s3.abortMultipartUpload(request); } finally { done(Request.MULTIPART_ABORT, started); }
+    }
+
+    @Override public void deleteObject(DeleteObjectRequest request) {
+        final long started = start();
+        try { s3.deleteObject(request); } finally { done(Request.DELETE, started); }
+    }
+
+    @Override public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        final long started = start();
+        try { return s3.deleteObjects(request); } finally { done(Request.DELETE_BATCH, started); }
+    }
+}
@@ -0,0 +1,58 @@
+package org.cobbzilla.s3s3util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes virtual threads (--virtual-threads) when running on a JVM that has them (Java 21 and later). The build
+ * targets Java 8, so they are found by reflection rather than called directly.
+ *
+ * A virtual thread that blocks on I/O gives its carrier (platform) thread back, so a pool of thousands of them,
+ * each blocked on a HEAD or COPY request, costs little more than the requests themselves; a pool of thousands of
+ * platform threads costs a stack and an OS thread each.
+ */
+@Slf4j
+public class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        } catch (Exception e) {
+            // older JVM: no virtual threads
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    /** @return true if this JVM can make virtual threads */
+    public static boolean isAvailable() { return OF_VIRTUAL != null; }
+
+    /**
+     * @param prefix thread names are this prefix followed by a number
+     * @return a factory of virtual threads, or null if this JVM cannot make them
+     */
+    public static ThreadFactory factory(String prefix) {
+        if (!isAvailable()) return null;
+        try {
+            final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            log.warn("Error creating virtual thread factory: "+e);
+            return null;
+        }
+    }
+}
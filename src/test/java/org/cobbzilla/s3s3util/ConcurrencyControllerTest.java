@@ -0,0 +1,75 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyControllerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private ThreadPoolExecutor executor;
+    private ConcurrencyController controller;
+
+    @Before
+    public void setUp() throws Exception {
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setMaxThreads(100);
+        executor = new ThreadPoolExecutor(100, 100, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+        controller = new ConcurrencyController(new S3ToS3Context(options), executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    // a sample in which every request took latencyMillis, and each thread made requests back to back
+    private int sample(long latencyMillis, long throttled, boolean busy) {
+        final long requests = controller.getLimit() * 1000 / latencyMillis;
+        return controller.update(requests, requests * latencyMillis * MILLI, throttled, SECOND, false, busy);
+    }
+
+    @Test
+    public void testGrowsWhileBusyAndShrinksWhenThrottled() throws Exception {
+        assertEquals(25, controller.getLimit());
+        assertEquals(30, sample(100, 0, true));
+        assertEquals(35, sample(100, 0, true));
+        // nothing waiting for a thread: no reason to grow
+        assertEquals(35, sample(100, 0, false));
+
+        assertEquals(24, sample(100, 100, true));
+        for (int i = 0; i < 20; i++) sample(100, 0, true);
+        assertEquals(100, controller.getLimit());
+
+        for (int i = 0; i < 20; i++) sample(100, 1000, true);
+        assertEquals(ConcurrencyController.MIN_THREADS, controller.getLimit());
+    }
+
+    @Test
+    public void testShrinksWhenLatencyGrows() throws Exception {
+        sample(100, 0, true);
+        final int limit = controller.getLimit();
+        assertEquals(limit - (int) Math.sqrt(limit), sample(300, 0, true));
+        // the circuit breaker cuts it like throttling does
+        assertEquals((int) ((limit - (int) Math.sqrt(limit)) * ConcurrencyController.DECREASE_FACTOR),
+                     controller.update(0, 0, 0, SECOND, true, true));
+    }
+
+    @Test
+    public void testResize() throws Exception {
+        ConcurrencyController.resize(executor, 10);
+        assertEquals(10, executor.getCorePoolSize());
+        assertEquals(10, executor.getMaximumPoolSize());
+        ConcurrencyController.resize(executor, 200);
+        assertEquals(200, executor.getCorePoolSize());
+        assertEquals(200, executor.getMaximumPoolSize());
+    }
+}
@@ -0,0 +1,95 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DeleteBatcherTest {
+
+    public static final String BUCKET = "some-bucket";
+
+    /** fails the first attempt for any key starting with "flaky", and every attempt for keys starting with "bad" */
+    static class DeletingS3Client extends AmazonS3Client {
+        final List<Integer> requestSizes = new ArrayList<Integer>();
+        final Set<String> deleted = new HashSet<String>();
+        final Set<String> seen = new HashSet<String>();
+
+        @Override
+        public synchronized DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+            requestSizes.add(request.getKeys().size());
+            final List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<MultiObjectDeleteException.DeleteError>();
+            for (DeleteObjectsRequest.KeyVersion keyVersion : request.getKeys()) {
+                final String key = keyVersion.getKey();
+                final boolean firstTry = seen.add(key);
+                if (key.startsWith("bad") || (key.startsWith("flaky") && firstTry)) {
+                    final MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                    error.setKey(key);
+                    error.setCode("InternalError");
+                    errors.add(error);
+                } else {
+                    deleted.add(key);
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new MultiObjectDeleteException(errors, Collections.<DeleteObjectsResult.DeletedObject>emptyList());
+            }
+            return new DeleteObjectsResult(Collections.<DeleteObjectsResult.DeletedObject>emptyList());
+        }
+    }
+
+    static class RecordingListener implements DeleteBatcher.Listener {
+        final Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> failed = Collections.synchronizedSet(new HashSet<String>());
+        @Override public void deleted(String bucket, String key) { deleted.add(key); }
+        @Override public void deleteFailed(String bucket, String key, String reason) { failed.add(key); }
+    }
+
+    @Test
+    public void testKeysAreSentInFullBatches() throws Exception {
+        final DeletingS3Client client = new DeletingS3Client();
+        final S3ToS3Context context = new S3ToS3Context(new S3ToS3Options());
+        final DeleteBatcher batcher = new DeleteBatcher(new BlockingS3Operations(client), context);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i=0; i<2500; i++) batcher.delete(BUCKET, "key"+i, listener);
+        assertEquals(2, client.requestSizes.size());
+        batcher.close();
+
+        assertEquals(3, client.requestSizes.size());
+        assertEquals(Integer.valueOf(500), client.requestSizes.get(2));
+        assertEquals(2500, listener.deleted.size());
+        assertEquals(3, context.getStats().s3deleteCount.get());
+    }
+
+    @Test
+    public void testPartialFailuresAreRetried() throws Exception {
+        final DeletingS3Client client = new DeletingS3Client();
+        final S3ToS3Options options = new S3ToS3Options();
+        final S3ToS3Context context = new S3ToS3Context(options);
+        final DeleteBatcher batcher = new DeleteBatcher(new BlockingS3Operations(client), context, 10);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i=0; i<7; i++) batcher.delete(BUCKET, "key"+i, listener);
+        batcher.delete(BUCKET, "flaky", listener);
+        batcher.delete(BUCKET, "bad", listener);
+        batcher.close();
+
+        assertEquals(8, listener.deleted.size());
+        assertTrue(listener.deleted.contains("flaky"));
+        assertEquals(Collections.singleton("bad"), listener.failed);
+        // the first request has every key, retries only carry the keys that failed
+        assertEquals(Integer.valueOf(9), client.requestSizes.get(0));
+        assertEquals(Integer.valueOf(2), client.requestSizes.get(1));
+        assertEquals(options.getMaxRetries(), client.requestSizes.size());
+    }
+}
@@ -0,0 +1,256 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class DestinationIndexTest {
+
+    private static final String MD5 = "0cc175b9c0f1b6a831c399e269772661";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** a destination bucket that can be listed, in pages, in the order S3 lists keys */
+    static class ListingS3Client extends KeyCopyJobTest.RecordingS3Client {
+        final TreeMap<byte[], S3ObjectSummary> objects = new TreeMap<byte[], S3ObjectSummary>(DestinationIndex.KEY_ORDER);
+        int listings = 0;
+
+        void add(String key, long size, String etag) {
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName("to-bucket");
+            summary.setKey(key);
+            summary.setSize(size);
+            summary.setETag(etag);
+            summary.setLastModified(new Date());
+            objects.put(key.getBytes(UTF8), summary);
+        }
+
+        @Override
+        public synchronized ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+            listings++;
+            final ListObjectsV2Result result = new ListObjectsV2Result();
+            final Collection<S3ObjectSummary> after = request.getContinuationToken() == null ? objects.values()
+                    : objects.tailMap(request.getContinuationToken().getBytes(UTF8), false).values();
+            for (S3ObjectSummary summary : after) {
+                if (!summary.getKey().startsWith(request.getPrefix())) continue;
+                if (result.getObjectSummaries().size() == 1000) {
+                    result.setTruncated(true);
+                    result.setNextContinuationToken(result.getObjectSummaries().get(999).getKey());
+                    break;
+                }
+                result.getObjectSummaries().add(summary);
+            }
+            return result;
+        }
+    }
+
+    private File file;
+    private ListingS3Client client;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("s3s3mirror-dest-index-test-", ".index");
+        file.delete();
+        client = new ListingS3Client();
+        for (int i = 0; i < 3000; i++) client.add("photos/" + (100000 + i) + ".jpg", i, MD5);
+        // U+FFEE sorts before U+1F600 in UTF-8, but after it in UTF-16
+        client.add("caf\u00e9/\uffee", 1, MD5 + "-3");
+        client.add("caf\u00e9/\ud83d\ude00", 2, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private S3ToS3Context context(String... args) throws Exception {
+        final List<String> argList = new ArrayList<String>(Arrays.asList(args));
+        argList.add(S3ToS3MainTest.SOURCE);
+        argList.add(S3ToS3MainTest.DESTINATION);
+        final S3ToS3Main main = new S3ToS3Main(argList.toArray(new String[argList.size()]));
+        main.parseArguments();
+        return new S3ToS3Context(main.getOptions());
+    }
+
+    @Test
+    public void testLookupsAfterReconcile() throws Exception {
+        final DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        assertEquals(4, client.listings);
+        assertEquals(3002, index.size());
+
+        for (int i = 2999; i >= 0; i -= 7) {
+            final DestinationIndex.Entry entry = index.get("photos/" + (100000 + i) + ".jpg");
+            assertEquals(i, entry.getSize());
+            assertEquals(MD5, entry.getEtag());
+            assertTrue(entry.getLastModified() > 0);
+        }
+        assertEquals(MD5 + "-3", index.get("caf\u00e9/\uffee").getEtag());
+        assertNull(index.get("caf\u00e9/\ud83d\ude00").getEtag());
+
+        assertNull(index.get(""));
+        assertNull(index.get("photos/100000"));
+        assertNull(index.get("photos/100512.jpeg"));
+        assertNull(index.get("zzz"));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int stride = 101 + 2 * t;
+            threads.add(new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        // each thread jumps between blocks in its own order, sharing the blocks the others decoded
+                        for (int n = 0; n < 20000; n++) {
+                            final int i = (n * stride) % 3000;
+                            assertEquals(i, index.get("photos/" + (100000 + i) + ".jpg").getSize());
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test
+    public void testUpdatesArePersisted() throws Exception {
+        DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        index.put("photos/100000.jpg", 42, "changed", null);
+        index.remove("photos/100001.jpg");
+        index.put("photos/100001.jpg.bak", 7, MD5, new Date());
+        index.remove("photos/never-there.jpg");
+
+        // updates are visible before they are merged into the file, and after
+        assertEquals(42, index.get("photos/100000.jpg").getSize());
+        assertNull(index.get("photos/100001.jpg"));
+        index.flush();
+        assertEquals(42, index.get("photos/100000.jpg").getSize());
+        assertNull(index.get("photos/100001.jpg"));
+        assertEquals(3002, index.size());
+
+        index.put("a-first-key", 1, MD5, null);
+        index.close();
+
+        index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        assertEquals(4, client.listings);
+        assertEquals(3003, index.size());
+        assertEquals("changed", index.get("photos/100000.jpg").getEtag());
+        assertNull(index.get("photos/100001.jpg"));
+        assertEquals(7, index.get("photos/100001.jpg.bak").getSize());
+        assertEquals(1, index.get("a-first-key").getSize());
+        assertEquals(2, index.get("photos/100002.jpg").getSize());
+    }
+
+    @Test
+    public void testUpdatesAreWrittenToDeltas() throws Exception {
+        DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        index.put("photos/100000.jpg", 42, "changed", null);
+        index.remove("photos/100001.jpg");
+        index.flushUpdates();
+        assertEquals(1, index.getDeltaCount());
+        assertEquals(3002, index.size());
+        assertEquals(42, index.get("photos/100000.jpg").getSize());
+        assertNull(index.get("photos/100001.jpg"));
+
+        // the newest delta wins
+        index.put("photos/100001.jpg", 5, MD5, null);
+        index.flushUpdates();
+        assertEquals(2, index.getDeltaCount());
+        assertEquals(5, index.get("photos/100001.jpg").getSize());
+
+        // a run that is not closed leaves its deltas to the next one
+        index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        assertEquals(4, client.listings);
+        assertEquals(2, index.getDeltaCount());
+        assertEquals(42, index.get("photos/100000.jpg").getSize());
+        assertEquals(5, index.get("photos/100001.jpg").getSize());
+
+        // past MAX_DELTAS, they are merged into one
+        for (int i = 0; i < DestinationIndex.MAX_DELTAS - 1; i++) {
+            index.put("zzz/" + i, i, MD5, null);
+            index.flushUpdates();
+        }
+        assertEquals(1, index.getDeltaCount());
+        assertEquals(3002, index.size());
+        assertEquals(2, index.get("zzz/2").getSize());
+        assertEquals(42, index.get("photos/100000.jpg").getSize());
+
+        index.close();
+        assertEquals(0, index.getDeltaCount());
+        assertEquals(3005, index.size());
+        assertEquals(5, index.get("photos/100001.jpg").getSize());
+        for (File sibling : file.getParentFile().listFiles()) assertFalse(sibling.getName().startsWith(file.getName() + "."));
+    }
+
+    @Test
+    public void testBackgroundFlushes() throws Exception {
+        DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        index.setFlushEntries(100);
+        // each key is updated, and the first half of them later removed
+        for (int i = 1; i < 3000; i++) {
+            index.put("photos/" + (100000 + i) + ".jpg", i + 1, MD5, null);
+            if (i % 2 == 0) index.remove("photos/" + (100000 + i / 2) + ".jpg");
+            // updates stay visible while they are written out, and merged
+            assertEquals(i + 1, index.get("photos/" + (100000 + i) + ".jpg").getSize());
+            if (i % 2 == 0) assertNull(index.get("photos/" + (100000 + i / 2) + ".jpg"));
+        }
+        index.close();
+
+        index = DestinationIndex.open(new BlockingS3Operations(client), context(), file);
+        assertEquals(4, client.listings);
+        assertEquals(0, index.getDeltaCount());
+        assertEquals(3002 - 1499, index.size());
+        for (int i = 1; i < 3000; i++) {
+            final DestinationIndex.Entry entry = index.get("photos/" + (100000 + i) + ".jpg");
+            if (i < 1500) assertNull(entry); else assertEquals(i + 1, entry.getSize());
+        }
+    }
+
+    @Test
+    public void testRebuiltForAnotherDestination() throws Exception {
+        DestinationIndex.open(new BlockingS3Operations(client), context(), file).close();
+        assertEquals(4, client.listings);
+
+        final DestinationIndex index = DestinationIndex.open(new BlockingS3Operations(client), context(S3ToS3Options.LONGOPT_DEST_PREFIX, "caf\u00e9/"), file);
+        assertEquals(5, client.listings);
+        assertEquals(2, index.size());
+        assertNull(index.get("photos/100000.jpg"));
+    }
+
+    @Test
+    public void testIndexReplacesHead() throws Exception {
+        final S3ToS3Context context = context(S3ToS3Options.OPT_SKIP_ACLS);
+        context.setDestinationIndex(DestinationIndex.open(new BlockingS3Operations(client), context, file));
+        client.requests.clear();
+
+        // unchanged: nothing to do, and no HEAD to find that out
+        newCopyJob(context, "photos/100010.jpg", 10).run();
+        assertTrue(client.requests.isEmpty());
+
+        // missing from the destination: copied, and recorded in the index
+        newCopyJob(context, "photos/new.jpg", 10).run();
+        assertEquals(Collections.singletonList("COPY photos/new.jpg"), client.requests);
+        assertEquals(10, context.getDestinationIndex().get("photos/new.jpg").getSize());
+    }
+
+    private KeyCopyJob newCopyJob(S3ToS3Context context, String key, long size) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(MD5);
+        return new KeyCopyJob(new BlockingS3Operations(client), context, summary);
+    }
+}
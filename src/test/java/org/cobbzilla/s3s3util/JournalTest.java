@@ -0,0 +1,137 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    public static final String LISTER = "CopyMaster";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("s3s3mirror-journal-test-", ".journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private S3ToS3Options options(String source) throws Exception {
+        final S3ToS3Main main = new S3ToS3Main(new String[]{source, S3ToS3MainTest.DESTINATION});
+        main.parseArguments();
+        return main.getOptions();
+    }
+
+    /** lists keys a, b, c, d from a root partition; a and c finish, d fails, and the run dies without closing */
+    private void interruptedRun() throws Exception {
+        final Journal journal = Journal.open(file, options(S3ToS3MainTest.SOURCE), false);
+        assertNull(journal.begin(LISTER));
+        final int id = journal.partitionStarted(LISTER, KeyListingPartition.root());
+        journal.keyDone(LISTER, id, 0, "a", false, true);
+        journal.keyDone(LISTER, id, 2, "c", false, true);
+        journal.keyDone(LISTER, id, 3, "d", false, false);
+    }
+
+    @Test
+    public void testResumeFromWatermark() throws Exception {
+        interruptedRun();
+
+        final Journal journal = Journal.open(file, options(S3ToS3MainTest.SOURCE), true);
+        final Map<Integer, KeyListingPartition> remaining = journal.begin(LISTER);
+        assertEquals(1, remaining.size());
+        final int id = remaining.keySet().iterator().next();
+        assertEquals("a", remaining.get(id).getStartAfter());
+        assertNull(remaining.get(id).getEndAt());
+
+        assertFalse(journal.isDone(id, "b"));
+        assertTrue(journal.isDone(id, "c"));
+        // failed keys are not handled again when they are listed, but retried separately
+        assertTrue(journal.isDone(id, "d"));
+        assertEquals(Collections.singleton("d"), journal.getFailedKeys(LISTER));
+
+        // the resumed run lists b, c, d again; once they are done and the partition is listed, nothing is left
+        journal.keyDone(LISTER, id, 0, "b", false, true);
+        journal.keySkipped(id, 1, "c");
+        journal.keySkipped(id, 2, "d");
+        journal.partitionListed(id, 3);
+        assertTrue(journal.begin(LISTER).isEmpty());
+        assertEquals(Collections.singleton("d"), journal.getFailedKeys(LISTER));
+
+        journal.keyDone(LISTER, -1, 0, "d", false, true);
+        assertTrue(journal.getFailedKeys(LISTER).isEmpty());
+        journal.close();
+
+        // and a lister that never started lists everything
+        assertNull(Journal.open(file, options(S3ToS3MainTest.SOURCE), true).begin("DeleteMaster"));
+    }
+
+    @Test
+    public void testIncompleteRecordIsIgnored() throws Exception {
+        interruptedRun();
+
+        // overwrite the length and checksum of the record after the last one, as if the process died writing it
+        final long end = findEnd();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(end);
+        raf.writeInt(20);
+        raf.writeInt(12345);
+        raf.close();
+
+        final Journal journal = Journal.open(file, options(S3ToS3MainTest.SOURCE), true);
+        assertEquals("a", journal.begin(LISTER).values().iterator().next().getStartAfter());
+        assertEquals(Collections.singleton("d"), journal.getFailedKeys(LISTER));
+    }
+
+    @Test
+    public void testFailedRemovedKeys() throws Exception {
+        Journal journal = Journal.open(file, options(S3ToS3MainTest.SOURCE), false);
+        journal.keyDone(LISTER, -1, 0, "x", true, false);
+        journal.keyDone(LISTER, -1, 0, "y", false, false);
+        journal.close();
+
+        // a key found only in the destination is retried as one
+        journal = Journal.open(file, options(S3ToS3MainTest.SOURCE), true);
+        assertEquals(2, journal.getFailedKeys(LISTER).size());
+        assertTrue(journal.isFailedRemoved(LISTER, "x"));
+        assertFalse(journal.isFailedRemoved(LISTER, "y"));
+
+        // until it fails again as a key the source has
+        journal.keyDone(LISTER, -1, 0, "x", false, false);
+        assertFalse(journal.isFailedRemoved(LISTER, "x"));
+        journal.keyDone(LISTER, -1, 0, "x", false, true);
+        assertEquals(Collections.singleton("y"), journal.getFailedKeys(LISTER));
+        journal.close();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testResumeWithDifferentOptions() throws Exception {
+        interruptedRun();
+        Journal.open(file, options("s3://other-bucket"), true);
+    }
+
+    private long findEnd() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long position = 0;
+            while (true) {
+                raf.seek(position);
+                final int length = raf.readInt();
+                if (length == 0) return position;
+                position += 8 + length;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
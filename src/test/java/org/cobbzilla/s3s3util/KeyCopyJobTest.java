@@ -0,0 +1,147 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyCopyJobTest {
+
+    /** records the requests a job sends */
+    static class RecordingS3Client extends AmazonS3Client {
+        final List<String> requests = new ArrayList<String>();
+        CopyObjectRequest copyRequest;
+        int deleteFailures = 0;
+
+        @Override
+        public synchronized ObjectMetadata getObjectMetadata(String bucket, String key) {
+            requests.add("HEAD " + bucket + "/" + key);
+            final ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(10);
+            return metadata;
+        }
+
+        @Override
+        public synchronized AccessControlList getObjectAcl(String bucket, String key) {
+            requests.add("GET ACL " + bucket + "/" + key);
+            final AccessControlList acl = new AccessControlList();
+            acl.setOwner(new Owner("owner-id", "owner"));
+            acl.grantPermission(new CanonicalGrantee("owner-id"), Permission.FullControl);
+            return acl;
+        }
+
+        @Override
+        public synchronized CopyObjectResult copyObject(CopyObjectRequest request) {
+            requests.add("COPY " + request.getSourceKey());
+            copyRequest = request;
+            return new CopyObjectResult();
+        }
+
+        @Override
+        public synchronized void deleteObject(DeleteObjectRequest request) {
+            requests.add("DELETE " + request.getBucketName() + "/" + request.getKey());
+            if (deleteFailures-- > 0) {
+                final AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+                e.setStatusCode(503);
+                e.setErrorCode("SlowDown");
+                throw e;
+            }
+        }
+    }
+
+    private S3ToS3Context context(String... args) throws Exception {
+        final List<String> argList = new ArrayList<String>();
+        for (String arg : args) argList.add(arg);
+        argList.add(S3ToS3MainTest.SOURCE);
+        argList.add(S3ToS3MainTest.DESTINATION);
+        final S3ToS3Main main = new S3ToS3Main(argList.toArray(new String[argList.size()]));
+        main.parseArguments();
+        return new S3ToS3Context(main.getOptions());
+    }
+
+    private KeyCopyJob newCopyJob(AmazonS3Client client, S3ToS3Context context, String key) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(10);
+        final KeyCopyJob job = new KeyCopyJob(new BlockingS3Operations(client), context, summary);
+        // as if a merged listing had found the key missing from the destination
+        job.setComparedDestination(null);
+        return job;
+    }
+
+    @Test
+    public void testCopyUsesMetadataDirective() throws Exception {
+        final RecordingS3Client client = new RecordingS3Client();
+        final S3ToS3Context context = context();
+        newCopyJob(client, context, "a").run();
+
+        assertEquals(2, client.requests.size());
+        assertEquals("GET ACL from-bucket/a", client.requests.get(0));
+        assertEquals("COPY a", client.requests.get(1));
+        assertNull(client.copyRequest.getNewObjectMetadata());
+        assertNotNull(client.copyRequest.getAccessControlList());
+        assertEquals(10, context.getStats().bytesCopied.get());
+        assertEquals(1, context.getStats().objectsCopied.get());
+    }
+
+    private KeyMoveJob newMoveJob(AmazonS3Client client, S3ToS3Context context, String key, final List<Boolean> completions) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(10);
+        final KeyMoveJob job = new KeyMoveJob(new BlockingS3Operations(client), context, summary);
+        job.setComparedDestination(null);
+        job.setCompletion(new KeyJob.Completion() {
+            @Override public void completed(KeyJob job, boolean succeeded) { completions.add(succeeded); }
+        });
+        return job;
+    }
+
+    @Test
+    public void testMoveRetriesTheDeleteAlone() throws Exception {
+        final RecordingS3Client client = new RecordingS3Client();
+        client.deleteFailures = 2;
+        final S3ToS3Context context = context(S3ToS3Options.OPT_SKIP_ACLS, S3ToS3Options.OPT_MAX_RETRIES, "3");
+        final List<Boolean> completions = new ArrayList<Boolean>();
+        final KeyMoveJob job = newMoveJob(client, context, "a", completions);
+        job.run();
+
+        assertEquals(Arrays.asList("COPY a", "DELETE from-bucket/a", "DELETE from-bucket/a", "DELETE from-bucket/a"), client.requests);
+        assertFalse(job.isCompletionDeferred());
+        assertTrue(completions.isEmpty());
+        assertEquals(1, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().moveErrors.get());
+    }
+
+    @Test
+    public void testMoveReportsAFailedDelete() throws Exception {
+        final RecordingS3Client client = new RecordingS3Client();
+        client.deleteFailures = Integer.MAX_VALUE;
+        final S3ToS3Context context = context(S3ToS3Options.OPT_SKIP_ACLS, S3ToS3Options.OPT_MAX_RETRIES, "2");
+        final List<Boolean> completions = new ArrayList<Boolean>();
+        final KeyMoveJob job = newMoveJob(client, context, "a", completions);
+        job.run();
+
+        assertEquals(Arrays.asList("COPY a", "DELETE from-bucket/a", "DELETE from-bucket/a"), client.requests);
+        assertTrue(job.isCompletionDeferred());
+        assertEquals(Collections.singletonList(false), completions);
+        assertEquals(1, context.getStats().moveErrors.get());
+    }
+
+    @Test
+    public void testAclsAreNotFetchedWhenUnused() throws Exception {
+        for (String option : new String[] {S3ToS3Options.OPT_SKIP_ACLS, "--cross-account-copy"}) {
+            final RecordingS3Client client = new RecordingS3Client();
+            newCopyJob(client, context(option), "a").run();
+
+            assertEquals(option, 1, client.requests.size());
+            assertEquals("COPY a", client.requests.get(0));
+            assertNull(client.copyRequest.getAccessControlList());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KeyListingPartitionTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testKeyOrderIsUtf8Order() throws Exception {
+        // a supplementary character (a surrogate pair) sorts before U+E000-U+FFFF as UTF-16, but after them as UTF-8
+        final List<String> keys = Arrays.asList("a\uD83D\uDE00", "a\uFFFD", "a\uE000", "a", "ab", "a\u00e9", "a\uD7FF", "a\uD83D\uDE01");
+        final List<String> byKeyOrder = new ArrayList<String>(keys);
+        Collections.sort(byKeyOrder, KeyListingPartition.KEY_ORDER);
+        final List<String> byBytes = new ArrayList<String>(keys);
+        Collections.sort(byBytes, new Comparator<String>() {
+            @Override public int compare(String a, String b) {
+                return DestinationIndex.KEY_ORDER.compare(a.getBytes(UTF8), b.getBytes(UTF8));
+            }
+        });
+        assertEquals(byBytes, byKeyOrder);
+        assertTrue(KeyListingPartition.KEY_ORDER.compare("a\uD83D\uDE00", "a\uFFFD") > 0);
+
+        final KeyListingPartition partition = new KeyListingPartition(null, "a\uFFFD", true);
+        assertTrue(partition.isPastEnd("a\uD83D\uDE00"));
+        assertFalse(partition.isPastEnd("a\uE000"));
+    }
+
+    @Test
+    public void testSplitCoversRemainderExactlyOnce() throws Exception {
+        final KeyListingPartition partition = KeyListingPartition.root();
+        final List<KeyListingPartition> ranges = partition.splitAfter("b0042");
+
+        assertEquals("b0042", ranges.get(0).getStartAfter());
+        assertNull(ranges.get(ranges.size() - 1).getEndAt());
+        assertCovered(ranges, "b0043", "b1", "bz", "b~", "c", "c0", "logs/x", "zzz", "~~");
+    }
+
+    @Test
+    public void testSplitRespectsBoundedPartition() throws Exception {
+        final KeyListingPartition partition = new KeyListingPartition("logs/", "metrics/", true);
+        final List<KeyListingPartition> ranges = partition.splitAfter("logs/c5");
+
+        assertEquals("logs/c5", ranges.get(0).getStartAfter());
+        assertEquals("metrics/", ranges.get(ranges.size() - 1).getEndAt());
+        for (KeyListingPartition range : ranges) {
+            assertTrue(range.getEndAt().compareTo("metrics/") <= 0);
+        }
+        // split points are sampled below the shared "logs/" prefix rather than at the first character
+        assertTrue(ranges.size() > 10);
+        assertCovered(ranges, "logs/c6", "logs/d", "logs/zz", "logs0", "m", "metrics/");
+    }
+
+    @Test
+    public void testSplitAtCommonPrefixes() throws Exception {
+        final List<KeyListingPartition> ranges = KeyListingPartition.root().splitAt(Arrays.asList("a/", "b/", "c/"));
+
+        assertEquals(4, ranges.size());
+        assertNull(ranges.get(0).getStartAfter());
+        assertNull(ranges.get(3).getEndAt());
+        assertCovered(ranges, "0", "a/", "a/1", "a0", "b/x", "c/", "c/d/e", "d");
+    }
+
+    private void assertCovered(List<KeyListingPartition> ranges, String... keys) {
+        for (int i = 1; i < ranges.size(); i++) {
+            // each range starts exactly where the previous one ended
+            assertEquals(ranges.get(i - 1).getEndAt(), ranges.get(i).getStartAfter());
+        }
+        for (String key : keys) {
+            int owners = 0;
+            for (KeyListingPartition range : ranges) {
+                final boolean afterStart = range.getStartAfter() == null || key.compareTo(range.getStartAfter()) > 0;
+                if (afterStart && !range.isPastEnd(key)) owners++;
+            }
+            assertEquals("key "+key+" should be in exactly one range", 1, owners);
+        }
+    }
+}
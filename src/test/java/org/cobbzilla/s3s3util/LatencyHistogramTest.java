@@ -0,0 +1,67 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() throws Exception {
+        long previous = -1;
+        for (long micros = 0; micros < 10000000; micros += 1 + micros / 1000) {
+            final int index = LatencyHistogram.index(micros);
+            final long highest = LatencyHistogram.highest(index);
+            assertTrue(micros <= highest);
+            // buckets are at most 1/64 as wide as what they hold
+            assertTrue(highest - micros <= micros / 64);
+            assertTrue(index >= previous);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99));
+
+        final Random random = new Random(1);
+        final long[] micros = new long[100000];
+        for (int i = 0; i < micros.length; i++) {
+            // long-tailed, as S3 latency is
+            micros[i] = (long) (20000 * Math.exp(random.nextGaussian()));
+            histogram.record(micros[i] * 1000);
+        }
+        Arrays.sort(micros);
+        assertEquals(micros.length, histogram.getCount());
+        assertEquals(micros[micros.length - 1], histogram.getMaxMicros());
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            final long expected = micros[(int) Math.ceil(percentile / 100 * micros.length) - 1];
+            assertEquals(expected, histogram.getPercentileMicros(percentile), expected / 64.0);
+        }
+        assertEquals(histogram.getMaxMicros(), histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < 100000; i++) histogram.record((i % 1000 + thread) * 1000L);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(800000, histogram.getCount());
+        assertEquals(1006, histogram.getMaxMicros());
+        assertEquals(503, histogram.getMeanMicros());
+    }
+}
@@ -0,0 +1,189 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.cobbzilla.s3s3util.S3ToS3Options.*;
+import static org.junit.Assert.*;
+
+/**
+ * Whole mirror runs against an S3Emulator, with many keys, realistic latency and injected faults.
+ */
+@Slf4j
+public class MirrorLoadTest {
+
+    private static final String SOURCE = "from-bucket";
+    private static final String DESTINATION = "to-bucket";
+
+    private S3ToS3Context mirror(S3Emulator s3, String... args) throws Exception {
+        final List<String> argList = new ArrayList<String>(Arrays.asList(args));
+        argList.add(S3ToS3MainTest.SOURCE);
+        argList.add(S3ToS3MainTest.DESTINATION);
+        final S3ToS3Main main = new S3ToS3Main(argList.toArray(new String[argList.size()]));
+        main.parseArguments();
+        final S3ToS3Context context = new S3ToS3Context(main.getOptions());
+
+        final long start = System.currentTimeMillis();
+        new S3ToS3Master(s3, context).mirror();
+        final long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.info(argList+": "+context.getStats().objectsRead.get()+" keys in "+millis+"ms, "
+                +(1000 * context.getStats().objectsRead.get() / millis)+" keys/sec");
+        return context;
+    }
+
+    @Test
+    public void testLargeBucket() throws Exception {
+        final int keys = 100000;
+        final S3Emulator s3 = new S3Emulator().generate(SOURCE, keys, 1000);
+        s3.put(DESTINATION, "zzz/removed", 10, S3Emulator.ETAG);
+
+        S3ToS3Context context = mirror(s3, OPT_MAX_THREADS, "64", LONGOPT_SKIP_ACLS, LONGOPT_MERGE_LISTINGS, LONGOPT_DELETE_REMOVED);
+        assertEquals(keys, context.getStats().objectsCopied.get());
+        assertEquals(keys, s3.size(DESTINATION));
+        assertNull(s3.get(DESTINATION, "zzz/removed"));
+        assertEquals(keys, s3.getRequests(RateLimits.Operation.COPY));
+        // merged listings need no HEAD requests
+        assertEquals(0, s3.getRequests(RateLimits.Operation.HEAD));
+        assertEquals(keys, context.getStats().getLatency(S3ToS3Stats.Request.COPY).getCount());
+        assertEquals(0, context.getStats().getLatency(S3ToS3Stats.Request.HEAD).getCount());
+        assertEquals(keys + 1, context.getStats().getLatency(S3ToS3Stats.Phase.RUNNING).getCount());
+
+        // and the next run finds nothing to do
+        context = mirror(s3, OPT_MAX_THREADS, "64", LONGOPT_SKIP_ACLS, LONGOPT_MERGE_LISTINGS, LONGOPT_DELETE_REMOVED);
+        assertEquals(0, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().objectsDeleted.get());
+        assertEquals(keys, s3.getRequests(RateLimits.Operation.COPY));
+    }
+
+    @Test
+    public void testMergedListingOfNonAsciiKeys() throws Exception {
+        // in UTF-16 order "a\uD83D\uDE00" (an emoji) comes before "a\uFFFD", but S3 lists it after
+        final String[] keys = {"a", "a\uD83D\uDE00", "a\uE000", "a\uFFFD", "b"};
+        final S3Emulator s3 = new S3Emulator();
+        for (String key : keys) {
+            s3.put(SOURCE, key, 10, S3Emulator.ETAG);
+            if (!key.equals("a\uFFFD")) s3.put(DESTINATION, key, 10, S3Emulator.ETAG);
+        }
+        s3.put(DESTINATION, "a\uD83D\uDE01", 10, S3Emulator.ETAG);
+
+        // out of step, the listings would find the emoji key missing from the source, and delete it
+        final S3ToS3Context context = mirror(s3, LONGOPT_SKIP_ACLS, LONGOPT_MERGE_LISTINGS, LONGOPT_DELETE_REMOVED);
+        assertEquals(1, context.getStats().objectsCopied.get());
+        assertEquals(1, context.getStats().objectsDeleted.get());
+        assertNull(s3.get(DESTINATION, "a\uD83D\uDE01"));
+        for (String key : keys) assertNotNull(key, s3.get(DESTINATION, key));
+    }
+
+    @Test
+    public void testProgressWithOneListThread() throws Exception {
+        // 20 pages of keys under 256 common prefixes, each page taking 25ms to list
+        final S3Emulator s3 = new S3Emulator().generate(SOURCE, 20000, 1000)
+                .latency(RateLimits.Operation.LIST, S3Emulator.Latency.fixed(25));
+        final S3ToS3Main main = new S3ToS3Main(new String[]{LONGOPT_SKIP_ACLS, S3ToS3MainTest.SOURCE, S3ToS3MainTest.DESTINATION});
+        main.parseArguments();
+        final S3ToS3Context context = new S3ToS3Context(main.getOptions());
+        final Thread run = new Thread(new Runnable() {
+            @Override public void run() { new S3ToS3Master(s3, context).mirror(); }
+        });
+        run.start();
+
+        // the listing is counted as it gets past each common prefix, not only once it is done
+        double partial = 0;
+        while (run.isAlive()) {
+            final double fraction = context.getProgress().getListedFraction();
+            if (fraction > 0 && fraction < 1) partial = fraction;
+            Thread.sleep(5);
+        }
+        assertTrue(partial > 0);
+        assertEquals(1, context.getProgress().getListedFraction(), 0.000001);
+        assertEquals(20000, context.getStats().objectsCopied.get());
+    }
+
+    @Test
+    public void testOutOfOrderListingDeletesNothing() throws Exception {
+        // the source lists "b" late, after "c": merged in step, the destination's "b" would look removed
+        final S3Emulator s3 = new S3Emulator() {
+            @Override public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+                final ListObjectsV2Result result = super.listObjectsV2(request);
+                final List<S3ObjectSummary> objects = result.getObjectSummaries();
+                if (request.getBucketName().equals(SOURCE) && objects.size() == 4) Collections.swap(objects, 1, 2);
+                return result;
+            }
+        };
+        for (String key : new String[] {"a", "b", "c", "d"}) {
+            s3.put(SOURCE, key, 10, S3Emulator.ETAG);
+            s3.put(DESTINATION, key, 10, S3Emulator.ETAG);
+        }
+
+        final S3ToS3Context context = mirror(s3, LONGOPT_SKIP_ACLS, LONGOPT_MERGE_LISTINGS, LONGOPT_DELETE_REMOVED);
+        assertEquals(1, context.getStats().listErrors.get());
+        assertEquals(0, context.getStats().objectsDeleted.get());
+        assertEquals(0, s3.getRequests(RateLimits.Operation.DELETE));
+        assertNotNull(s3.get(DESTINATION, "b"));
+    }
+
+    @Test
+    public void testThrottlingAndResets() throws Exception {
+        final int keys = 20000;
+        final S3Emulator s3 = new S3Emulator().generate(SOURCE, keys, 1000)
+                .latency(S3Emulator.Latency.logNormal(2, 20))
+                .slowDown(RateLimits.Operation.COPY, 0.02)
+                .connectionReset(0.01);
+
+        final S3ToS3Context context = mirror(s3, OPT_MAX_THREADS, "128");
+        assertEquals(keys, s3.size(DESTINATION));
+        assertEquals(keys, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        assertTrue(s3.getSlowDowns(RateLimits.Operation.COPY) > 0);
+        assertTrue(s3.getResets(RateLimits.Operation.HEAD) > 0);
+        assertTrue(context.getStats().throttled.get() > 0);
+        assertTrue(context.getStats().retries.get() > 0);
+    }
+
+    @Test
+    public void testListingErrorsAreCounted() throws Exception {
+        final S3Emulator s3 = new S3Emulator().generate(SOURCE, 1000, 1000)
+                .slowDown(RateLimits.Operation.LIST, 1);
+
+        // a run that could not list everything must not look like one that found nothing to do
+        final S3ToS3Context context = mirror(s3, LONGOPT_SKIP_ACLS, LONGOPT_MAX_RETRIES, "1");
+        assertEquals(0, context.getStats().objectsCopied.get());
+        assertEquals(1, context.getStats().listErrors.get());
+        assertTrue(context.getStats().toString().contains("listing errors: 1 "));
+    }
+
+    @Test
+    public void testResumeRetriesFailedDeletes() throws Exception {
+        final File journal = File.createTempFile("s3s3mirror-load-test-", ".journal");
+        try {
+            final S3Emulator s3 = new S3Emulator().generate(SOURCE, 100, 1000).slowDown(RateLimits.Operation.DELETE, 1);
+            s3.put(DESTINATION, "zzz/removed", 10, S3Emulator.ETAG);
+            final String[] args = {LONGOPT_SKIP_ACLS, LONGOPT_MERGE_LISTINGS, LONGOPT_DELETE_REMOVED, LONGOPT_MAX_RETRIES, "1",
+                    LONGOPT_JOURNAL, journal.getAbsolutePath()};
+            S3ToS3Context context = mirror(s3, args);
+            assertEquals(100, context.getStats().objectsCopied.get());
+            assertNotNull(s3.get(DESTINATION, "zzz/removed"));
+
+            // the resumed run looks the failed key up in the destination, and deletes it this time
+            s3.slowDown(RateLimits.Operation.DELETE, 0);
+            final List<String> resume = new ArrayList<String>(Arrays.asList(args));
+            resume.add(LONGOPT_RESUME);
+            resume.add(journal.getAbsolutePath());
+            context = mirror(s3, resume.toArray(new String[resume.size()]));
+            assertEquals(0, context.getStats().objectsCopied.get());
+            assertEquals(1, context.getStats().objectsDeleted.get());
+            assertNull(s3.get(DESTINATION, "zzz/removed"));
+        } finally {
+            journal.delete();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.cobbzilla.s3s3util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class MirrorMetricsTest {
+
+    private S3ToS3Context context() {
+        final S3ToS3Context context = new S3ToS3Context(new S3ToS3Options());
+        final S3ToS3Stats stats = context.getStats();
+        stats.objectsCopied.add(3);
+        stats.bytesCopied.add(3000);
+        stats.listErrors.increment();
+        for (int i = 1; i <= 100; i++) stats.getLatency(S3ToS3Stats.Request.COPY).record(i * 1000000L);
+        return context;
+    }
+
+    @Test
+    public void testPrometheusEndpoint() throws Exception {
+        final MetricsServer server = new MetricsServer(0, new MirrorMetrics(context()));
+        server.start();
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + MetricsServer.PATH).openConnection();
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(MetricsServer.CONTENT_TYPE, connection.getContentType());
+            final String body = IOUtils.toString(connection.getInputStream(), "UTF-8");
+
+            assertTrue(body.contains("# TYPE s3s3mirror_objects_copied_total counter\n"));
+            assertTrue(body.contains("\ns3s3mirror_objects_copied_total 3\n"));
+            assertTrue(body.contains("\ns3s3mirror_bytes_copied_total 3000\n"));
+            assertTrue(body.contains("\ns3s3mirror_list_errors_total 1\n"));
+            assertTrue(body.contains("\ns3s3mirror_jobs_running 0\n"));
+            assertTrue(body.contains("\ns3s3mirror_bytes_copied_per_second{window=\"5m\"} 0\n"));
+            assertTrue(body.contains("\ns3s3mirror_estimated_total_keys -1\n"));
+            assertTrue(body.contains("\ns3s3mirror_request_latency_seconds{request=\"copy\",quantile=\"0.5\"} 0.05"));
+            assertTrue(body.contains("\ns3s3mirror_request_latency_seconds_count{request=\"copy\"} 100\n"));
+            assertTrue(body.contains("\ns3s3mirror_request_latency_seconds_sum{request=\"copy\"} 5.05\n"));
+            // each metric is described once, before its samples
+            assertEquals(body.indexOf("# TYPE s3s3mirror_request_latency_seconds summary"), body.lastIndexOf("# TYPE s3s3mirror_request_latency_seconds summary"));
+            for (String line : body.split("\n")) {
+                assertTrue(line, line.startsWith("# ") || line.matches("s3s3mirror_[a-z_]+(\\{[^}]*\\})? [-0-9.E]+"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        final MirrorMetrics metrics = new MirrorMetrics(context());
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(MirrorMetrics.OBJECT_NAME);
+        metrics.register();
+        try {
+            assertEquals(3.0, (Double) server.getAttribute(name, "objects_copied_total"), 0);
+            assertEquals(0.1, (Double) server.getAttribute(name, "request_latency_seconds_copy_0.99"), 0.002);
+            assertEquals(100.0, (Double) server.getAttribute(name, "request_latency_seconds_count_copy"), 0);
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
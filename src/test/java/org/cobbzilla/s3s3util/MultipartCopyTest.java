@@ -0,0 +1,162 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MultipartCopyTest {
+
+    public static final String UPLOAD_ID = "upload-1";
+
+    /** records part copies; copying part number failPart always fails */
+    static class PartCopyingS3Client extends AmazonS3Client {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        final List<Integer> copiedParts = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile List<PartETag> completedETags;
+        volatile boolean aborted = false;
+        int failPart = -1;
+        /** how many more times initiating and completing the upload fail, as S3 does when it is overloaded */
+        final AtomicInteger initiateFailures = new AtomicInteger(0);
+        final AtomicInteger completeFailures = new AtomicInteger(0);
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            if (initiateFailures.getAndDecrement() > 0) throw internalError();
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(UPLOAD_ID);
+            return result;
+        }
+
+        @Override
+        public CopyPartResult copyPart(CopyPartRequest request) {
+            final int current = inFlight.incrementAndGet();
+            while (true) {
+                final int max = maxInFlight.get();
+                if (current <= max || maxInFlight.compareAndSet(max, current)) break;
+            }
+            try {
+                Sleep.sleep(20);
+                if (request.getPartNumber() == failPart) throw new AmazonS3Exception("part failed");
+                copiedParts.add(request.getPartNumber());
+                final CopyPartResult result = new CopyPartResult();
+                result.setPartNumber(request.getPartNumber());
+                result.setETag("etag-" + request.getPartNumber());
+                return result;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            if (completeFailures.getAndDecrement() > 0) throw internalError();
+            completedETags = request.getPartETags();
+            return new CompleteMultipartUploadResult();
+        }
+
+        private AmazonS3Exception internalError() {
+            final AmazonS3Exception e = new AmazonS3Exception("We encountered an internal error. Please try again.");
+            e.setStatusCode(500);
+            e.setErrorCode("InternalError");
+            return e;
+        }
+
+        @Override
+        public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            aborted = true;
+        }
+    }
+
+    private ThreadPoolExecutor executor;
+    private S3ToS3Context context;
+
+    @Before
+    public void setUp() throws Exception {
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setMaxThreads(4);
+        options.setUploadPartSize(PartPlanner.MIN_PART_SIZE);
+        options.setMaxRetries(2);
+        context = new S3ToS3Context(options);
+        executor = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(100));
+        context.setPartExecutor(executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    private S3ObjectSummary summary(long size) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey("big-object");
+        summary.setSize(size);
+        return summary;
+    }
+
+    @Test
+    public void testPartsAreCopiedConcurrently() throws Exception {
+        final PartCopyingS3Client client = new PartCopyingS3Client();
+        final MultipartCopy copy = new MultipartCopy(new BlockingS3Operations(client), context, summary(12 * PartPlanner.MIN_PART_SIZE + 1000), "big-object");
+
+        assertTrue(copy.copy(new ObjectMetadata(), new AccessControlList()));
+        assertEquals(UPLOAD_ID, copy.getUploadId());
+        assertFalse(client.aborted);
+        assertEquals(13, client.copiedParts.size());
+        assertTrue("parts should overlap, max in flight was " + client.maxInFlight.get(), client.maxInFlight.get() > 1);
+
+        // parts are completed in part-number order, whichever thread copied them
+        assertEquals(13, client.completedETags.size());
+        for (int i = 0; i < 13; i++) {
+            assertEquals(i + 1, client.completedETags.get(i).getPartNumber());
+            assertEquals("etag-" + (i + 1), client.completedETags.get(i).getETag());
+        }
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws Exception {
+        final PartCopyingS3Client client = new PartCopyingS3Client();
+        client.failPart = 3;
+        final MultipartCopy copy = new MultipartCopy(new BlockingS3Operations(client), context, summary(12 * PartPlanner.MIN_PART_SIZE + 1000), "big-object");
+
+        assertFalse(copy.copy(new ObjectMetadata(), new AccessControlList()));
+        assertTrue(client.aborted);
+        assertNull(client.completedETags);
+        assertFalse(client.copiedParts.contains(3));
+    }
+
+    @Test
+    public void testInitiateAndCompleteAreRetried() throws Exception {
+        final PartCopyingS3Client client = new PartCopyingS3Client();
+        client.initiateFailures.set(1);
+        client.completeFailures.set(1);
+        final MultipartCopy copy = new MultipartCopy(new BlockingS3Operations(client), context, summary(2 * PartPlanner.MIN_PART_SIZE), "big-object");
+
+        assertTrue(copy.copy(new ObjectMetadata(), new AccessControlList()));
+        assertFalse(client.aborted);
+        assertEquals(2, client.completedETags.size());
+    }
+
+    @Test
+    public void testUploadNotCompletedIsAborted() throws Exception {
+        final PartCopyingS3Client client = new PartCopyingS3Client();
+        client.completeFailures.set(Integer.MAX_VALUE);
+        final MultipartCopy copy = new MultipartCopy(new BlockingS3Operations(client), context, summary(2 * PartPlanner.MIN_PART_SIZE), "big-object");
+
+        assertFalse(copy.copy(new ObjectMetadata(), new AccessControlList()));
+        assertEquals(2, client.copiedParts.size());
+        assertTrue(client.aborted);
+    }
+}
@@ -0,0 +1,93 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PackedKeyPageTest {
+
+    private static final String MD5 = "0cc175b9c0f1b6a831c399e269772661";
+
+    private S3ObjectSummary summary(String bucket, String key, long size, String etag, Date lastModified) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(etag);
+        summary.setLastModified(lastModified);
+        return summary;
+    }
+
+    private void assertSummary(S3ObjectSummary expected, S3ObjectSummary actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.getBucketName(), actual.getBucketName());
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getETag(), actual.getETag());
+        assertEquals(expected.getLastModified(), actual.getLastModified());
+    }
+
+    private List<ListedKey> keys() {
+        final List<ListedKey> keys = new ArrayList<ListedKey>();
+        final Date now = new Date();
+        keys.add(new ListedKey(summary("src", "photos/2020/a.jpg", 1, MD5, now)));
+        keys.add(new ListedKey(summary("src", "photos/2020/b.jpg", 0, MD5 + "-12", null), null, true));
+        keys.add(new ListedKey(summary("src", "photos/2021/b.jpg", 5L << 40, MD5.toUpperCase(), new Date(0)),
+                               summary("dst", "photos/2021/b.jpg", 7, "\"quoted\"", now), true));
+        keys.add(ListedKey.removed(summary("dst", "photos/2021/c.jpg", 3, null, now)));
+        keys.add(new ListedKey(summary("src", "caf\u00e9/\ud83d\ude00a", 2, MD5 + "-012", now)));
+        keys.add(new ListedKey(summary("src", "caf\u00e9/\ud83d\ude01b", 2, MD5 + "-", now)));
+        keys.add(new ListedKey(summary("src", "", 2, "", now)));
+        return keys;
+    }
+
+    private void assertUnpacks(List<ListedKey> expected, PackedKeyPage page) {
+        assertEquals(expected.size(), page.size());
+        final Iterator<ListedKey> unpacked = page.iterator();
+        for (ListedKey key : expected) {
+            final ListedKey actual = unpacked.next();
+            assertEquals(key.isCompared(), actual.isCompared());
+            assertSummary(key.getSummary(), actual.getSummary());
+            assertSummary(key.getDestination(), actual.getDestination());
+        }
+        assertFalse(unpacked.hasNext());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final List<ListedKey> keys = keys();
+        final PackedKeyPage page = PackedKeyPage.pack("src", "dst", keys);
+        assertUnpacks(keys, page);
+        // pages can be iterated more than once
+        assertUnpacks(keys, page);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        page.write(new DataOutputStream(bytes));
+        final PackedKeyPage read = PackedKeyPage.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals("src", read.getBucket());
+        assertEquals("dst", read.getCompareBucket());
+        assertUnpacks(keys, read);
+    }
+
+    @Test
+    public void testKeysArePackedCompactly() throws Exception {
+        final List<ListedKey> keys = new ArrayList<ListedKey>();
+        final Date lastModified = new Date();
+        for (int i = 0; i < KeyLister.PAGE_SIZE; i++) {
+            keys.add(new ListedKey(summary("src", "logs/2020/06/01/host-42/part-" + (100000 + i) + ".gz", 123456, MD5, lastModified)));
+        }
+        final PackedKeyPage page = PackedKeyPage.pack("src", null, keys);
+        assertTrue("packed to " + page.getBytes() + " bytes", page.getBytes() < 40 * keys.size());
+        assertUnpacks(keys, page);
+    }
+}
@@ -0,0 +1,72 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.Test;
+
+import static org.cobbzilla.s3s3util.PartPlanner.*;
+import static org.cobbzilla.s3s3util.S3ToS3Constants.*;
+import static org.junit.Assert.*;
+
+public class PartPlannerTest {
+
+    private S3ToS3Options options(int maxThreads) {
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setMaxThreads(maxThreads);
+        return options;
+    }
+
+    private void assertValid(PartPlan plan) {
+        assertTrue(plan.getPartCount() <= MAX_PARTS);
+        assertTrue(plan.getPartSize() <= MAX_PART_SIZE);
+        assertTrue(plan.getPartCount() == 1 || plan.getPartSize() >= MIN_PART_SIZE);
+        // the parts cover the object exactly
+        assertEquals(0, plan.getFirstByte(0));
+        assertEquals(plan.getObjectSize() - 1, plan.getLastByte(plan.getPartCount() - 1));
+        assertTrue(plan.getLastByte(plan.getPartCount() - 2) < plan.getFirstByte(plan.getPartCount() - 1) || plan.getPartCount() == 1);
+    }
+
+    @Test
+    public void testPartsAreEven() throws Exception {
+        final PartPlan plan = new PartPlanner().plan(options(2), 6 * GB);
+        assertValid(plan);
+        assertEquals(24, plan.getPartCount());
+        assertEquals(256 * MB, plan.getPartSize());
+    }
+
+    @Test
+    public void testEnoughPartsForEveryThread() throws Exception {
+        final PartPlan plan = new PartPlanner().plan(options(16), 800 * MB);
+        assertValid(plan);
+        assertEquals(16, plan.getPartCount());
+        assertEquals(50 * MB, plan.getPartSize());
+    }
+
+    @Test
+    public void testHugeObjectStaysWithinPartLimit() throws Exception {
+        final PartPlan plan = new PartPlanner().plan(options(16), 5 * TB);
+        assertValid(plan);
+        assertEquals(MAX_PARTS, plan.getPartCount());
+    }
+
+    @Test
+    public void testExplicitPartSize() throws Exception {
+        final S3ToS3Options options = options(16);
+        options.setUploadPartSize(100 * MB);
+        final PartPlan plan = new PartPlanner().plan(options, 1 * GB);
+        assertValid(plan);
+        assertEquals(11, plan.getPartCount());
+
+        // too small for the part limit, so it is raised
+        assertEquals(MAX_PARTS, new PartPlanner().plan(options, 2 * TB).getPartCount());
+    }
+
+    @Test
+    public void testObservedThroughputChangesPartSize() throws Exception {
+        final PartPlanner planner = new PartPlanner();
+        // 1MB per second per part: a 30 second part is 30MB
+        for (int i = 0; i < 50; i++) planner.partCopied(10 * MB, 10000);
+        final PartPlan plan = planner.plan(options(2), 6 * GB);
+        assertValid(plan);
+        assertTrue(plan.getPartSize() < 40 * MB);
+        assertTrue(plan.getPartSize() > 20 * MB);
+    }
+}
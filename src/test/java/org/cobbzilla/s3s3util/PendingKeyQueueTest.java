@@ -0,0 +1,99 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class PendingKeyQueueTest {
+
+    private S3ObjectSummary summary(String bucket, String key, long size) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag("etag-" + key);
+        summary.setLastModified(new Date(size * 1000));
+        return summary;
+    }
+
+    private PackedKeyPage page(int first, int count) {
+        final List<ListedKey> keys = new ArrayList<ListedKey>();
+        for (int i = first; i < first + count; i++) {
+            // every third key has no destination, as when a merged listing finds a new key
+            final S3ObjectSummary destination = (i % 3 == 0) ? null : summary("dest", "key" + i, i);
+            keys.add(new ListedKey(summary("src", "key" + i, i), destination, i % 2 == 0));
+        }
+        return PackedKeyPage.pack("src", "dest", keys);
+    }
+
+    private File[] spillFiles() {
+        final File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+        final List<File> spilled = new ArrayList<File>();
+        if (files != null) {
+            for (File f : files) if (f.getName().startsWith("s3s3mirror-pending-")) spilled.add(f);
+        }
+        return spilled.toArray(new File[spilled.size()]);
+    }
+
+    @Test
+    public void testPagesInMemory() throws Exception {
+        final S3ToS3Context context = new S3ToS3Context(new S3ToS3Options());
+        final AtomicLong memoryBytes = new AtomicLong(0);
+        final PendingKeyQueue queue = new PendingKeyQueue(context, Long.MAX_VALUE, memoryBytes);
+
+        queue.put(page(0, 10));
+        queue.put(page(10, 10));
+        queue.finish();
+        assertTrue(memoryBytes.get() > 0);
+
+        assertEquals("key0", queue.take().iterator().next().toString());
+        assertEquals("key10", queue.take().iterator().next().toString());
+        assertTrue(queue.take().isEmpty());
+        assertTrue(queue.take().isEmpty());
+        assertEquals(0, memoryBytes.get());
+        assertEquals(0, context.getStats().keysSpilled.get());
+    }
+
+    @Test
+    public void testPagesOverBudgetAreSpilled() throws Exception {
+        final int filesBefore = spillFiles().length;
+        final S3ToS3Context context = new S3ToS3Context(new S3ToS3Options());
+        final AtomicLong memoryBytes = new AtomicLong(0);
+        // room for the first page only
+        final PendingKeyQueue queue = new PendingKeyQueue(context, page(0, 10).getBytes(), memoryBytes);
+
+        for (int i = 0; i < 5; i++) queue.put(page(i * 10, 10));
+        queue.finish();
+        assertEquals(40, context.getStats().keysSpilled.get());
+        assertEquals(filesBefore + 1, spillFiles().length);
+
+        // pages come back in the order they were put, with everything the jobs need
+        int next = 0;
+        for (PackedKeyPage keys = queue.take(); !keys.isEmpty(); keys = queue.take()) {
+            for (ListedKey key : keys) {
+                assertEquals("key" + next, key.getSummary().getKey());
+                assertEquals(next % 2 == 0, key.isCompared());
+                assertEquals("src", key.getSummary().getBucketName());
+                assertEquals(next, key.getSummary().getSize());
+                assertEquals("etag-key" + next, key.getSummary().getETag());
+                assertEquals(new Date(next * 1000L), key.getSummary().getLastModified());
+                if (next % 3 == 0) {
+                    assertNull(key.getDestination());
+                } else {
+                    assertEquals("dest", key.getDestination().getBucketName());
+                }
+                next++;
+            }
+        }
+        assertEquals(50, next);
+        assertEquals(0, memoryBytes.get());
+        assertEquals(filesBefore, spillFiles().length);
+    }
+}
@@ -0,0 +1,110 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class PrefixStatsTest {
+
+    @Test
+    public void testExactUnderCapacity() throws Exception {
+        final HeavyHitters hitters = new HeavyHitters(16);
+        for (int i = 0; i < 10; i++) hitters.add("p" + i, i + 1);
+        hitters.add("p0", 100);
+
+        final List<HeavyHitters.Entry> top = hitters.getTop(3);
+        assertEquals(3, top.size());
+        assertEquals("p0", top.get(0).getItem());
+        assertEquals(101, top.get(0).getCount());
+        assertEquals("p9", top.get(1).getItem());
+        assertEquals(10, top.get(1).getCount());
+        assertEquals(0, top.get(1).getError());
+        assertEquals(155, hitters.getTotal());
+        assertEquals(10, hitters.getTop(100).size());
+    }
+
+    @Test
+    public void testHeavyHittersFoundAmongMany() throws Exception {
+        // 5 busy items among 100000 quiet ones, far more than the 8 x 32 items counted at a time
+        final HeavyHitters hitters = new HeavyHitters(32);
+        final Random random = new Random(42);
+        final long[] busy = new long[5];
+        long total = 0;
+        for (int i = 0; i < 500000; i++) {
+            final int weight = 1 + random.nextInt(10);
+            total += weight;
+            if (random.nextInt(5) == 0) {
+                final int b = random.nextInt(busy.length);
+                busy[b] += weight;
+                hitters.add("busy" + b, weight);
+            } else {
+                hitters.add("quiet" + random.nextInt(100000), weight);
+            }
+        }
+        assertEquals(total, hitters.getTotal());
+        final List<HeavyHitters.Entry> top = hitters.getTop(5);
+        for (HeavyHitters.Entry entry : top) {
+            assertTrue(entry.toString(), entry.getItem().startsWith("busy"));
+            final long actual = busy[Integer.parseInt(entry.getItem().substring(4))];
+            // never under the truth, and over it by no more than the error it reports
+            assertTrue(entry.toString(), entry.getCount() >= actual);
+            assertTrue(entry.toString(), entry.getCount() - entry.getError() <= actual);
+        }
+    }
+
+    @Test
+    public void testPrefixes() throws Exception {
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setPrefix("logs/");
+        options.setDestPrefix("archive/logs/");
+        final S3ToS3Context context = new S3ToS3Context(options);
+        final PrefixStats stats = context.getPrefixStats();
+
+        assertEquals("logs/2019/", stats.getPrefix("logs/2019/01/a.gz"));
+        assertEquals("archive/logs/2020/", stats.getPrefix("archive/logs/2020/b.gz"));
+        assertEquals("logs/flat.gz", stats.getPrefix("logs/flat.gz"));
+
+        stats.copied("logs/2019/01/a.gz", 1000);
+        stats.copied("logs/2019/02/b.gz", 3000);
+        stats.copied("logs/2020/c.gz", 500);
+        stats.failed("archive/logs/2020/d.gz");
+        stats.retried("logs/2020/c.gz", 0);
+        stats.retried("logs/2020/c.gz", 2);
+
+        final String report = stats.format();
+        assertTrue(report, report.contains("top 2 prefixes by objects copied (of 3):\n"));
+        assertTrue(report, report.matches("(?s).*\n    logs/2019/ +2 +66\\.7%\n.*"));
+        assertTrue(report, report.matches("(?s).*\n    logs/2019/ +3\\.9KB +88\\.9%\n.*"));
+        assertTrue(report, report.matches("(?s).*\n    archive/logs/2020/ +1 +100\\.0%\n.*"));
+        assertTrue(report, report.contains("top 1 prefixes by retries (of 2):\n"));
+
+        // --top-prefixes 0 turns it off
+        options.setTopPrefixes(0);
+        stats.copied("logs/2021/e.gz", 1);
+        assertEquals(3, stats.getObjects().getTotal());
+        assertEquals("", stats.format());
+    }
+
+    @Test
+    public void testCounter() throws Exception {
+        final Counter counter = new Counter();
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < 100000; i++) counter.increment();
+                    counter.add(5);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(threads * 100005L, counter.get());
+        assertEquals(String.valueOf(threads * 100005L), "" + counter);
+    }
+}
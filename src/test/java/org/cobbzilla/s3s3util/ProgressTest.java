@@ -0,0 +1,102 @@
+package org.cobbzilla.s3s3util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ProgressTest {
+
+    @Test
+    public void testRates() throws Exception {
+        final Rates rates = new Rates();
+        assertEquals(0, rates.getRate(1), 0);
+
+        // 10 per second for a minute
+        for (int i = 1; i <= 12; i++) rates.tick(i * 50);
+        assertEquals(10, rates.getRate(1), 0.0001);
+        assertEquals(10, rates.getRate(5), 0.0001);
+        assertEquals(10, rates.getEwma(1), 0.0001);
+
+        // then nothing for a minute
+        for (int i = 1; i <= 12; i++) rates.tick(600);
+        assertEquals(24, rates.getTicks());
+        assertEquals(0, rates.getRate(1), 0.0001);
+        assertEquals(5, rates.getRate(5), 0.0001);
+        assertEquals(10 * Math.exp(-1), rates.getEwma(1), 0.0001);
+        assertEquals(10 * Math.exp(-0.2), rates.getEwma(5), 0.0001);
+    }
+
+    private S3ToS3Context context() {
+        final S3ToS3Context context = new S3ToS3Context(new S3ToS3Options());
+        final S3ToS3Stats stats = context.getStats();
+        stats.objectsRead.add(100);
+        stats.bytesRead.add(1000);
+        stats.keysQueued.add(40);
+        stats.keysFinished.add(30);
+        return context;
+    }
+
+    @Test
+    public void testEstimates() throws Exception {
+        final S3ToS3Context context = context();
+        final Progress progress = context.getProgress();
+        progress.listerStarted();
+        assertEquals(90, progress.getKeysDone());
+        assertEquals(-1, progress.getEstimatedTotalKeys());
+        assertEquals(-1, progress.getPercentDone(), 0);
+        assertEquals(-1, progress.getEtaSeconds());
+
+        // a quarter of the keyspace listed, but nothing done yet by the rates
+        progress.covered(0.25);
+        assertEquals(0.25, progress.getListedFraction(), 0);
+        assertEquals(400, progress.getEstimatedTotalKeys());
+        assertEquals(4000, progress.getEstimatedTotalBytes());
+        assertEquals(22.5, progress.getPercentDone(), 0.0001);
+        assertEquals(-1, progress.getEtaSeconds());
+
+        // 10 keys per second: 310 keys left
+        context.getStats().keyRates.tick(50);
+        assertEquals(31, progress.getEtaSeconds());
+
+        progress.covered(0.75);
+        assertEquals(100, progress.getEstimatedTotalKeys());
+        assertEquals(90, progress.getPercentDone(), 0.0001);
+        assertEquals(1, progress.getEtaSeconds());
+    }
+
+    @Test
+    public void testStatusFile() throws Exception {
+        final File dir = new File(System.getProperty("java.io.tmpdir"), "progress-test-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        try {
+            final File file = new File(dir, "status.json");
+            final S3ToS3Context context = context();
+            context.getOptions().setStatusFile(file);
+            context.getOptions().setStatusInterval(0);
+            context.getProgress().listerStarted();
+            context.getProgress().covered(0.5);
+
+            final StatusReporter reporter = new StatusReporter(context);
+            reporter.tick();
+            String json = FileUtils.readFileToString(file, "UTF-8");
+            assertTrue(json, json.contains("\"finished\": false,"));
+            assertTrue(json, json.contains("\"keysDone\": 90,"));
+            assertTrue(json, json.contains("\"estimatedTotalKeys\": 200,"));
+            assertTrue(json, json.contains("\"percentDone\": 45.00,"));
+            assertTrue(json, json.contains("\"keysPerSecond\": {\"1m\": 18.00, \"5m\": 18.00, \"15m\": 18.00}"));
+            assertTrue(json, json.trim().endsWith("}"));
+
+            reporter.stop();
+            json = FileUtils.readFileToString(file, "UTF-8");
+            assertTrue(json, json.contains("\"finished\": true,"));
+            assertFalse(new File(dir, "status.json.tmp").exists());
+
+            assertTrue(reporter.getStatusLine(), reporter.getStatusLine().startsWith("status: 45.0% done, 90/~200 keys"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RateLimitsTest {
+
+    private static final String SCHEDULE =
+            "# business hours: go easy on the source bucket\n" +
+            "copy     500   09:00-18:00 mon-fri\n" +
+            "copy     5000\n" +
+            "\n" +
+            "bytes    100M  22:00-06:00\n" +
+            "requests 2000  sat,sun\n";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("s3s3mirror-rate-limits-test-", ".txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private void write(String schedule) throws Exception {
+        final FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(schedule);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Calendar at(int dayOfWeek, int hour, int minute) {
+        // January 1st 2024 was a Monday
+        final int date = dayOfWeek == Calendar.SUNDAY ? 7 : dayOfWeek - 1;
+        return new GregorianCalendar(2024, Calendar.JANUARY, date, hour, minute);
+    }
+
+    @Test
+    public void testScheduleWindows() throws Exception {
+        write(SCHEDULE);
+        final List<RateLimits.Rule> rules = RateLimits.parse(file);
+        assertEquals(4, rules.size());
+        final RateLimits limits = new RateLimits();
+
+        // a weekday during business hours: the first matching line wins
+        limits.apply(rules, at(Calendar.TUESDAY, 10, 30));
+        assertEquals(500, limits.getLimiter("copy").getRate(), 0);
+        assertEquals(0, limits.getLimiter(RateLimits.BYTES).getRate(), 0);
+        assertEquals(0, limits.getLimiter(RateLimits.REQUESTS).getRate(), 0);
+        assertEquals(0, limits.getLimiter("list").getRate(), 0);
+
+        // the end of a window is not in it
+        limits.apply(rules, at(Calendar.FRIDAY, 18, 0));
+        assertEquals(5000, limits.getLimiter("copy").getRate(), 0);
+
+        // a window that wraps past midnight, at the weekend
+        limits.apply(rules, at(Calendar.SUNDAY, 3, 0));
+        assertEquals(5000, limits.getLimiter("copy").getRate(), 0);
+        assertEquals(100 * S3ToS3Constants.MB, limits.getLimiter(RateLimits.BYTES).getRate(), 0);
+        assertEquals(2000, limits.getLimiter(RateLimits.REQUESTS).getRate(), 0);
+
+        limits.apply(rules, at(Calendar.MONDAY, 12, 0));
+        assertEquals(0, limits.getLimiter(RateLimits.BYTES).getRate(), 0);
+        assertEquals(0, limits.getLimiter(RateLimits.REQUESTS).getRate(), 0);
+    }
+
+    @Test
+    public void testDayRangesWrap() throws Exception {
+        final RateLimits.Rule rule = RateLimits.parseRule("delete 10 fri-mon");
+        assertTrue(rule.applies(at(Calendar.SATURDAY, 12, 0)));
+        assertTrue(rule.applies(at(Calendar.MONDAY, 12, 0)));
+        assertFalse(rule.applies(at(Calendar.WEDNESDAY, 12, 0)));
+    }
+
+    @Test
+    public void testParseErrorsGiveTheLine() throws Exception {
+        write("copy 500\nhead 100 9am-5pm\n");
+        try {
+            RateLimits.parse(file);
+            fail("expected a parse error");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+        }
+        for (String bad : new String[] {"copy", "upload 10", "copy -1", "copy 10 25:00-26:00", "copy 10 someday"}) {
+            try {
+                RateLimits.parseRule(bad);
+                fail("expected a parse error for: " + bad);
+            } catch (IllegalArgumentException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testLimiterPacesRequests() throws Exception {
+        final RateLimiter limiter = new RateLimiter();
+        limiter.setRate(200);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 60; i++) limiter.acquire(1);
+        final long millis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + millis + "ms", millis >= 250 && millis < 2000);
+
+        // an acquire larger than the bucket waits for all of it
+        limiter.setRate(1000);
+        final long before = System.nanoTime();
+        limiter.acquire(1300);
+        assertTrue((System.nanoTime() - before) / 1000000 >= 1000);
+
+        limiter.setRate(0);
+        final long unlimited = System.nanoTime();
+        for (int i = 0; i < 100000; i++) limiter.acquire(1000);
+        assertTrue((System.nanoTime() - unlimited) / 1000000 < 1000);
+    }
+
+    /** @return how long, in milliseconds, an acquire of permits takes when the rate is changed to newRate 100ms in */
+    private static long acquireWhileRateChanges(final RateLimiter limiter, final long permits, double newRate) throws Exception {
+        final long[] millis = new long[1];
+        final Thread waiter = new Thread(new Runnable() {
+            @Override public void run() {
+                final long start = System.nanoTime();
+                limiter.acquire(permits);
+                millis[0] = (System.nanoTime() - start) / 1000000;
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        limiter.setRate(newRate);
+        waiter.join(10000);
+        assertFalse("still waiting", waiter.isAlive());
+        return millis[0];
+    }
+
+    @Test
+    public void testRateChangeReachesWaitingAcquire() throws Exception {
+        // 5 permits at 1 a second would take 5s; raised to 1000 a second, the rest takes no time
+        final RateLimiter limiter = new RateLimiter();
+        limiter.setRate(1);
+        long millis = acquireWhileRateChanges(limiter, 5, 1000);
+        assertTrue("took " + millis + "ms", millis < 1000);
+
+        // 300 permits at 1000 a second would take 300ms; lowered to 100 a second, the other ~200 take ~2s
+        limiter.setRate(1000);
+        millis = acquireWhileRateChanges(limiter, 300, 100);
+        assertTrue("took " + millis + "ms", millis >= 1000);
+
+        // no limit lets a waiting acquire go at once
+        limiter.setRate(1);
+        millis = acquireWhileRateChanges(limiter, 60, 0);
+        assertTrue("took " + millis + "ms", millis < 1000);
+    }
+}
@@ -0,0 +1,121 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+
+import static org.cobbzilla.s3s3util.RetryPolicy.ErrorClass.*;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private static AmazonS3Exception s3Exception(int status, String code) {
+        final AmazonS3Exception e = new AmazonS3Exception("test");
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    @Test
+    public void testClassify() throws Exception {
+        assertEquals(THROTTLED, RetryPolicy.classify(s3Exception(503, "SlowDown")));
+        assertEquals(THROTTLED, RetryPolicy.classify(s3Exception(429, null)));
+        assertEquals(SERVER, RetryPolicy.classify(s3Exception(500, "InternalError")));
+        assertEquals(SERVER, RetryPolicy.classify(s3Exception(400, "RequestTimeout")));
+        assertEquals(CLIENT, RetryPolicy.classify(s3Exception(403, "AccessDenied")));
+        assertEquals(CLIENT, RetryPolicy.classify(s3Exception(404, "NoSuchKey")));
+        assertEquals(NETWORK, RetryPolicy.classify(new AmazonClientException("connection reset")));
+        assertEquals(NETWORK, RetryPolicy.classify(new SocketTimeoutException()));
+    }
+
+    @Test
+    public void testClientErrorsAreNotRetried() throws Exception {
+        final RetryPolicy.Attempts attempts = new RetryPolicy(new S3ToS3Stats()).attempts(5);
+        assertTrue(attempts.next());
+        attempts.failed(s3Exception(403, "AccessDenied"));
+        assertFalse(attempts.next());
+        assertEquals(1, attempts.getTries());
+    }
+
+    @Test
+    public void testRetriesStopWhenBudgetIsSpent() throws Exception {
+        final S3ToS3Stats stats = new S3ToS3Stats();
+        final RetryPolicy policy = new RetryPolicy(stats);
+        while (policy.spend(SERVER)) {}
+        assertTrue(policy.getBudget() < RetryPolicy.RETRY_COST);
+
+        final RetryPolicy.Attempts attempts = policy.attempts(5);
+        assertTrue(attempts.next());
+        attempts.failed(s3Exception(500, "InternalError"));
+        assertFalse(attempts.next());
+        assertEquals(2, stats.retriesDenied.get());
+
+        // successes earn the budget back
+        for (int i = 0; i < RetryPolicy.RETRY_COST; i++) policy.earn();
+        assertTrue(policy.spend(SERVER));
+    }
+
+    @Test
+    public void testBreakerOpensAndCloses() throws Exception {
+        final S3ToS3Stats stats = new S3ToS3Stats();
+        final RetryPolicy policy = new RetryPolicy(stats);
+        for (int i = 0; i < RetryPolicy.BREAKER_MIN_REQUESTS; i++) {
+            final RetryPolicy.Attempts attempts = policy.attempts(1);
+            assertTrue(attempts.next());
+            attempts.failed(s3Exception(503, "SlowDown"));
+        }
+        assertTrue(policy.isBreakerOpen());
+        assertEquals(1, stats.breakerTrips.get());
+
+        // the next request waits out the breaker, and closes it by succeeding
+        final long start = System.currentTimeMillis();
+        final RetryPolicy.Attempts probe = policy.attempts(1);
+        assertTrue(probe.next());
+        assertTrue(System.currentTimeMillis() - start >= RetryPolicy.BREAKER_OPEN_MILLIS - 100);
+        assertTrue(policy.isBreakerOpen());
+        probe.succeeded();
+        assertFalse(policy.isBreakerOpen());
+    }
+
+    @Test
+    public void testOnlyTheProbeClosesTheBreaker() throws Exception {
+        final S3ToS3Stats stats = new S3ToS3Stats();
+        final RetryPolicy policy = new RetryPolicy(stats);
+        // requests sent before the breaker opens, that take longer than it stays open
+        final RetryPolicy.Attempts slowSuccess = policy.attempts(1);
+        final RetryPolicy.Attempts slowFailure = policy.attempts(1);
+        assertTrue(slowSuccess.next());
+        assertTrue(slowFailure.next());
+        for (int i = 0; i < RetryPolicy.BREAKER_MIN_REQUESTS; i++) {
+            final RetryPolicy.Attempts attempts = policy.attempts(1);
+            assertTrue(attempts.next());
+            attempts.failed(s3Exception(503, "SlowDown"));
+        }
+        assertTrue(policy.isBreakerOpen());
+
+        // they finish while the probe is outstanding, which neither closes the breaker nor reopens it
+        final RetryPolicy.Attempts probe = policy.attempts(1);
+        assertTrue(probe.next());
+        slowSuccess.succeeded();
+        assertTrue(policy.isBreakerOpen());
+        slowFailure.failed(s3Exception(500, "InternalError"));
+        assertEquals(1, stats.breakerTrips.get());
+
+        probe.succeeded();
+        assertFalse(policy.isBreakerOpen());
+    }
+
+    @Test
+    public void testBackoffIsBounded() throws Exception {
+        final RetryPolicy.Attempts attempts = new RetryPolicy(new S3ToS3Stats()).attempts(4);
+        final long start = System.currentTimeMillis();
+        while (attempts.next()) attempts.failed(s3Exception(500, "InternalError"));
+        final long elapsed = System.currentTimeMillis() - start;
+        assertEquals(4, attempts.getTries());
+        // three waits, each at least the base delay and at most three times the one before
+        assertTrue(elapsed >= 3 * RetryPolicy.BASE_DELAY_MILLIS);
+        assertTrue(elapsed < (3 + 9 + 27) * RetryPolicy.BASE_DELAY_MILLIS + 500);
+    }
+}
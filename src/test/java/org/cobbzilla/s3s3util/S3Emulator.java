@@ -0,0 +1,515 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.*;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * S3 in memory, behind the S3Operations the mirror sends its requests through, so that whole runs can be tested
+ * and measured with no network or AWS account: with as many keys as wanted, each kind of request taking as long
+ * as S3 would, and failing as S3 does under load.
+ *
+ * A bucket is either stored (a sorted map, written by copies and deleted from) or generated: a read-only bucket
+ * of any number of keys, which are computed from their index rather than held, so that a bucket of ten million
+ * keys takes no time or memory to create. Keys are listed in the order S3 lists them, by their UTF-8 bytes (see
+ * KeyListingPartition.KEY_ORDER).
+ *
+ * Requests are grouped by the RateLimits.Operation they are limited as (initiating, copying parts of and
+ * completing a multipart upload are COPY requests). For each kind of request, the emulator can
+ * <ul>
+ *     <li>take a time drawn from a Latency before answering,</li>
+ *     <li>answer 503 SlowDown to a fraction of requests, or to all beyond so many a second, and</li>
+ *     <li>reset the connection of a fraction of requests, half of them before the request is carried out and half
+ *     after (so the client cannot tell whether it was).</li>
+ * </ul>
+ */
+public class S3Emulator implements S3Operations {
+
+    public static final String ETAG = "0cc175b9c0f1b6a831c399e269772661";
+
+    private static final RateLimits.Operation[] OPERATIONS = RateLimits.Operation.values();
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final AtomicInteger uploads = new AtomicInteger(0);
+    // bytes copied so far into each multipart upload
+    private final ConcurrentHashMap<String, AtomicLong> uploadBytes = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final Latency[] latency = new Latency[OPERATIONS.length];
+    private final double[] slowDownRate = new double[OPERATIONS.length];
+    private final int[] slowDownAbove = new int[OPERATIONS.length];
+    private final double[] resetRate = new double[OPERATIONS.length];
+
+    private final AtomicLongArray requests = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray slowDowns = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray resets = new AtomicLongArray(OPERATIONS.length);
+
+    // requests so far in the current second, for slowDownAbove
+    private final AtomicLongArray second = new AtomicLongArray(OPERATIONS.length);
+    private final AtomicLongArray inSecond = new AtomicLongArray(OPERATIONS.length);
+
+    /** turn off the info logging of the classes under test, which a long run would otherwise be drowned in */
+    public static void quiet() { Logger.getLogger("org.cobbzilla").setLevel(Level.WARN); }
+
+    // ---- latency
+
+    /** How long S3 takes to answer a request. */
+    public static abstract class Latency {
+
+        /** @return how long the next request takes, in nanoseconds */
+        public abstract long nanos();
+
+        public static Latency fixed(final double millis) {
+            return new Latency() {
+                @Override public long nanos() { return (long) (millis * 1000000); }
+            };
+        }
+
+        public static Latency uniform(final double minMillis, final double maxMillis) {
+            return new Latency() {
+                @Override public long nanos() {
+                    return (long) ((minMillis + ThreadLocalRandom.current().nextDouble() * (maxMillis - minMillis)) * 1000000);
+                }
+            };
+        }
+
+        /**
+         * A long-tailed latency, as S3's is: half of the requests take less than medianMillis, and one in a
+         * hundred takes more than p99Millis.
+         */
+        public static Latency logNormal(final double medianMillis, double p99Millis) {
+            // the 99th percentile of a standard normal distribution is 2.326 standard deviations out
+            final double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+            return new Latency() {
+                @Override public long nanos() {
+                    return (long) (medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()) * 1000000);
+                }
+            };
+        }
+    }
+
+    public S3Emulator latency(RateLimits.Operation operation, Latency latency) {
+        this.latency[operation.ordinal()] = latency;
+        return this;
+    }
+
+    public S3Emulator latency(Latency latency) {
+        for (RateLimits.Operation operation : OPERATIONS) latency(operation, latency);
+        return this;
+    }
+
+    // ---- faults
+
+    /** answer this fraction (0 to 1) of requests of this kind with 503 SlowDown */
+    public S3Emulator slowDown(RateLimits.Operation operation, double rate) {
+        slowDownRate[operation.ordinal()] = rate;
+        return this;
+    }
+
+    /** answer 503 SlowDown to requests of this kind beyond this many a second, as S3 does (0 for no limit) */
+    public S3Emulator slowDownAbove(RateLimits.Operation operation, int perSecond) {
+        slowDownAbove[operation.ordinal()] = perSecond;
+        return this;
+    }
+
+    /** reset the connection of this fraction (0 to 1) of requests of this kind */
+    public S3Emulator connectionReset(RateLimits.Operation operation, double rate) {
+        resetRate[operation.ordinal()] = rate;
+        return this;
+    }
+
+    public S3Emulator connectionReset(double rate) {
+        for (RateLimits.Operation operation : OPERATIONS) connectionReset(operation, rate);
+        return this;
+    }
+
+    /** @return how many requests of this kind have been received, including those that failed */
+    public long getRequests(RateLimits.Operation operation) { return requests.get(operation.ordinal()); }
+
+    /** @return how many requests of this kind were answered with SlowDown */
+    public long getSlowDowns(RateLimits.Operation operation) { return slowDowns.get(operation.ordinal()); }
+
+    /** @return how many requests of this kind had their connection reset */
+    public long getResets(RateLimits.Operation operation) { return resets.get(operation.ordinal()); }
+
+    // ---- buckets
+
+    /** the keys of a bucket, and their objects */
+    private static abstract class Bucket {
+        /** @return the least key at or after (inclusive) or after (exclusive) from, or null if there is none */
+        abstract String ceiling(String from, boolean inclusive);
+        /** @return the object with this key, or null if there is none */
+        abstract S3ObjectSummary get(String key);
+        abstract int size();
+        abstract void put(S3ObjectSummary summary);
+        abstract void remove(String key);
+    }
+
+    private static class StoredBucket extends Bucket {
+        private final ConcurrentSkipListMap<String, S3ObjectSummary> objects = new ConcurrentSkipListMap<String, S3ObjectSummary>(KeyListingPartition.KEY_ORDER);
+
+        @Override String ceiling(String from, boolean inclusive) { return inclusive ? objects.ceilingKey(from) : objects.higherKey(from); }
+        @Override S3ObjectSummary get(String key) { return objects.get(key); }
+        @Override int size() { return objects.size(); }
+        @Override void put(S3ObjectSummary summary) { objects.put(summary.getKey(), summary); }
+        @Override void remove(String key) { objects.remove(key); }
+    }
+
+    /** count keys spread evenly over 256 prefixes: 000/0000000000 to 255/(count-1) */
+    private static class GeneratedBucket extends Bucket {
+        private final String name;
+        private final int count;
+        private final long size;
+        private final Date lastModified = new Date();
+
+        GeneratedBucket(String name, int count, long size) {
+            this.name = name;
+            this.count = count;
+            this.size = size;
+        }
+
+        String key(int index) {
+            // as String.format("%03d/%010d", prefix, index) would, many times faster
+            final char[] key = new char[14];
+            pad(key, 0, 3, (int) (index * 256L / count));
+            key[3] = '/';
+            pad(key, 4, 10, index);
+            return new String(key);
+        }
+
+        private static void pad(char[] chars, int offset, int width, int value) {
+            for (int i = offset + width - 1; i >= offset; i--) {
+                chars[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        @Override String ceiling(String from, boolean inclusive) {
+            // listing steps from one key to the next
+            final int index = indexOf(from);
+            if (index >= 0) return inclusive ? from : index + 1 < count ? key(index + 1) : null;
+
+            // keys are in index order, so search for the first one at or after from
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                final int cmp = KeyListingPartition.KEY_ORDER.compare(key(middle), from);
+                if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low < count ? key(low) : null;
+        }
+
+        /** @return the index of this key, or -1 if it is not one of the bucket's */
+        private int indexOf(String key) {
+            if (key.length() != 14 || key.charAt(3) != '/') return -1;
+            final int index;
+            try {
+                index = Integer.parseInt(key.substring(4));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            return index >= 0 && index < count && key(index).equals(key) ? index : -1;
+        }
+
+        @Override S3ObjectSummary get(String key) {
+            if (indexOf(key) < 0) return null;
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(name);
+            summary.setKey(key);
+            summary.setSize(size);
+            summary.setETag(ETAG);
+            summary.setLastModified(lastModified);
+            return summary;
+        }
+
+        @Override int size() { return count; }
+        @Override void put(S3ObjectSummary summary) { throw readOnly(); }
+        @Override void remove(String key) { throw readOnly(); }
+
+        private AmazonS3Exception readOnly() {
+            final AmazonS3Exception e = new AmazonS3Exception("generated bucket " + name + " is read-only");
+            e.setStatusCode(403);
+            e.setErrorCode("AccessDenied");
+            return e;
+        }
+    }
+
+    private Bucket bucket(String name) {
+        final Bucket bucket = buckets.get(name);
+        if (bucket != null) return bucket;
+        buckets.putIfAbsent(name, new StoredBucket());
+        return buckets.get(name);
+    }
+
+    /** replace a bucket with a read-only one of count keys of size bytes each */
+    public S3Emulator generate(String bucket, int count, long size) {
+        buckets.put(bucket, new GeneratedBucket(bucket, count, size));
+        return this;
+    }
+
+    public S3Emulator put(String bucket, String key, long size, String etag) {
+        final S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(bucket);
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(etag);
+        summary.setLastModified(new Date());
+        bucket(bucket).put(summary);
+        return this;
+    }
+
+    /** empty a bucket */
+    public S3Emulator clear(String bucket) {
+        buckets.put(bucket, new StoredBucket());
+        return this;
+    }
+
+    /** @return how many keys a bucket has */
+    public int size(String bucket) { return bucket(bucket).size(); }
+
+    /** @return the object with this key, or null if there is none */
+    public S3ObjectSummary get(String bucket, String key) { return bucket(bucket).get(key); }
+
+    // ---- requests
+
+    // set by receive when the request's connection is to be reset after it has been carried out
+    private final ThreadLocal<Boolean> resetAfter = new ThreadLocal<Boolean>() {
+        @Override protected Boolean initialValue() { return false; }
+    };
+
+    /** wait as S3 would, and maybe fail as S3 would, before carrying out a request */
+    private void receive(RateLimits.Operation operation) {
+        final int op = operation.ordinal();
+        requests.incrementAndGet(op);
+        if (latency[op] != null) pause(latency[op].nanos());
+
+        if (slowDownRate[op] > 0 && ThreadLocalRandom.current().nextDouble() < slowDownRate[op]) throw slowDown(op);
+        if (slowDownAbove[op] > 0) {
+            final long now = System.currentTimeMillis() / 1000;
+            final long then = second.get(op);
+            if (now != then && second.compareAndSet(op, then, now)) inSecond.set(op, 0);
+            if (inSecond.incrementAndGet(op) > slowDownAbove[op]) throw slowDown(op);
+        }
+        // a reset is drawn once per request, then happens either before it is carried out or after (see respond)
+        resetAfter.set(false);
+        if (resetRate[op] > 0 && ThreadLocalRandom.current().nextDouble() < resetRate[op]) {
+            if (ThreadLocalRandom.current().nextBoolean()) throw reset(op);
+            resetAfter.set(true);
+        }
+    }
+
+    /** maybe lose the response to a request that has been carried out */
+    private void respond(RateLimits.Operation operation) {
+        if (resetAfter.get()) {
+            resetAfter.set(false);
+            throw reset(operation.ordinal());
+        }
+    }
+
+    private static void pause(long nanos) {
+        if (nanos <= 0) return;
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            // as the SDK does when its thread is interrupted
+            Thread.currentThread().interrupt();
+            throw new AbortedException();
+        }
+    }
+
+    private AmazonS3Exception slowDown(int op) {
+        slowDowns.incrementAndGet(op);
+        final AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+        e.setStatusCode(503);
+        e.setErrorCode("SlowDown");
+        e.setErrorType(AmazonServiceException.ErrorType.Service);
+        return e;
+    }
+
+    private SdkClientException reset(int op) {
+        resets.incrementAndGet(op);
+        return new SdkClientException("Unable to execute HTTP request: Connection reset", new SocketException("Connection reset"));
+    }
+
+    private S3ObjectSummary find(String bucket, String key) {
+        final S3ObjectSummary summary = bucket(bucket).get(key);
+        if (summary == null) {
+            final AmazonS3Exception e = new AmazonS3Exception("Not Found");
+            e.setStatusCode(404);
+            e.setErrorCode("NoSuchKey");
+            throw e;
+        }
+        return summary;
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        receive(RateLimits.Operation.LIST);
+        final String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        final String delimiter = request.getDelimiter();
+        final int max = request.getMaxKeys() == null ? 1000 : request.getMaxKeys();
+        final String after = request.getContinuationToken() != null ? request.getContinuationToken() : request.getStartAfter();
+        final Bucket bucket = bucket(request.getBucketName());
+
+        final ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        result.setDelimiter(delimiter);
+        final List<String> commonPrefixes = new ArrayList<String>();
+        String last = null;
+        int count = 0;
+        String key = after == null || KeyListingPartition.KEY_ORDER.compare(after, prefix) < 0 ? bucket.ceiling(prefix, true) : bucket.ceiling(after, false);
+        while (key != null && key.startsWith(prefix)) {
+            if (count == max) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(last);
+                break;
+            }
+            final int end = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (end >= 0) {
+                // one entry for all the keys under this prefix, and the next one is after them all
+                final String commonPrefix = key.substring(0, end + delimiter.length());
+                commonPrefixes.add(commonPrefix);
+                // U+10FFFF, the last code point
+                last = commonPrefix + "\uDBFF\uDFFF";
+                count++;
+                key = bucket.ceiling(last, false);
+                continue;
+            }
+            final S3ObjectSummary summary = bucket.get(key);
+            if (summary != null) {
+                result.getObjectSummaries().add(summary);
+                last = key;
+                count++;
+            }
+            key = bucket.ceiling(key, false);
+        }
+        result.setCommonPrefixes(commonPrefixes);
+        result.setKeyCount(count);
+        respond(RateLimits.Operation.LIST);
+        return result;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucket, String key) {
+        receive(RateLimits.Operation.HEAD);
+        final S3ObjectSummary summary = find(bucket, key);
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(summary.getSize());
+        metadata.setHeader("ETag", summary.getETag());
+        metadata.setLastModified(summary.getLastModified());
+        respond(RateLimits.Operation.HEAD);
+        return metadata;
+    }
+
+    @Override
+    public AccessControlList getObjectAcl(String bucket, String key) {
+        receive(RateLimits.Operation.GET);
+        find(bucket, key);
+        final AccessControlList acl = new AccessControlList();
+        acl.setOwner(new Owner("owner-id", "owner"));
+        acl.grantPermission(new CanonicalGrantee("owner-id"), Permission.FullControl);
+        respond(RateLimits.Operation.GET);
+        return acl;
+    }
+
+    @Override
+    public CopyObjectResult copyObject(CopyObjectRequest request) {
+        receive(RateLimits.Operation.COPY);
+        final S3ObjectSummary source = find(request.getSourceBucketName(), request.getSourceKey());
+        put(request.getDestinationBucketName(), request.getDestinationKey(), source.getSize(), source.getETag());
+        final CopyObjectResult result = new CopyObjectResult();
+        result.setETag(source.getETag());
+        result.setLastModifiedDate(new Date());
+        respond(RateLimits.Operation.COPY);
+        return result;
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        receive(RateLimits.Operation.COPY);
+        final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setUploadId("upload-" + uploads.incrementAndGet());
+        uploadBytes.put(result.getUploadId(), new AtomicLong(0));
+        respond(RateLimits.Operation.COPY);
+        return result;
+    }
+
+    @Override
+    public CopyPartResult copyPart(CopyPartRequest request) {
+        receive(RateLimits.Operation.COPY);
+        final S3ObjectSummary source = find(request.getSourceBucketName(), request.getSourceKey());
+        final AtomicLong bytes = uploadBytes.get(request.getUploadId());
+        if (bytes != null) {
+            final Long first = request.getFirstByte();
+            final Long last = request.getLastByte();
+            bytes.addAndGet(first != null && last != null ? last - first + 1 : source.getSize());
+        }
+        final CopyPartResult result = new CopyPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag(ETAG);
+        respond(RateLimits.Operation.COPY);
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        receive(RateLimits.Operation.COPY);
+        final String etag = ETAG + "-" + request.getPartETags().size();
+        final AtomicLong bytes = uploadBytes.remove(request.getUploadId());
+        put(request.getBucketName(), request.getKey(), bytes == null ? 0 : bytes.get(), etag);
+        final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+        result.setBucketName(request.getBucketName());
+        result.setKey(request.getKey());
+        result.setETag(etag);
+        respond(RateLimits.Operation.COPY);
+        return result;
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        receive(RateLimits.Operation.COPY);
+        uploadBytes.remove(request.getUploadId());
+        respond(RateLimits.Operation.COPY);
+    }
+
+    @Override
+    public void deleteObject(DeleteObjectRequest request) {
+        receive(RateLimits.Operation.DELETE);
+        bucket(request.getBucketName()).remove(request.getKey());
+        respond(RateLimits.Operation.DELETE);
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+        receive(RateLimits.Operation.DELETE);
+        final Bucket bucket = bucket(request.getBucketName());
+        final List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<DeleteObjectsResult.DeletedObject>();
+        for (DeleteObjectsRequest.KeyVersion key : request.getKeys()) {
+            bucket.remove(key.getKey());
+            final DeleteObjectsResult.DeletedObject object = new DeleteObjectsResult.DeletedObject();
+            object.setKey(key.getKey());
+            deleted.add(object);
+        }
+        respond(RateLimits.Operation.DELETE);
+        return new DeleteObjectsResult(deleted);
+    }
+}
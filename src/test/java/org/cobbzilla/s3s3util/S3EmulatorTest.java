@@ -0,0 +1,117 @@
+package org.cobbzilla.s3s3util;
+
+import com.amazonaws.services.s3.model.*;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class S3EmulatorTest {
+
+    private static final String BUCKET = "from-bucket";
+
+    @Test
+    public void testGeneratedBucketListing() throws Exception {
+        final S3Emulator s3 = new S3Emulator().generate(BUCKET, 10000000, 100);
+        assertEquals(10000000, s3.size(BUCKET));
+
+        // the top level is 256 prefixes
+        final ListObjectsV2Result top = s3.listObjectsV2(new ListObjectsV2Request()
+                .withBucketName(BUCKET).withDelimiter("/").withMaxKeys(1000));
+        assertFalse(top.isTruncated());
+        assertEquals(256, top.getCommonPrefixes().size());
+        assertEquals("000/", top.getCommonPrefixes().get(0));
+        assertEquals("255/", top.getCommonPrefixes().get(255));
+        assertTrue(top.getObjectSummaries().isEmpty());
+
+        // and a listing of one of them, page by page, finds every key in it in order
+        String token = null;
+        String last = "";
+        int keys = 0;
+        do {
+            final ListObjectsV2Result page = s3.listObjectsV2(new ListObjectsV2Request()
+                    .withBucketName(BUCKET).withPrefix("007/").withMaxKeys(1000).withContinuationToken(token));
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                assertTrue(summary.getKey().startsWith("007/"));
+                assertTrue(summary.getKey().compareTo(last) > 0);
+                last = summary.getKey();
+                keys++;
+            }
+            token = page.isTruncated() ? page.getNextContinuationToken() : null;
+        } while (token != null);
+        assertEquals(10000000 / 256, keys, 1);
+
+        assertEquals(100, s3.getObjectMetadata(BUCKET, last).getContentLength());
+        try {
+            s3.getObjectMetadata(BUCKET, "007/nope");
+            fail("expected a 404");
+        } catch (AmazonS3Exception e) {
+            assertEquals(404, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testStoredBucket() throws Exception {
+        final S3Emulator s3 = new S3Emulator();
+        for (String key : Arrays.asList("a/1", "a/2", "b", "c/d/e")) s3.put(BUCKET, key, 10, S3Emulator.ETAG);
+        s3.copyObject(new CopyObjectRequest(BUCKET, "b", "to-bucket", "b2"));
+        assertEquals(10, s3.get("to-bucket", "b2").getSize());
+
+        final ListObjectsV2Result result = s3.listObjectsV2(new ListObjectsV2Request().withBucketName(BUCKET).withDelimiter("/"));
+        assertEquals(Arrays.asList("a/", "c/"), result.getCommonPrefixes());
+        assertEquals(1, result.getObjectSummaries().size());
+        assertEquals("b", result.getObjectSummaries().get(0).getKey());
+
+        s3.deleteObjects(new DeleteObjectsRequest(BUCKET).withKeys("a/1", "a/2"));
+        assertEquals(2, s3.size(BUCKET));
+        assertNull(s3.get(BUCKET, "a/1"));
+    }
+
+    @Test
+    public void testFaults() throws Exception {
+        final S3Emulator s3 = new S3Emulator().generate(BUCKET, 1000, 100)
+                .slowDown(RateLimits.Operation.HEAD, 1)
+                .connectionReset(RateLimits.Operation.COPY, 1)
+                .slowDownAbove(RateLimits.Operation.LIST, 5);
+        try {
+            s3.getObjectMetadata(BUCKET, "000/0000000000");
+            fail("expected SlowDown");
+        } catch (Exception e) {
+            assertEquals(RetryPolicy.ErrorClass.THROTTLED, RetryPolicy.classify(e));
+        }
+        try {
+            s3.copyObject(new CopyObjectRequest(BUCKET, "000/0000000000", "to-bucket", "key"));
+            fail("expected a connection reset");
+        } catch (Exception e) {
+            assertEquals(RetryPolicy.ErrorClass.NETWORK, RetryPolicy.classify(e));
+        }
+        assertEquals(1, s3.getSlowDowns(RateLimits.Operation.HEAD));
+        assertEquals(1, s3.getResets(RateLimits.Operation.COPY));
+
+        // 20 requests span at most two seconds, in which at most 10 are answered
+        int slowDowns = 0;
+        for (int i = 0; i < 20; i++) {
+            try {
+                s3.listObjectsV2(new ListObjectsV2Request().withBucketName(BUCKET).withMaxKeys(1));
+            } catch (AmazonS3Exception e) {
+                assertEquals(503, e.getStatusCode());
+                slowDowns++;
+            }
+        }
+        assertTrue(slowDowns >= 10);
+        assertEquals(20, s3.getRequests(RateLimits.Operation.LIST));
+    }
+
+    @Test
+    public void testLogNormalLatency() throws Exception {
+        final S3Emulator.Latency latency = S3Emulator.Latency.logNormal(10, 100);
+        final long[] samples = new long[20000];
+        for (int i = 0; i < samples.length; i++) samples[i] = latency.nanos();
+        Arrays.sort(samples);
+        final double median = samples[samples.length / 2] / 1000000.0;
+        final double p99 = samples[samples.length * 99 / 100] / 1000000.0;
+        assertEquals(10, median, 1.5);
+        assertEquals(100, p99, 25);
+    }
+}
@@ -1,5 +1,6 @@
 package org.cobbzilla.s3s3util;
 
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -47,6 +48,43 @@ public class S3ToS3MainTest {
         assertEquals(DESTINATION, options.getDestination());
     }
 
+    @Test
+    public void testListThreadsArgs() throws Exception {
+
+        final S3ToS3Main main = new S3ToS3Main(new String[]{S3ToS3Options.OPT_LIST_THREADS, "8", SOURCE, DESTINATION});
+        main.parseArguments();
+
+        final S3ToS3Options options = main.getOptions();
+        assertEquals(8, options.getListThreads());
+        assertTrue(options.isParallelListing());
+    }
+
+    @Test
+    public void testMultipartThresholdArgs() throws Exception {
+
+        final long threshold = 500 * S3ToS3Constants.MB;
+        final S3ToS3Main main = new S3ToS3Main(new String[]{S3ToS3Options.OPT_MULTIPART_THRESHOLD, String.valueOf(threshold), SOURCE, DESTINATION});
+        main.parseArguments();
+
+        final S3ToS3Options options = main.getOptions();
+        assertEquals(threshold, options.getMultipartThreshold());
+        assertTrue(options.isMultipart(threshold + 1));
+        assertFalse(options.isMultipart(threshold));
+    }
+
+    @Test
+    public void testMaxQueueMemoryArgs() throws Exception {
+
+        final S3ToS3Main main = new S3ToS3Main(new String[]{S3ToS3Options.OPT_MAX_QUEUE_MEMORY, "64M", SOURCE, DESTINATION});
+        main.parseArguments();
+
+        final S3ToS3Options options = main.getOptions();
+        assertEquals(64 * S3ToS3Constants.MB, options.getMaxQueueMemoryBytes());
+
+        options.setMaxQueueMemory("1000");
+        assertEquals(1000, options.getMaxQueueMemoryBytes());
+    }
+
     @Test
     public void testInlinePrefix() throws Exception {
         final String prefix = "foo";
@@ -138,4 +176,21 @@ public class S3ToS3MainTest {
             fail("Invalid proxy setting ("+proxy+") should have thrown exception");
         } catch (IllegalArgumentException expected) {}
     }
+
+    @Test
+    public void testInvalidListThreads() throws Exception {
+        final S3ToS3Main main = new S3ToS3Main(new String[]{S3ToS3Options.OPT_LIST_THREADS, "0", SOURCE, DESTINATION});
+        try {
+            main.parseArguments();
+            fail("--list-threads 0 should have thrown exception");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void testSdkMakesNoRetries() throws Exception {
+        final S3ToS3Main main = new S3ToS3Main(new String[]{SOURCE, DESTINATION});
+        main.parseArguments();
+        // every retry goes through RetryPolicy
+        assertSame(PredefinedRetryPolicies.NO_RETRY_POLICY, main.getClientConfiguration().getRetryPolicy());
+    }
 }
@@ -0,0 +1,78 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ShardSchedulerTest {
+
+    private ThreadPoolExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = new ThreadPoolExecutor(8, 8, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        final ShardScheduler scheduler = new ShardScheduler(executor, 2, 1);
+        assertEquals("ab", scheduler.getShard("abcdef"));
+        assertEquals("a", scheduler.getShard("a"));
+    }
+
+    @Test
+    public void testTurnsAndLimitsPerShard() throws Exception {
+        final ShardScheduler scheduler = new ShardScheduler(executor, 1, 2);
+        final Map<String, AtomicInteger> running = new HashMap<String, AtomicInteger>();
+        for (String shard : new String[] {"a", "b", "c"}) running.put(shard, new AtomicInteger(0));
+        final AtomicInteger mostRunning = new AtomicInteger(0);
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(40);
+
+        // listed in order: all of shard a, then b, then c
+        for (int i = 0; i < 40; i++) {
+            final String shard = i < 30 ? "a" : i < 35 ? "b" : "c";
+            scheduler.submit(shard, new Runnable() {
+                @Override public void run() {
+                    final int now = running.get(shard).incrementAndGet();
+                    synchronized (mostRunning) { if (now > mostRunning.get()) mostRunning.set(now); }
+                    started.add(shard);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    running.get(shard).decrementAndGet();
+                    done.countDown();
+                }
+            }, new Runnable() {
+                @Override public void run() { fail("rejected"); }
+            });
+        }
+
+        // every shard has its turn before shard a fills the executor
+        Thread.sleep(200);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), new HashSet<String>(started));
+        assertEquals(6, started.size());
+        assertEquals(34, scheduler.getWaiting());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(2, mostRunning.get());
+        assertEquals(0, scheduler.getWaiting());
+        Thread.sleep(50);
+        assertEquals(0, scheduler.getShardCount());
+    }
+}
@@ -0,0 +1,41 @@
+package org.cobbzilla.s3s3util;
+
+import org.junit.Test;
+
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.*;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testFactoryMatchesJvm() throws Exception {
+        boolean hasVirtual;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            hasVirtual = true;
+        } catch (NoSuchMethodException e) {
+            hasVirtual = false;
+        }
+        assertEquals(hasVirtual, VirtualThreads.isAvailable());
+
+        final ThreadFactory factory = VirtualThreads.factory("test-");
+        if (!hasVirtual) {
+            assertNull(factory);
+            return;
+        }
+        final Thread thread = factory.newThread(new Runnable() { @Override public void run() {} });
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+        assertEquals("test-0", thread.getName());
+    }
+
+    @Test
+    public void testConnectionPoolFollowsThreads() throws Exception {
+        final S3ToS3Options options = new S3ToS3Options();
+        options.setMaxConnections(100);
+        options.setMaxThreads(5000);
+        assertEquals(100, options.getConnectionPoolSize());
+        options.setVirtualThreads(true);
+        assertEquals(5000, options.getConnectionPoolSize());
+    }
+}